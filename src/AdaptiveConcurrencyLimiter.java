@@ -0,0 +1,166 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many API calls may be in flight at once, adapting the limit to how the
+ * upstream service is behaving.
+ *
+ * The limit follows an AIMD (additive increase, multiplicative decrease) scheme:
+ *   Each fast success raises the limit by 1/limit (about +1 per round of calls)
+ *   A success whose latency is well above the best latency seen lowers it slightly (queueing upstream)
+ *   A quota error (HTTP 429) or failure halves it
+ *
+ * Callers that cannot get a slot wait in a queue until their timeout expires.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /** Number of samples after which the minimum latency is re-measured */
+    private static final int MIN_RTT_PROBE_INTERVAL = 500;
+
+    /** The limit never drops below this value */
+    private final int minLimit;
+
+    /** The limit never grows above this value */
+    private final int maxLimit;
+
+    /** How much slower than the best latency a call may be before the limit is reduced */
+    private final double latencyTolerance;
+
+    /** Current concurrency limit */
+    private double limit;
+
+    /** Calls currently in flight */
+    private int inFlight;
+
+    /** Lowest latency seen in the current probe window, in nanoseconds */
+    private long minLatencyNanos = Long.MAX_VALUE;
+
+    /** Samples taken since the minimum latency was last reset */
+    private int samplesSinceProbe;
+
+    /** Number of callers that timed out waiting for a slot */
+    private long rejectedCount;
+
+    /** Number of calls reported as dropped (quota errors or failures) */
+    private long droppedCount;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param initialLimit The starting concurrency limit
+     * @param minLimit The smallest limit allowed
+     * @param maxLimit The largest limit allowed
+     * @param latencyTolerance Ratio over the best latency that counts as congestion (e.g. 2.0)
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Require 1 <= minLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Waits for a free slot and claims it.
+     *
+     * Every successful acquire must be followed by exactly one call to
+     * onSuccess, onDropped or onIgnore.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return true if a slot was claimed, false if the timeout expired first
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight >= (int) limit) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                rejectedCount++;
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Releases a slot after a successful call and adjusts the limit based on its latency.
+     *
+     * @param latencyNanos How long the call took
+     */
+    public synchronized void onSuccess(long latencyNanos) {
+        inFlight--;
+
+        if (++samplesSinceProbe >= MIN_RTT_PROBE_INTERVAL) {
+            // Re-measure so the baseline can follow a lasting change in upstream speed
+            minLatencyNanos = latencyNanos;
+            samplesSinceProbe = 0;
+        } else if (latencyNanos < minLatencyNanos) {
+            minLatencyNanos = latencyNanos;
+        }
+
+        if (latencyNanos > minLatencyNanos * latencyTolerance) {
+            limit = Math.max(minLimit, limit * 0.9);
+        } else if (inFlight + 1 >= limit / 2) {
+            // Only grow when the current limit is actually being used
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Releases a slot after a quota error or upstream failure and halves the limit.
+     */
+    public synchronized void onDropped() {
+        inFlight--;
+        droppedCount++;
+        limit = Math.max(minLimit, limit / 2);
+        notifyAll();
+    }
+
+    /**
+     * Releases a slot without changing the limit (e.g. for errors caused by the request itself).
+     */
+    public synchronized void onIgnore() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Gets the current concurrency limit.
+     * @return The limit, rounded down
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of calls currently in flight.
+     * @return In-flight calls
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets the number of callers rejected because no slot became free in time.
+     * @return Rejected call count
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Gets the number of calls reported as dropped.
+     * @return Dropped call count
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Reads tunable settings for the application.
+ *
+ * A setting is looked up first as a JVM system property (e.g. -Dgemini.rate.permitsPerSecond=2)
+ * and then as an environment variable with dots replaced by underscores and upper-cased
+ * (e.g. GEMINI_RATE_PERMITSPERSECOND). If neither is present, the supplied default is used.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public final class AppConfig {
+
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private AppConfig() {}
+
+    /**
+     * Gets a setting as a string.
+     *
+     * @param key The setting name (e.g. "gemini.rate.permitsPerSecond")
+     * @param defaultValue The value to use when the setting is not present
+     * @return The configured value, or the default
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.replace('.', '_').toUpperCase());
+        }
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    /**
+     * Gets a setting as an integer.
+     *
+     * @param key The setting name
+     * @param defaultValue The value to use when the setting is missing or invalid
+     * @return The configured value, or the default
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid integer for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a setting as a long.
+     *
+     * @param key The setting name
+     * @param defaultValue The value to use when the setting is missing or invalid
+     * @return The configured value, or the default
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a setting as a double.
+     *
+     * @param key The setting name
+     * @param defaultValue The value to use when the setting is missing or invalid
+     * @return The configured value, or the default
+     */
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a setting as a boolean ("true" or "false").
+     *
+     * @param key The setting name
+     * @param defaultValue The value to use when the setting is missing
+     * @return The configured value, or the default
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
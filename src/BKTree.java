@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A BK-tree over 64-bit perceptual hashes for fast nearest-neighbour lookups by
+ * Hamming distance.
+ * 
+ * Each child edge is labelled with its distance to the parent. By the triangle inequality,
+ * a search within radius r only needs to follow edges whose label is within r of the
+ * query's distance to the parent, so most of the tree is skipped.
+ * 
+ * This class is not thread-safe; callers must synchronize access.
+ * 
+ * @param <V> The type of value stored with each hash
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class BKTree<V> {
+
+    /** The root node, or null if the tree is empty */
+    private Node<V> root;
+
+    /** Number of entries in the tree */
+    private int size;
+
+    /**
+     * Adds a hash and its value. Entries with equal hashes are all kept.
+     * 
+     * @param hash The perceptual hash
+     * @param value The value to store
+     */
+    public void add(long hash, V value) {
+        size++;
+        if (root == null) {
+            root = new Node<>(hash, value);
+            return;
+        }
+        Node<V> node = root;
+        while (true) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+            Node<V> child = node.children.get(distance);
+            if (child == null) {
+                node.children.put(distance, new Node<>(hash, value));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Finds the entry closest to a hash, within a maximum distance.
+     * 
+     * @param hash The hash to search for
+     * @param maxDistance The largest Hamming distance to accept
+     * @return The closest match, or null if none is within maxDistance
+     */
+    public Match<V> findNearest(long hash, int maxDistance) {
+        if (root == null) return null;
+
+        Match<V> best = null;
+        int radius = maxDistance;
+        List<Node<V>> pending = new ArrayList<>();
+        pending.add(root);
+
+        while (!pending.isEmpty()) {
+            Node<V> node = pending.remove(pending.size() - 1);
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance <= radius) {
+                best = new Match<>(node.value, distance);
+                // Anything further than the best so far is no longer interesting
+                radius = distance;
+                if (distance == 0) break;
+            }
+            for (Map.Entry<Integer, Node<V>> child : node.children.entrySet()) {
+                if (Math.abs(child.getKey() - distance) <= radius) {
+                    pending.add(child.getValue());
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gets the number of entries in the tree.
+     * @return Entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    /**
+     * A value found by a search, with its distance from the query.
+     * 
+     * @param <V> The type of value
+     */
+    public static class Match<V> {
+
+        /** The stored value */
+        private final V value;
+
+        /** Hamming distance from the query hash */
+        private final int distance;
+
+        /**
+         * Creates a match.
+         * 
+         * @param value The stored value
+         * @param distance Hamming distance from the query hash
+         */
+        public Match(V value, int distance) {
+            this.value = value;
+            this.distance = distance;
+        }
+
+        /**
+         * Gets the stored value.
+         * @return The value
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * Gets the Hamming distance from the query hash.
+         * @return The distance
+         */
+        public int getDistance() {
+            return distance;
+        }
+    }
+
+    /**
+     * A tree node: one hash, its value, and children keyed by distance.
+     */
+    private static class Node<V> {
+        final long hash;
+        final V value;
+        final Map<Integer, Node<V>> children = new HashMap<>(4);
+
+        Node(long hash, V value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+}
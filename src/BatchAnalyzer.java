@@ -0,0 +1,470 @@
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Analyzes every image under a directory from the command line and writes one result per
+ * image, for re-analysing archives of meal photos without going through the web server.
+ *
+ *   java -cp bin BatchAnalyzer photos/ results.csv [--format csv|ndjson] [--parallelism 8]
+ *        [--rate 2] [--resume]
+ *
+ * Images are streamed from the directory walk through the same ImageAnalysisPipeline as
+ * /analyze-image, so near-duplicate and shared caches apply. At most "parallelism" images
+ * are in the pipeline at once, and new images start no faster than "rate" per second, so
+ * the walk never runs far ahead of recognition and memory use stays flat however large the
+ * archive is.
+ *
+ * Each result is appended and flushed as soon as it is ready, and the image's path is then
+ * added to a checkpoint file (the output name plus ".done"). With --resume, images listed
+ * in the checkpoint are skipped and results are appended to the existing output, so an
+ * interrupted run carries on where it stopped. Images that fail are not checkpointed and
+ * are tried again on the next resumed run. A result written just before a crash may
+ * appear twice after resuming.
+ *
+ * Progress and throughput are printed every batch.progressSeconds (default 10).
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class BatchAnalyzer {
+
+    /** File extensions treated as images */
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif", "bmp", "webp");
+
+    /** Directory to analyze */
+    private final Path root;
+
+    /** Pipeline the images are analyzed on */
+    private final ImageAnalysisPipeline pipeline;
+
+    /** Largest number of images in the pipeline at once */
+    private final int parallelism;
+
+    /** Bounds the number of images in the pipeline */
+    private final Semaphore inFlight;
+
+    /** Paces how fast new images start */
+    private final TokenBucketRateLimiter rateLimiter;
+
+    /** Whether results are written as NDJSON rather than CSV */
+    private final boolean ndjson;
+
+    /** Longest time one image may take, in milliseconds */
+    private final long deadlineMs;
+
+    /** Attempts per image when the recognition service is temporarily unavailable */
+    private final int maxAttempts;
+
+    /** Schedules retries of images the recognition service could not take yet */
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "batch-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Results, in the order they complete */
+    private BufferedWriter output;
+
+    /** Paths of the images whose results have been written */
+    private BufferedWriter checkpoint;
+
+    /** Set when the run is interrupted, so no new images are started */
+    private volatile boolean stopping;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Creates a batch run.
+     *
+     * @param root Directory to analyze
+     * @param calculator A calculator with the food database loaded
+     * @param ndjson true for NDJSON output, false for CSV
+     * @param parallelism Largest number of images analyzed at once
+     * @param permitsPerSecond Largest number of images started per second
+     */
+    public BatchAnalyzer(Path root, EnvironmentalImpactCalculator calculator, boolean ndjson,
+                         int parallelism, double permitsPerSecond) {
+        if (parallelism < 1 || permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Require parallelism >= 1 and rate > 0");
+        }
+        this.root = root;
+        this.ndjson = ndjson;
+        this.parallelism = parallelism;
+        this.inFlight = new Semaphore(parallelism);
+        this.rateLimiter = new TokenBucketRateLimiter(permitsPerSecond, Math.max(1, Math.min(parallelism, permitsPerSecond)));
+        // Each image holds at most one task per stage, so the queues never fill up
+        this.pipeline = new ImageAnalysisPipeline(calculator,
+            Math.min(parallelism, Runtime.getRuntime().availableProcessors()), parallelism, parallelism);
+        this.deadlineMs = AppConfig.getLong("batch.deadlineMs", 120_000);
+        this.maxAttempts = AppConfig.getInt("batch.maxAttempts", 3);
+    }
+
+    /**
+     * Analyzes every image under the directory that is not in the checkpoint yet.
+     *
+     * @param outputFile Where results are written
+     * @param resume Whether to skip checkpointed images and append to the output
+     * @throws IOException If the directory, output or checkpoint cannot be read or written,
+     *         or a resumed run has a checkpoint but no output to append to
+     */
+    public void run(Path outputFile, boolean resume) throws IOException {
+        Path checkpointFile = Paths.get(outputFile + ".done");
+        Set<String> done = new HashSet<>();
+        boolean append = resume && Files.exists(outputFile) && Files.size(outputFile) > 0;
+        if (resume && Files.exists(checkpointFile)) {
+            done.addAll(Files.readAllLines(checkpointFile, StandardCharsets.UTF_8));
+            done.remove("");
+            // Skipping the checkpointed images would leave their results missing from the output
+            if (!done.isEmpty() && !append) {
+                throw new IOException("Checkpoint " + checkpointFile + " lists " + done.size() + " images but "
+                    + outputFile + " is missing or empty; delete the checkpoint (or run without --resume) to start over");
+            }
+            System.out.println("Resuming: " + done.size() + " images already analyzed");
+        }
+        StandardOpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        output = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, mode);
+        checkpoint = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+            resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        if (!ndjson && !append) {
+            writeLine(output, "image,mealName,items,carbonFootprint,waterUsage,landUsage,nitrogenWaste");
+        }
+
+        long total;
+        try (Stream<Path> images = images()) {
+            total = images.count();
+        }
+        System.out.println("Found " + total + " images under " + root);
+
+        long started = System.nanoTime();
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = AppConfig.getLong("batch.progressSeconds", 10);
+        AtomicLong lastCount = new AtomicLong();
+        progress.scheduleAtFixedRate(() -> {
+            long processed = succeeded.get() + failed.get();
+            reportProgress(total, started, processed - lastCount.getAndSet(processed), interval);
+        }, interval, interval, TimeUnit.SECONDS);
+
+        try (Stream<Path> images = images()) {
+            Iterator<Path> iterator = images.iterator();
+            while (iterator.hasNext() && !stopping) {
+                Path image = iterator.next();
+                String key = root.relativize(image).toString();
+                if (done.contains(key)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                // Wait for a free slot, then for the rate limit
+                inFlight.acquire();
+                boolean permitted = false;
+                while (!stopping && !(permitted = rateLimiter.tryAcquire(1, TimeUnit.SECONDS))) {
+                    // Check for an interruption about once a second
+                }
+                if (!permitted) {
+                    inFlight.release();
+                    break;
+                }
+                analyze(image, key, 1);
+            }
+            // Every slot free again means every started image has finished
+            inFlight.acquire(parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            progress.shutdownNow();
+            synchronized (this) {
+                output.close();
+                checkpoint.close();
+            }
+            try {
+                pipeline.shutdown(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            retryScheduler.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.println(String.format("%s: %d analyzed, %d failed, %d skipped in %.1f s (%.2f images/s)",
+            stopping ? "Stopped" : "Done", succeeded.get(), failed.get(), skipped.get(), seconds,
+            succeeded.get() / Math.max(seconds, 1e-9)));
+    }
+
+    /**
+     * Stops starting new images; images already in the pipeline are finished and written.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Lists the images under the directory, lazily so that huge directories are not held in memory.
+     *
+     * @return The image files
+     * @throws IOException If the directory cannot be read
+     */
+    private Stream<Path> images() throws IOException {
+        return Files.walk(root)
+            .filter(Files::isRegularFile)
+            .filter(path -> IMAGE_EXTENSIONS.contains(extensionOf(path)));
+    }
+
+    /**
+     * Gets a file's extension in lower case.
+     */
+    private static String extensionOf(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Sends one image through the pipeline. The caller holds a slot for it, which is
+     * released once the image is written or has failed for good.
+     *
+     * @param image The image file
+     * @param key The image's path relative to the directory, used in the output and checkpoint
+     * @param attempt Which attempt this is, starting at 1
+     */
+    private void analyze(Path image, String key, int attempt) {
+        BufferPool.PooledBuffer upload;
+        try (InputStream input = new FileInputStream(image.toFile())) {
+            upload = BufferPool.getDefault().readFully(input, Files.size(image));
+        } catch (IOException e) {
+            fail(key, e);
+            return;
+        }
+
+        String extension = extensionOf(image);
+        String mimeType = "image/" + (extension.equals("jpg") ? "jpeg" : extension);
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        pipeline.analyze(upload.contents(), mimeType, deadlineNanos).whenComplete((meal, error) -> {
+            upload.release();
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof RecognitionUnavailableException && attempt < maxAttempts && !stopping) {
+                // The service asked us to come back later; keep the slot and try again
+                long delay = ((RecognitionUnavailableException) cause).getRetryAfterSeconds();
+                System.out.println("Recognition unavailable for " + key + ", retrying in " + delay + " s");
+                retryScheduler.schedule(() -> retry(image, key, attempt + 1), delay, TimeUnit.SECONDS);
+                return;
+            }
+            if (cause != null) {
+                fail(key, cause);
+                return;
+            }
+            try {
+                write(key, meal);
+                succeeded.incrementAndGet();
+            } catch (IOException e) {
+                fail(key, e);
+                return;
+            }
+            inFlight.release();
+        });
+    }
+
+    /**
+     * Sends an image through the pipeline again once the rate limit allows, so retries
+     * count against the same rate as new images. The caller's slot is kept.
+     *
+     * @param image The image file
+     * @param key The image's relative path
+     * @param attempt Which attempt this is
+     */
+    private void retry(Path image, String key, int attempt) {
+        try {
+            boolean permitted = false;
+            while (!stopping && !(permitted = rateLimiter.tryAcquire(1, TimeUnit.SECONDS))) {
+                // Check for a stop about once a second
+            }
+            if (!permitted) {
+                fail(key, new IOException("Stopped before the retry could start"));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(key, e);
+            return;
+        }
+        analyze(image, key, attempt);
+    }
+
+    /**
+     * Records an image that could not be analyzed and frees its slot. It is not
+     * checkpointed, so a resumed run tries it again.
+     */
+    private void fail(String key, Throwable error) {
+        failed.incrementAndGet();
+        System.out.println("Failed to analyze " + key + ": " + error);
+        inFlight.release();
+    }
+
+    /**
+     * Appends one result, then checkpoints the image, flushing both.
+     *
+     * @param key The image's relative path
+     * @param meal The recognized meal
+     * @throws IOException If the output or checkpoint cannot be written
+     */
+    private synchronized void write(String key, Meal meal) throws IOException {
+        if (ndjson) {
+            // Meal JSON has line breaks only between tokens, since quoted strings escape them
+            writeLine(output, "{\"image\": " + SimpleJson.quote(key) + ", \"meal\": "
+                + meal.toJson().replaceAll("\n\\s*", " ") + "}");
+        } else {
+            StringBuilder items = new StringBuilder();
+            for (FoodPortion portion : meal.getFoodPortions()) {
+                if (items.length() > 0) items.append(';');
+                items.append(portion.getFoodItem().getName()).append(':').append(portion.getPortionKg());
+            }
+            writeLine(output, csvField(key) + "," + csvField(meal.getName()) + "," + csvField(items.toString())
+                + String.format(Locale.ROOT, ",%.4f,%.4f,%.4f,%.4f", meal.calculateTotalFootprints(),
+                    meal.calculateTotalWaterUsage(), meal.calculateLandUsage(), meal.calculateNitrogenWaste()));
+        }
+        writeLine(checkpoint, key);
+    }
+
+    /**
+     * Writes a line and flushes it.
+     */
+    private static void writeLine(BufferedWriter writer, String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * Quotes a CSV field if it contains a separator, quote or line break.
+     */
+    private static String csvField(String value) {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Prints how far the run has got and how fast it is going.
+     *
+     * @param total Images found under the directory
+     * @param startedNanos When the run started
+     * @param recent Images finished in the last interval
+     * @param intervalSeconds Length of the interval
+     */
+    private void reportProgress(long total, long startedNanos, long recent, long intervalSeconds) {
+        long processed = succeeded.get() + failed.get();
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        double overall = processed / Math.max(seconds, 1e-9);
+        long remaining = Math.max(0, total - processed - skipped.get());
+        System.out.println(String.format(Locale.ROOT,
+            "Progress: %d/%d done (%d failed, %d skipped), %d in flight, %.2f images/s (last %d s: %.2f), ETA %s",
+            processed, total, failed.get(), skipped.get(), parallelism - inFlight.availablePermits(), overall,
+            intervalSeconds, recent / (double) intervalSeconds,
+            overall > 0 ? formatDuration((long) (remaining / overall)) : "unknown"));
+    }
+
+    /**
+     * Formats seconds as e.g. "1h 05m 09s".
+     */
+    private static String formatDuration(long seconds) {
+        return seconds >= 3600
+            ? String.format("%dh %02dm %02ds", seconds / 3600, seconds / 60 % 60, seconds % 60)
+            : String.format("%dm %02ds", seconds / 60, seconds % 60);
+    }
+
+    /**
+     * Runs a batch from the command line.
+     *
+     * @param args The image directory, the output file and options:
+     *             --format csv|ndjson (default: from the output's extension),
+     *             --parallelism N (default batch.parallelism, 8),
+     *             --rate N images per second (default batch.permitsPerSecond, else gemini.rate.permitsPerSecond),
+     *             --resume
+     * @throws IOException If the food database, directory or output cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java -cp bin BatchAnalyzer <imageDirectory> <output.csv|output.ndjson>"
+                + " [--format csv|ndjson] [--parallelism N] [--rate imagesPerSecond] [--resume]");
+            System.exit(2);
+        }
+        Path root = Paths.get(args[0]);
+        Path outputFile = Paths.get(args[1]);
+        String name = outputFile.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean ndjson = name.endsWith(".ndjson") || name.endsWith(".jsonl");
+        int parallelism = AppConfig.getInt("batch.parallelism", 8);
+        double rate = AppConfig.getDouble("batch.permitsPerSecond", AppConfig.getDouble("gemini.rate.permitsPerSecond", 0.25));
+        boolean resume = false;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--format":
+                        String format = args[++i].toLowerCase(Locale.ROOT);
+                        if (!format.equals("csv") && !format.equals("ndjson")) {
+                            throw new IllegalArgumentException("--format must be csv or ndjson");
+                        }
+                        ndjson = format.equals("ndjson");
+                        break;
+                    case "--parallelism":
+                        parallelism = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--resume":
+                        resume = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            System.exit(2);
+        }
+        if (!Files.isDirectory(root)) {
+            System.out.println("Not a directory: " + root);
+            System.exit(2);
+        }
+
+        EnvironmentalImpactCalculator calculator = new EnvironmentalImpactCalculator();
+        calculator.loadFromFile("Environmental impacts of food (Clark et al. 2022) copy.csv");
+        BatchAnalyzer batch = new BatchAnalyzer(root, calculator, ndjson, parallelism, rate);
+
+        // On Ctrl-C, finish the images already started so the checkpoint matches the output
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            batch.stop();
+            try {
+                main.join(AppConfig.getLong("batch.shutdownGraceMs", 30_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "batch-shutdown"));
+        batch.run(outputFile, resume);
+    }
+}
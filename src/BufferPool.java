@@ -0,0 +1,504 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of reusable off-heap (direct) buffers for request and response bodies.
+ *
+ * Buffers come in power-of-two size classes, from minClassBytes up to maxClassBytes. A
+ * request for n bytes gets a buffer from the smallest class that fits, reusing a free one
+ * when there is one. Released buffers go back to their class's free list, up to a fixed
+ * number per class. Requests larger than the biggest class get a one-off buffer that is
+ * not pooled.
+ *
+ * A PooledBuffer is reference counted: retain() for every extra user, release() when each
+ * is done. The buffer returns to the pool when the count reaches zero.
+ *
+ * With leak detection on, every PooledBuffer records where it was acquired. If one is
+ * garbage collected without being released, that place is logged. This costs a stack trace
+ * per acquire, so it is meant for debugging.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class BufferPool {
+
+    /** Largest buffer that can be allocated */
+    private static final int MAX_BUFFER_BYTES = Integer.MAX_VALUE - 8;
+
+    /** Size of the per-thread heap array used to move bytes between buffers and streams */
+    private static final int TRANSFER_CHUNK = 16 * 1024;
+
+    /** Per-thread scratch array for stream transfers, so copying allocates nothing per call */
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> new byte[TRANSFER_CHUNK]);
+
+    /** Per-thread UTF-8 encoder; like String.getBytes, it replaces characters it cannot encode */
+    private static final ThreadLocal<CharsetEncoder> UTF8_ENCODER = ThreadLocal.withInitial(() ->
+        StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    /** Detects buffers that were garbage collected without being released */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** The pool shared by the web server and the recognition client */
+    private static volatile BufferPool defaultPool;
+
+    /** Capacity of the smallest size class */
+    private final int minClassBytes;
+
+    /** Free buffers per size class; class i holds buffers of minClassBytes << i */
+    private final List<ArrayBlockingQueue<ByteBuffer>> freeLists;
+
+    /** Whether to record acquisition sites and report leaks */
+    private final boolean leakDetection;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final AtomicLong bytesInUse = new AtomicLong();
+    private final AtomicLong bytesPooled = new AtomicLong();
+
+    /**
+     * Creates a pool.
+     *
+     * @param minClassBytes Capacity of the smallest size class (rounded up to a power of two)
+     * @param maxClassBytes Capacity of the largest size class
+     * @param maxFreePerClass How many free buffers each class keeps
+     * @param leakDetection Whether to record acquisition sites and report leaked buffers
+     */
+    public BufferPool(int minClassBytes, int maxClassBytes, int maxFreePerClass, boolean leakDetection) {
+        if (minClassBytes < 1 || maxClassBytes < minClassBytes || maxFreePerClass < 1) {
+            throw new IllegalArgumentException("Require 1 <= minClassBytes <= maxClassBytes and maxFreePerClass >= 1");
+        }
+        this.minClassBytes = roundUp(minClassBytes);
+        int classes = 1;
+        while ((long) this.minClassBytes << (classes - 1) < maxClassBytes && classes < 31) {
+            classes++;
+        }
+        List<ArrayBlockingQueue<ByteBuffer>> lists = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            lists.add(new ArrayBlockingQueue<>(maxFreePerClass));
+        }
+        this.freeLists = List.copyOf(lists);
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Gets the pool shared by the web server and the recognition client, creating it from
+     * the buffers.* settings on first use.
+     *
+     * @return The shared pool
+     */
+    public static BufferPool getDefault() {
+        if (defaultPool == null) {
+            synchronized (BufferPool.class) {
+                if (defaultPool == null) {
+                    defaultPool = new BufferPool(
+                        AppConfig.getInt("buffers.minClassBytes", 4 * 1024),
+                        AppConfig.getInt("buffers.maxClassBytes", 16 * 1024 * 1024),
+                        AppConfig.getInt("buffers.maxFreePerClass", 32),
+                        AppConfig.getBoolean("buffers.leakDetection", false));
+                }
+            }
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Rounds up to the next power of two.
+     */
+    private static int roundUp(int value) {
+        int rounded = Integer.highestOneBit(value);
+        return rounded == value ? value : rounded << 1;
+    }
+
+    /**
+     * Gets the size class for a capacity.
+     *
+     * @return The class index, or -1 if the capacity is larger than the biggest class
+     */
+    private int classOf(int capacity) {
+        int index = 0;
+        long classBytes = minClassBytes;
+        while (classBytes < capacity) {
+            classBytes <<= 1;
+            index++;
+        }
+        return index < freeLists.size() ? index : -1;
+    }
+
+    /**
+     * Acquires an empty buffer with at least the given capacity.
+     *
+     * @param minCapacity The smallest capacity needed
+     * @return A buffer with a reference count of one; release it when done
+     */
+    public PooledBuffer acquire(int minCapacity) {
+        acquired.increment();
+        int index = classOf(Math.max(1, minCapacity));
+        ByteBuffer buffer = null;
+        if (index < 0) {
+            oversized.increment();
+            buffer = ByteBuffer.allocateDirect(minCapacity);
+        } else {
+            buffer = freeLists.get(index).poll();
+            if (buffer != null) {
+                reused.increment();
+                bytesPooled.addAndGet(-buffer.capacity());
+            } else {
+                allocated.increment();
+                buffer = ByteBuffer.allocateDirect(minClassBytes << index);
+            }
+        }
+        bytesInUse.addAndGet(buffer.capacity());
+        return new PooledBuffer(buffer, index);
+    }
+
+    /**
+     * Returns a buffer to its size class, or drops it when the class is full.
+     */
+    private void recycle(ByteBuffer buffer, int index) {
+        bytesInUse.addAndGet(-buffer.capacity());
+        buffer.clear();
+        if (index >= 0 && freeLists.get(index).offer(buffer)) {
+            bytesPooled.addAndGet(buffer.capacity());
+        } else {
+            discarded.increment();
+        }
+    }
+
+    /**
+     * Reads a stream to its end into a pooled buffer.
+     *
+     * @param input The stream to read
+     * @param sizeHint Expected number of bytes (e.g. the file size), or a value <= 0 if unknown
+     * @return A buffer holding the bytes read, positioned at its end
+     * @throws OutOfBufferMemoryException If there is not enough direct memory for the bytes
+     * @throws IOException If the stream cannot be read
+     */
+    public PooledBuffer readFully(InputStream input, long sizeHint) throws IOException {
+        return readFully(input, sizeHint, MAX_BUFFER_BYTES);
+    }
+
+    /**
+     * Reads a stream to its end into a pooled buffer, refusing streams longer than a limit.
+     *
+     * The size hint (e.g. a Content-Length sent by a client) only picks the first buffer,
+     * and no larger than the limit or the biggest size class; the buffer grows as bytes
+     * actually arrive, so a false hint cannot make the pool allocate more than that.
+     *
+     * @param input The stream to read
+     * @param sizeHint Expected number of bytes, or a value <= 0 if unknown
+     * @param maxBytes The most bytes accepted
+     * @return A buffer holding the bytes read, positioned at its end
+     * @throws PayloadTooLargeException If the hint or the stream is longer than maxBytes
+     * @throws OutOfBufferMemoryException If there is not enough direct memory for the bytes
+     * @throws IOException If the stream cannot be read
+     */
+    public PooledBuffer readFully(InputStream input, long sizeHint, long maxBytes) throws IOException {
+        long limit = Math.min(maxBytes, MAX_BUFFER_BYTES);
+        if (sizeHint > limit) {
+            throw new PayloadTooLargeException(maxBytes);
+        }
+        long largestClass = (long) minClassBytes << (freeLists.size() - 1);
+        int initial = (int) Math.min(Math.min(limit, largestClass), sizeHint > 0 ? sizeHint : minClassBytes);
+
+        PooledBuffer target;
+        try {
+            target = acquire(initial);
+        } catch (OutOfMemoryError e) {
+            throw new OutOfBufferMemoryException(initial, e);
+        }
+        try {
+            byte[] chunk = TRANSFER_BUFFER.get();
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                if (target.size() + (long) read > limit) {
+                    throw new PayloadTooLargeException(maxBytes);
+                }
+                try {
+                    target.ensureRemaining(read);
+                } catch (OutOfMemoryError e) {
+                    throw new OutOfBufferMemoryException(target.size() + (long) read, e);
+                }
+                target.buffer.put(chunk, 0, read);
+            }
+            return target;
+        } catch (IOException | RuntimeException e) {
+            target.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes text as UTF-8 into a pooled buffer.
+     *
+     * @param text The text
+     * @return A buffer holding the encoded bytes, positioned at its end
+     */
+    public PooledBuffer encodeUtf8(CharSequence text) {
+        PooledBuffer target = acquire(text.length() + 16);
+        CharsetEncoder encoder = UTF8_ENCODER.get().reset();
+        CharBuffer chars = CharBuffer.wrap(text);
+        // UTF-8 needs at most 3 bytes per char, so each retry after an overflow makes room for the rest
+        while (encoder.encode(chars, target.buffer, true).isOverflow()) {
+            target.ensureRemaining(chars.remaining() * 3 + 16);
+        }
+        encoder.flush(target.buffer);
+        return target;
+    }
+
+    /**
+     * Wraps a buffer's remaining bytes as an input stream, without copying them.
+     *
+     * @param buffer The bytes to read; the stream advances the buffer's position
+     * @return The stream
+     */
+    public static InputStream asInputStream(ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0) return 0;
+                if (!buffer.hasRemaining()) return -1;
+                int count = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    /**
+     * Writes a buffer's remaining bytes to a stream through a small per-thread array.
+     *
+     * @param buffer The bytes to write; the buffer's position is advanced to its limit
+     * @param output The stream to write to
+     * @throws IOException If the stream cannot be written
+     */
+    public static void writeTo(ByteBuffer buffer, OutputStream output) throws IOException {
+        byte[] chunk = TRANSFER_BUFFER.get();
+        while (buffer.hasRemaining()) {
+            int count = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, count);
+            output.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Reports pool usage.
+     * @return JSON object with the pool's counters
+     */
+    public String getMetricsJson() {
+        // Growing a buffer takes one from the pool without counting as an acquire
+        long served = Math.max(1, reused.sum() + allocated.sum() + oversized.sum());
+        return String.format("{\"acquired\": %d, \"reuseRate\": %.3f, \"allocated\": %d, \"oversized\": %d, "
+                + "\"discarded\": %d, \"leaks\": %d, \"bytesInUse\": %d, \"bytesPooled\": %d}",
+            acquired.sum(), reused.sum() / (double) served, allocated.sum(), oversized.sum(),
+            discarded.sum(), leaks.sum(), bytesInUse.get(), bytesPooled.get());
+    }
+
+    /**
+     * A buffer on loan from the pool. Writers append at the buffer's position; contents()
+     * gives a read-only view of what has been written.
+     */
+    public class PooledBuffer implements AutoCloseable {
+
+        /** The underlying buffer; replaced by a larger one when ensureRemaining grows it */
+        private ByteBuffer buffer;
+
+        /** The size class of the underlying buffer, or -1 for an unpooled one */
+        private int sizeClass;
+
+        /** Number of users still holding this buffer */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /** Shared with the leak detector, which must not reference this object */
+        private final LeakState leakState;
+
+        PooledBuffer(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            if (leakDetection) {
+                leakState = new LeakState(new Throwable("Leaked pooled buffer, acquired here and never released"));
+                CLEANER.register(this, leakState);
+            } else {
+                leakState = null;
+            }
+        }
+
+        /**
+         * Gets the writable buffer. Do not keep it after calling ensureRemaining, which may replace it.
+         * @return The underlying buffer
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Gets a read-only view of the bytes written so far.
+         * @return A view from offset zero to the current position
+         */
+        public ByteBuffer contents() {
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            view.flip();
+            return view;
+        }
+
+        /**
+         * Gets the number of bytes written so far.
+         * @return The buffer's position
+         */
+        public int size() {
+            return buffer.position();
+        }
+
+        /**
+         * Makes sure at least the given number of bytes can still be written, moving the
+         * contents to a buffer of a larger class if necessary.
+         *
+         * @param bytes The number of bytes about to be written
+         */
+        public void ensureRemaining(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            long needed = (long) buffer.position() + bytes;
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Buffer cannot grow beyond 2 GB");
+            }
+            PooledBuffer larger = acquire((int) Math.max(needed, Math.min(Integer.MAX_VALUE - 8, buffer.capacity() * 2L)));
+            acquired.decrement();
+            buffer.flip();
+            larger.buffer.put(buffer);
+            recycle(buffer, sizeClass);
+            buffer = larger.buffer;
+            sizeClass = larger.sizeClass;
+            // The temporary wrapper handed its buffer over, so it must not be reported as a leak
+            larger.markReleased();
+        }
+
+        /**
+         * Gets an output stream that appends to this buffer, growing it as needed. Closing
+         * the stream does not release the buffer.
+         *
+         * @return The stream
+         */
+        public OutputStream outputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    ensureRemaining(1);
+                    buffer.put((byte) b);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    ensureRemaining(length);
+                    buffer.put(bytes, offset, length);
+                }
+            };
+        }
+
+        /**
+         * Adds a user of this buffer, who must call release() when done.
+         *
+         * @return This buffer
+         * @throws IllegalStateException If the buffer was already returned to the pool
+         */
+        public PooledBuffer retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) throw new IllegalStateException("Buffer already released");
+            } while (!references.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * Removes a user; the last one returns the buffer to the pool.
+         *
+         * @throws IllegalStateException If the buffer was already returned to the pool
+         */
+        public void release() {
+            int count = references.decrementAndGet();
+            if (count < 0) {
+                throw new IllegalStateException("Buffer released more times than it was retained");
+            }
+            if (count == 0) {
+                markReleased();
+                recycle(buffer, sizeClass);
+            }
+        }
+
+        /**
+         * Releases this user's reference.
+         */
+        @Override
+        public void close() {
+            release();
+        }
+
+        private void markReleased() {
+            if (leakState != null) {
+                leakState.released.set(true);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a buffer cannot be allocated because direct memory (-XX:MaxDirectMemorySize)
+     * is used up. Other requests release their buffers, so trying again later may succeed.
+     */
+    public static class OutOfBufferMemoryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfBufferMemoryException(long bytes, OutOfMemoryError cause) {
+            super("Not enough direct memory for a " + bytes + " byte buffer", cause);
+        }
+    }
+
+    /**
+     * What the leak detector knows about a buffer: whether it was released and where it
+     * was acquired. Runs when the PooledBuffer becomes unreachable.
+     */
+    private class LeakState implements Runnable {
+        final AtomicBoolean released = new AtomicBoolean();
+        final Throwable acquiredAt;
+
+        LeakState(Throwable acquiredAt) {
+            this.acquiredAt = acquiredAt;
+        }
+
+        @Override
+        public void run() {
+            if (!released.get()) {
+                leaks.increment();
+                acquiredAt.printStackTrace(System.out);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Stops calls to an unhealthy service so requests fail fast instead of waiting on it.
+ *
+ * The breaker has three states:
+ *   CLOSED: calls pass through; consecutive failures are counted
+ *   OPEN: calls are refused until the open period has passed
+ *   HALF_OPEN: a single trial call is let through; success closes the breaker, failure re-opens it
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class CircuitBreaker {
+
+    /** The possible breaker states */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Consecutive failures that open the breaker */
+    private final int failureThreshold;
+
+    /** How long the breaker stays open before a trial call, in milliseconds */
+    private final long openDurationMs;
+
+    /** Current state */
+    private State state = State.CLOSED;
+
+    /** Consecutive failures seen while closed */
+    private int consecutiveFailures;
+
+    /** Time the breaker last opened, from System.currentTimeMillis() */
+    private long openedAt;
+
+    /** Whether the trial call in the half-open state has been handed out */
+    private boolean trialInProgress;
+
+    /** Number of times the breaker has opened */
+    private long openCount;
+
+    /** Number of calls refused while open */
+    private long rejectedCount;
+
+    /**
+     * Creates a new circuit breaker in the closed state.
+     *
+     * @param failureThreshold Consecutive failures that open the breaker
+     * @param openDurationMs How long to stay open before a trial call, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMs) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Checks whether a call may go ahead. When this returns true the caller must report
+     * the outcome with recordSuccess or recordFailure.
+     *
+     * @return true if the call may proceed, false if it should fail fast
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDurationMs) {
+            state = State.HALF_OPEN;
+            trialInProgress = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInProgress) {
+            trialInProgress = true;
+            return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Reports a successful call, closing the breaker if it was half-open.
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+        trialInProgress = false;
+    }
+
+    /**
+     * Reports a failed call, opening the breaker if the threshold is reached
+     * or the trial call failed.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                openCount++;
+                System.out.println("Circuit breaker opened after " + consecutiveFailures + " failures");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trialInProgress = false;
+        }
+    }
+
+    /**
+     * Reports that an allowed call ended without telling us anything about the
+     * service's health, so a half-open breaker can hand out another trial call.
+     */
+    public synchronized void recordIgnored() {
+        trialInProgress = false;
+    }
+
+    /**
+     * Gets the current state.
+     * @return The breaker state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Gets how many seconds remain until the breaker lets a trial call through.
+     * @return Seconds remaining (at least 1)
+     */
+    public synchronized int getRetryAfterSeconds() {
+        long remaining = openDurationMs - (System.currentTimeMillis() - openedAt);
+        return (int) Math.max(1, (remaining + 999) / 1000);
+    }
+
+    /**
+     * Gets the number of times the breaker has opened.
+     * @return Open count
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Gets the number of calls refused while the breaker was open.
+     * @return Rejected call count
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
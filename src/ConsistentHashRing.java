@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns 64-bit keys to nodes with consistent hashing, so that adding or removing a node
+ * only moves the keys that node gains or loses (about 1/n of them) instead of reshuffling
+ * every key.
+ *
+ * Each node is placed at several points ("virtual nodes") on a ring of 64-bit positions,
+ * which evens out how much of the ring each node owns. A key belongs to the first node
+ * point at or after the key's position, wrapping around at the end. Keys are mixed before
+ * lookup, because perceptual hashes are far from uniformly distributed.
+ *
+ * The ring is immutable; lookups are a binary search over a sorted primitive array.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class ConsistentHashRing {
+
+    /** Number of positions on the ring (2^64) */
+    private static final double RING_SIZE = 0x1p64;
+
+    /** Positions of all virtual nodes, sorted (compared as unsigned) */
+    private final long[] points;
+
+    /** Owner of each position in points */
+    private final String[] owners;
+
+    /** The distinct nodes, in the order given */
+    private final List<String> nodes;
+
+    /**
+     * Builds a ring.
+     *
+     * @param nodes The node names (e.g. base URLs); duplicates are ignored
+     * @param virtualNodes Points per node on the ring
+     * @throws IllegalArgumentException If there are no nodes or virtualNodes is not positive
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        List<String> distinct = new ArrayList<>();
+        for (String node : nodes) {
+            if (!node.isEmpty() && !distinct.contains(node)) distinct.add(node);
+        }
+        if (distinct.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A hash ring needs at least one node and one virtual node per node");
+        }
+        this.nodes = distinct;
+
+        long[][] placed = new long[distinct.size() * virtualNodes][];
+        int k = 0;
+        for (int n = 0; n < distinct.size(); n++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                placed[k++] = new long[] {positionOf(distinct.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = distinct.get((int) placed[i][1]);
+        }
+    }
+
+    /**
+     * Finds the node that owns a key.
+     *
+     * @param key The key, e.g. an image hash
+     * @return The owning node
+     */
+    public String nodeFor(long key) {
+        long position = mix(key);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], position) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    /**
+     * Gets the nodes on the ring.
+     * @return The distinct nodes
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Works out what fraction of the key space each node owns.
+     * @return Share of the ring per node, adding up to 1
+     */
+    public Map<String, Double> getShares() {
+        Map<String, Double> shares = new LinkedHashMap<>();
+        for (String node : nodes) {
+            shares.put(node, 0.0);
+        }
+        for (int i = 0; i < points.length; i++) {
+            // Point i owns the arc from the previous point up to itself
+            long previous = points[i == 0 ? points.length - 1 : i - 1];
+            double arc = points.length == 1 ? RING_SIZE : toUnsignedDouble(points[i] - previous);
+            shares.merge(owners[i], arc / RING_SIZE, Double::sum);
+        }
+        return shares;
+    }
+
+    /**
+     * Converts an unsigned 64-bit value to a double.
+     */
+    private static double toUnsignedDouble(long value) {
+        return value >= 0 ? value : (double) (value >>> 1) * 2.0 + (value & 1);
+    }
+
+    /**
+     * Places a virtual node on the ring, using 64-bit FNV-1a over its name.
+     */
+    private static long positionOf(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spreads the bits of a key over the whole ring (the MurmurHash3 64-bit finalizer).
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
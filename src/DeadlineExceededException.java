@@ -0,0 +1,24 @@
+import java.io.IOException;
+
+/**
+ * Thrown when a request runs out of the time its caller allowed for it.
+ *
+ * Work for a request that has already passed its deadline is not started, since
+ * nobody is waiting for the answer any more.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class DeadlineExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message Description of which step ran out of time
+     */
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
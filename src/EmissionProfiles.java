@@ -0,0 +1,347 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds regional emission-factor profiles (e.g. "west-africa", "eu") on top of the global dataset.
+ *
+ * The global per-kg values are stored once, as one array per metric. A regional profile
+ * only stores the values it changes: a sorted array of the foods it overrides and, for
+ * those foods, one row of values where NaN means "use the global value". Adding a region
+ * therefore costs memory in proportion to how much it differs from the global data.
+ *
+ * Meals are switched to a profile by replacing their overridden foods with lightweight
+ * FoodItem views that read from the profile. Foods a profile does not override keep
+ * their global FoodItem, so the rest of the calculations work unchanged.
+ *
+ * Each profile is a CSV file named after the region (e.g. west-africa.csv):
+ *   name,carbonFootprint,waterUsage,landUsage,nitrogenWaste
+ *   Rice,3.1,,,
+ * Columns may be left out or left blank to keep the global value.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class EmissionProfiles {
+
+    /** Name of the profile that uses the dataset's own values */
+    public static final String GLOBAL = "global";
+
+    /** Number of metrics per food */
+    private static final int METRICS = ImpactMetric.values().length;
+
+    /** The global food items, by index */
+    private final FoodItem[] baseItems;
+
+    /** Index of each food by name */
+    private final Map<String, Integer> foodIndex = new HashMap<>();
+
+    /** Global per-kg values, indexed by metric ordinal then food index */
+    private final double[][] baseColumns;
+
+    /** Loaded regional profiles by name */
+    private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the profiles with only the global profile loaded.
+     *
+     * @param foodItems The global food items
+     */
+    public EmissionProfiles(Collection<FoodItem> foodItems) {
+        baseItems = foodItems.toArray(new FoodItem[0]);
+        baseColumns = new double[METRICS][baseItems.length];
+        for (int i = 0; i < baseItems.length; i++) {
+            foodIndex.put(baseItems[i].getName(), i);
+            for (ImpactMetric metric : ImpactMetric.values()) {
+                baseColumns[metric.ordinal()][i] = metric.perKg(baseItems[i]);
+            }
+        }
+    }
+
+    /**
+     * Loads every *.csv file in a directory as a profile named after the file.
+     * A missing directory simply means no regional profiles.
+     *
+     * @param directory The directory to read
+     * @throws IOException If a profile file cannot be read
+     */
+    public void loadDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".csv"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - 4);
+            loadProfile(name, file.getPath());
+        }
+    }
+
+    /**
+     * Loads one profile from a CSV file, replacing any profile with the same name.
+     *
+     * @param name The profile name used to select it in requests
+     * @param filename The CSV file
+     * @throws IOException If the file cannot be read or has no name column
+     */
+    public void loadProfile(String name, String filename) throws IOException {
+        String key = name.trim().toLowerCase(Locale.ROOT);
+        if (key.equals(GLOBAL)) {
+            throw new IOException("The global profile comes from the food dataset and cannot be overridden");
+        }
+
+        TreeMap<Integer, double[]> rows = new TreeMap<>();
+        try (Scanner scanner = new Scanner(new File(filename))) {
+            if (!scanner.hasNextLine()) {
+                throw new IOException("Empty profile file: " + filename);
+            }
+            String[] header = scanner.nextLine().split(",");
+            if (!header[0].trim().equalsIgnoreCase("name")) {
+                throw new IOException("Profile " + filename + " must start with a \"name\" column");
+            }
+            ImpactMetric[] columns = new ImpactMetric[header.length];
+            for (int c = 1; c < header.length; c++) {
+                try {
+                    columns[c] = ImpactMetric.fromName(header[c].trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown column in " + filename + ": " + header[c].trim());
+                }
+            }
+
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                if (line.trim().isEmpty()) continue;
+                String[] parts = line.split(",", -1);
+                Integer food = foodIndex.get(parts[0].trim());
+                if (food == null) {
+                    System.out.println("Skipping unknown food in profile " + key + ": " + parts[0].trim());
+                    continue;
+                }
+
+                double[] row = rows.computeIfAbsent(food, f -> emptyRow());
+                for (int c = 1; c < Math.min(parts.length, columns.length); c++) {
+                    if (parts[c].trim().isEmpty()) continue;
+                    try {
+                        double value = Double.parseDouble(parts[c].trim());
+                        if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+                            throw new NumberFormatException("must be a non-negative number");
+                        }
+                        row[columns[c].ordinal()] = value;
+                    } catch (NumberFormatException e) {
+                        System.out.println("Skipping bad value in profile " + key + " for " + parts[0].trim() + ": " + parts[c].trim());
+                    }
+                }
+            }
+        }
+
+        int[] foods = new int[rows.size()];
+        double[][] values = new double[rows.size()][];
+        int k = 0;
+        for (Map.Entry<Integer, double[]> row : rows.entrySet()) {
+            foods[k] = row.getKey();
+            values[k] = row.getValue();
+            k++;
+        }
+        profiles.put(key, new Profile(foods, values));
+        System.out.println("Loaded emission profile " + key + " overriding " + foods.length + " foods");
+    }
+
+    /**
+     * Creates an overlay row that overrides nothing.
+     */
+    private static double[] emptyRow() {
+        double[] row = new double[METRICS];
+        Arrays.fill(row, Double.NaN);
+        return row;
+    }
+
+    /**
+     * Gets the names of all selectable profiles, including the global one.
+     * @return Profile names in alphabetical order
+     */
+    public Set<String> getProfileNames() {
+        Set<String> names = new TreeSet<>(profiles.keySet());
+        names.add(GLOBAL);
+        return names;
+    }
+
+    /**
+     * Checks whether a profile can be selected.
+     *
+     * @param profileName The profile name, or null for the global one
+     * @return true if the profile exists
+     */
+    public boolean hasProfile(String profileName) {
+        try {
+            profileOf(profileName);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the name a profile is selected by, as listed by getProfileNames.
+     *
+     * @param profileName The profile name as given in a request, or null for the global one
+     * @return The profile's name, e.g. "west-africa" for " West-Africa"
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    public String nameOf(String profileName) {
+        return profileOf(profileName) == null ? GLOBAL : profileName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets every food as seen through a profile, e.g. to build indexes for that region.
+     *
+     * @param profileName The profile, or null for the global one
+     * @return One item per global food, using the profile's values where it overrides them
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    public List<FoodItem> resolveAll(String profileName) {
+        List<FoodItem> items = new ArrayList<>(baseItems.length);
+        for (FoodItem item : baseItems) {
+            items.add(resolve(item, profileName));
+        }
+        return items;
+    }
+
+    /**
+     * Checks whether a profile changes any values, i.e. is not the global one.
+     *
+     * @param profileName The profile name, or null for the global one
+     * @return true if the profile is a regional one
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    public boolean hasRegionalValues(String profileName) {
+        return profileOf(profileName) != null;
+    }
+
+    /**
+     * Gets a food item as seen through a profile.
+     *
+     * @param item A global food item
+     * @param profileName The profile, or null for the global one
+     * @return The profile's view of the food, or the item itself if the profile does not change it
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    public FoodItem resolve(FoodItem item, String profileName) {
+        Profile profile = profileOf(profileName);
+        if (profile == null) return item;
+        Integer food = foodIndex.get(item.getName());
+        if (food == null) return item;
+        int slot = Arrays.binarySearch(profile.foods, food);
+        return slot < 0 ? item : profile.views[slot];
+    }
+
+    /**
+     * Creates a copy of a meal that uses a profile's values.
+     *
+     * @param meal A meal built from global food items
+     * @param profileName The profile, or null for the global one
+     * @return The meal itself for the global profile, otherwise a copy using the profile
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    public Meal applyProfile(Meal meal, String profileName) {
+        if (profileOf(profileName) == null) return meal;
+        FoodPortion[] portions = meal.getFoodPortions();
+        FoodPortion[] profiled = new FoodPortion[portions.length];
+        for (int i = 0; i < portions.length; i++) {
+            profiled[i] = new FoodPortion(resolve(portions[i].getFoodItem(), profileName),
+                portions[i].getPortionKg(), portions[i].getConfidence());
+        }
+        return new Meal(meal.getName(), profiled);
+    }
+
+    /**
+     * Finds a profile by name.
+     *
+     * @return The profile, or null for the global one
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    private Profile profileOf(String profileName) {
+        if (profileName == null || profileName.isBlank()) return null;
+        String key = profileName.trim().toLowerCase(Locale.ROOT);
+        if (key.equals(GLOBAL)) return null;
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            throw new IllegalArgumentException("Unknown region: " + profileName + " (available: " + getProfileNames() + ")");
+        }
+        return profile;
+    }
+
+    /**
+     * The values one region overrides.
+     */
+    private class Profile {
+        /** Indexes of the overridden foods, sorted */
+        final int[] foods;
+        /** Per overridden food, one value per metric ordinal (NaN = global value) */
+        final double[][] values;
+        /** Per overridden food, the FoodItem view handed out to meals */
+        final FoodItem[] views;
+
+        Profile(int[] foods, double[][] values) {
+            this.foods = foods;
+            this.values = values;
+            this.views = new FoodItem[foods.length];
+            for (int k = 0; k < foods.length; k++) {
+                views[k] = new ProfiledFoodItem(this, k);
+            }
+        }
+
+        /**
+         * Gets a value for an overridden food, falling back to the global value.
+         */
+        double perKg(int slot, ImpactMetric metric) {
+            double value = values[slot][metric.ordinal()];
+            return Double.isNaN(value) ? baseColumns[metric.ordinal()][foods[slot]] : value;
+        }
+    }
+
+    /**
+     * A food item whose impact values come from a regional profile. Only the name and
+     * energy content are copied from the global item.
+     */
+    private class ProfiledFoodItem extends FoodItem {
+        private final Profile profile;
+        private final int slot;
+
+        ProfiledFoodItem(Profile profile, int slot) {
+            this.profile = profile;
+            this.slot = slot;
+            FoodItem base = baseItems[profile.foods[slot]];
+            setName(base.getName());
+            setCaloriesPerKg(base.getCaloriesPerKg());
+        }
+
+        @Override
+        public double getCarbonFootprintPerKg() {
+            return profile.perKg(slot, ImpactMetric.CARBON);
+        }
+
+        @Override
+        public double getWaterUsagePerKg() {
+            return profile.perKg(slot, ImpactMetric.WATER);
+        }
+
+        @Override
+        public double getLandUsePerKg() {
+            return profile.perKg(slot, ImpactMetric.LAND);
+        }
+
+        @Override
+        public double getNitrogenFootprint() {
+            return profile.perKg(slot, ImpactMetric.NITROGEN);
+        }
+    }
+}
@@ -1,14 +1,21 @@
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
 import java.io.File;
 
 /**
  * The central class for calculating environmental impacts of meals.
  * 
- *This class serves as the main coordinator between the food database (loaded from CSV), the image analysis service (Gemini AI), and the meal calculation logic.
+ *This class serves as the main coordinator between the food database (loaded from CSV), the food recognition service (Gemini AI and an optional local matcher), and the meal calculation logic.
  * 
  * @author Environmental Impact Calculator Team
  * @version 1.0
@@ -22,17 +29,70 @@ public class EnvironmentalImpactCalculator implements FileOperations {
     private HashMap<String, FoodItem> foodItemDataset;
     
     /**
-     * The image analysis service for AI-powered food recognition.
+     * The food recognition service (remote AI, optionally behind a local first tier).
      */
-    private ImageAnalysis imageAnalysis;
+    private FoodRecognizer recognizer;
+
+    /**
+     * Recent recognition results indexed by perceptual hash, reused for near-duplicate images.
+     */
+    private NearDuplicateCache nearDuplicateCache;
+
+    /**
+     * Recognition results shared with the other server instances (null if not configured).
+     */
+    private SharedRecognitionCache sharedCache;
 
     /**
      * Creates a new EnvironmentalImpactCalculator.
-     * Initializes an empty food database and the image analysis service.
+     * Initializes an empty food database and the default recognition service.
      */
     public EnvironmentalImpactCalculator() {
+        this(createDefaultRecognizer());
+    }
+
+    /**
+     * Creates a new EnvironmentalImpactCalculator that uses the given recognition service.
+     * 
+     * @param recognizer The service used to recognize food in images
+     */
+    public EnvironmentalImpactCalculator(FoodRecognizer recognizer) {
         this.foodItemDataset = new HashMap<>();
-        this.imageAnalysis = new ImageAnalysis("Insert Your Api Key Here");
+        this.recognizer = recognizer;
+        this.nearDuplicateCache = new NearDuplicateCache(
+            AppConfig.getInt("cache.nearDuplicate.capacity", 10_000),
+            AppConfig.getInt("cache.nearDuplicate.maxDistance", 4));
+        try {
+            this.sharedCache = SharedRecognitionCache.fromConfig();
+        } catch (IOException e) {
+            System.out.println("Shared recognition cache disabled: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the default recognizer: the Gemini service, with a local reference-image
+     * matcher in front of it when a reference set is available.
+     * 
+     * @return The recognizer to use
+     */
+    private static FoodRecognizer createDefaultRecognizer() {
+        FoodRecognizer remote = new ImageAnalysis(AppConfig.getString("gemini.apiKey", "Insert Your Api Key Here"));
+
+        String labelsFile = AppConfig.getString("local.referenceLabels", "reference-images/labels.csv");
+        if (!new File(labelsFile).exists()) {
+            return remote;
+        }
+
+        LocalFoodRecognizer local = new LocalFoodRecognizer(AppConfig.getInt("local.maxDistance", 6));
+        try {
+            local.loadFromFile(labelsFile);
+        } catch (IOException e) {
+            System.out.println("Could not load local reference images: " + e.getMessage());
+            return remote;
+        }
+        return new TieredFoodRecognizer(local, remote,
+            AppConfig.getInt("local.maxDistance", 6),
+            AppConfig.getInt("local.fallbackDistance", 12));
     }
 
     /**
@@ -50,6 +110,75 @@ public class EnvironmentalImpactCalculator implements FileOperations {
         }
     }
 
+    /**
+     * Gets all food items in the database.
+     * @return A read-only view of the food items
+     */
+    public Collection<FoodItem> getFoodItems() {
+        return Collections.unmodifiableCollection(foodItemDataset.values());
+    }
+
+    /**
+     * Gets the service used for food recognition.
+     * @return The FoodRecognizer instance
+     */
+    public FoodRecognizer getRecognizer() {
+        return recognizer;
+    }
+
+    /**
+     * Gets the cache of recognition results for near-duplicate images.
+     * @return The NearDuplicateCache instance
+     */
+    public NearDuplicateCache getNearDuplicateCache() {
+        return nearDuplicateCache;
+    }
+
+    /**
+     * Gets the cache shared with other server instances.
+     * 
+     * @return The shared cache, or null if none is configured
+     */
+    public SharedRecognitionCache getSharedCache() {
+        return sharedCache;
+    }
+
+    /**
+     * Looks up a result another instance (or this one) already shared. A hit is also kept
+     * in the near-duplicate cache. Failures to reach the shared cache count as a miss.
+     * 
+     * @param hash The perceptual hash of the image
+     * @return The recognition JSON, or null if not shared or no shared cache is configured
+     */
+    private String findSharedResult(long hash) {
+        if (sharedCache == null) return null;
+        try {
+            String json = sharedCache.get(hash);
+            if (json != null) {
+                nearDuplicateCache.put(hash, json);
+            }
+            return json;
+        } catch (IOException e) {
+            System.out.println("Shared recognition cache unavailable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Shares a new recognition result with the other instances.
+     * 
+     * @param hash The perceptual hash of the image
+     * @param json The recognition JSON
+     */
+    private void shareResult(long hash, String json) {
+        if (sharedCache == null) return;
+        try {
+            sharedCache.put(hash, json);
+        } catch (IOException e) {
+            System.out.println("Could not share recognition result: " + e.getMessage());
+        }
+    }
+
     /**
      * Loads food items and their environmental data from our CSV file.
      * 
@@ -88,6 +217,16 @@ public class EnvironmentalImpactCalculator implements FileOperations {
                     double nitrogenFootprint = Double.parseDouble(parts[10]);
 
                     FoodItem foodItem = new FoodItem(name, carbonFootprintPerKg, waterUsagePerKg, landUsePerKg, nitrogenFootprint);
+
+                    // The CSV has no energy column, but ghg_kg / ghg_1000kcal gives thousands of kcal per kg
+                    try {
+                        double carbonPer1000Kcal = Double.parseDouble(parts[3]);
+                        if (carbonPer1000Kcal > 0) {
+                            foodItem.setCaloriesPerKg(carbonFootprintPerKg / carbonPer1000Kcal * 1000);
+                        }
+                    } catch (NumberFormatException e) {
+                        // leave calories unknown
+                    }
                     foodItemDataset.put(name, foodItem);
                 } catch (NumberFormatException e) {
                     System.out.println("Skipping line with invalid number format: " + parts[0]);
@@ -97,6 +236,9 @@ public class EnvironmentalImpactCalculator implements FileOperations {
             System.out.println("Error reading file: " + e.getMessage());
             throw e;
         }
+
+        // Let the recognizer restrict its answers to the foods we can look up
+        recognizer.setCanonicalNames(foodItemDataset.keySet());
     }
 
     /**
@@ -108,12 +250,16 @@ public class EnvironmentalImpactCalculator implements FileOperations {
      */
     public Meal createMealFromImage(String imagePath) throws IOException {
         System.out.println("Analyzing image from path: " + imagePath);
-        String jsonResult = imageAnalysis.analyzeImage(imagePath);
-        return parseMealFromJson(jsonResult);
+        Path path = Paths.get(imagePath);
+        String mimeType = Files.probeContentType(path);
+        if (mimeType == null) mimeType = "image/jpeg"; // Default fallback
+        return createMealFromImage(Files.readAllBytes(path), mimeType);
     }
     
     /**
-     * Analyzes a food image and creates a Meal object.
+     * Analyzes a food image and creates a Meal object, on the calling thread.
+     * The caches are used the same way as by ImageAnalysisPipeline, which runs these
+     * steps for the server.
      * 
      * @param imageBytes The image data
      * @param mimeType The MIME type of the image (png, jpg, etc.)
@@ -122,56 +268,142 @@ public class EnvironmentalImpactCalculator implements FileOperations {
      */
     public Meal createMealFromImage(byte[] imageBytes, String mimeType) throws IOException {
         System.out.println("Analyzing uploaded image (" + imageBytes.length + " bytes)...");
-        String jsonResult = imageAnalysis.analyzeImage(imageBytes, mimeType);
+        ByteBuffer image = ByteBuffer.wrap(imageBytes);
+        Long hash = hashOf(image);
+        if (hash != null) {
+            String cached = nearDuplicateCache.lookup(hash);
+            if (cached != null) {
+                System.out.println("Reusing result of a near-duplicate image");
+                return parseMealFromJson(cached);
+            }
+        }
+        return parseMealFromJson(recognize(image, mimeType, hash, FoodRecognizer.NO_DEADLINE));
+    }
+
+    /**
+     * Computes the perceptual hash the caches are keyed by.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @return The hash, or null if ImageIO cannot decode the image (such images skip the caches)
+     */
+    public static Long hashOf(ByteBuffer image) {
+        try {
+            return PerceptualHash.dHash(image);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Recognizes an image that was not in the near-duplicate cache. A result shared by
+     * another instance is used if there is one; otherwise the recognizer is called and a
+     * result from the recognition service is kept in the near-duplicate cache and shared
+     * (local matches are not, see Recognition).
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image
+     * @param hash The image's perceptual hash from hashOf, or null
+     * @param deadlineNanos When the caller stops waiting, from System.nanoTime(), or FoodRecognizer.NO_DEADLINE
+     * @return The recognition JSON
+     * @throws DeadlineExceededException If the deadline passes before recognition finishes
+     * @throws IOException If recognition fails
+     */
+    public String recognize(ByteBuffer image, String mimeType, Long hash, long deadlineNanos) throws IOException {
+        if (hash != null) {
+            String shared = findSharedResult(hash);
+            if (shared != null) {
+                System.out.println("Reusing result shared by another instance");
+                return shared;
+            }
+        }
+        Recognition recognition = recognizer.recognize(image, mimeType, hash, deadlineNanos);
+        String json = recognition.getJson();
+        if (hash != null && !recognition.isLocal()) {
+            nearDuplicateCache.put(hash, json);
+            shareResult(hash, json);
+        }
+        return json;
+    }
+
+    /**
+     * Creates a Meal from recognition JSON, e.g. a result returned by the recognizer or
+     * found in the near-duplicate cache.
+     * 
+     * @param jsonResult The recognition JSON (see FoodRecognizer)
+     * @return A Meal object containing all recognized foods found in the database
+     * @throws IOException If the JSON does not have the expected structure
+     */
+    public Meal createMealFromRecognition(String jsonResult) throws IOException {
         return parseMealFromJson(jsonResult);
     }
 
     /**
-     *Method to clean JSON response from Gemini into a Meal object.
+     * Creates a Meal directly from known food names and portion weights, without image recognition.
+     * 
+     * @param mealName The name of the meal
+     * @param foodNames Canonical food names, matching the database keys
+     * @param portionsKg Portion weight in kg for each food name
+     * @return A Meal object containing the given portions
+     * @throws IllegalArgumentException If a food name is unknown or a portion is negative
      */
-    private Meal parseMealFromJson(String jsonResult) {
-        // Parse the meal name from JSON
-        int mealNameStart = jsonResult.indexOf("\"mealName\": \"") + 13;
-        int mealNameEnd = jsonResult.indexOf("\"", mealNameStart);
-        String mealName = jsonResult.substring(mealNameStart, mealNameEnd);
+    public Meal createMealFromPortions(String mealName, String[] foodNames, double[] portionsKg) {
+        if (foodNames.length != portionsKg.length) {
+            throw new IllegalArgumentException("Each food item needs exactly one portion");
+        }
 
-        // Extract the detected items array
-        int itemsStart = jsonResult.indexOf("\"detectedItems\": [") + 18;
-        int itemsEnd = jsonResult.indexOf("]", itemsStart);
-        String itemsSection = jsonResult.substring(itemsStart, itemsEnd);
+        FoodPortion[] portions = new FoodPortion[foodNames.length];
+        for (int i = 0; i < foodNames.length; i++) {
+            FoodItem foodItem = foodItemDataset.get(foodNames[i]);
+            if (foodItem == null) {
+                throw new IllegalArgumentException("Unknown food item: " + foodNames[i]);
+            }
+            if (!(portionsKg[i] >= 0)) {
+                throw new IllegalArgumentException("Invalid portion for " + foodNames[i] + ": " + portionsKg[i]);
+            }
+            portions[i] = new FoodPortion(foodItem, portionsKg[i]);
+        }
+        return new Meal(mealName, portions);
+    }
+
+    /**
+     * Converts recognition JSON (see FoodRecognizer) into a Meal object.
+     * Items whose canonical name is not in the database are skipped with a warning.
+     * 
+     * @param jsonResult The recognition JSON
+     * @return The meal
+     * @throws IOException If the JSON does not have the expected structure
+     */
+    private Meal parseMealFromJson(String jsonResult) throws IOException {
+        Map<String, Object> result;
+        try {
+            result = SimpleJson.parseObject(jsonResult);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid recognition result: " + e.getMessage());
+        }
+        String mealName = result.get("mealName") instanceof String ? (String) result.get("mealName") : "Meal";
+        List<?> items = result.get("detectedItems") instanceof List ? (List<?>) result.get("detectedItems") : List.of();
 
-        // Process items
         List<FoodPortion> portions = new ArrayList<>();
-        
-        if (!itemsSection.trim().isEmpty()) {
-            // Split into individual item JSON objects
-            String[] items = itemsSection.split("\\},");
-
-            for (String item : items) {
-                // Extract the original label (what the AI saw)
-                int originalLabelStart = item.indexOf("\"originalLabel\": \"") + 18;
-                int originalLabelEnd = item.indexOf("\"", originalLabelStart);
-                String originalLabel = item.substring(originalLabelStart, originalLabelEnd);
-                
-                // Extract the canonical name (matched to our database)
-                int nameStart = item.indexOf("\"canonicalName\": \"") + 18;
-                int nameEnd = item.indexOf("\"", nameStart);
-                String canonicalName = item.substring(nameStart, nameEnd);
-                
-                // Extract the portion weight in kg
-                int portionStart = item.indexOf("\"portionKg\": ") + 13;
-                int portionEnd = item.indexOf(",", portionStart);
-                double portionKg = Double.parseDouble(item.substring(portionStart, portionEnd).trim());
-                
-                // Look up the FoodItem in our database
-                FoodItem foodItem = this.getFoodItem(canonicalName);
-                
-                // If found, create a FoodPortion
-                if (foodItem != null) {
-                    portions.add(new FoodPortion(foodItem, portionKg));
-                } else {
-                    System.out.println("Warning: " + originalLabel + " not found in database");
-                }
+        for (Object value : items) {
+            if (!(value instanceof Map)) continue;
+            Map<?, ?> item = (Map<?, ?>) value;
+            Object canonicalName = item.get("canonicalName");
+            Object originalLabel = item.get("originalLabel");
+            if (!(canonicalName instanceof String) || !(item.get("portionKg") instanceof Double)) {
+                System.out.println("Warning: skipping malformed item " + item);
+                continue;
+            }
+            double portionKg = (Double) item.get("portionKg");
+            // A missing confidence is treated as certain
+            double confidence = item.get("confidence") instanceof Double
+                ? Math.max(0, Math.min(1, (Double) item.get("confidence"))) : 1.0;
+
+            // Look up the FoodItem in our database
+            FoodItem foodItem = this.getFoodItem((String) canonicalName);
+            if (foodItem != null && portionKg >= 0) {
+                portions.add(new FoodPortion(foodItem, portionKg, confidence));
+            } else {
+                System.out.println("Warning: " + (originalLabel != null ? originalLabel : canonicalName) + " not found in database");
             }
         }
 
@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared recognition cache kept as files in one directory, for instances on the same
+ * host or with a shared volume, and for testing multi-instance setups without a network.
+ *
+ * Each result is stored in its own file named after the image hash, spread over 256
+ * subdirectories by the first two hex digits. Files are written to a temporary name and
+ * then renamed, so a reader never sees a partly written result. Nothing is evicted; the
+ * directory can be cleared while instances are running.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class FileRecognitionCache implements SharedRecognitionCache {
+
+    /** Directory holding the cached results */
+    private final Path directory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Opens (and if needed creates) a cache directory.
+     *
+     * @param directory The directory shared by all instances
+     * @throws IOException If the directory cannot be created
+     */
+    public FileRecognitionCache(File directory) throws IOException {
+        this.directory = directory.toPath();
+        Files.createDirectories(this.directory);
+        System.out.println("Sharing recognition results through " + directory.getAbsolutePath());
+    }
+
+    /**
+     * Gets the file that holds an image's result.
+     */
+    private Path fileOf(long imageHash) {
+        String key = SharedRecognitionCache.keyOf(imageHash);
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".json");
+    }
+
+    @Override
+    public String get(long imageHash) throws IOException {
+        try {
+            String json = new String(Files.readAllBytes(fileOf(imageHash)), StandardCharsets.UTF_8);
+            hits.incrementAndGet();
+            return json;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    @Override
+    public void put(long imageHash, String json) throws IOException {
+        Path file = fileOf(imageHash);
+        Files.createDirectories(file.getParent());
+        Path temporary = Files.createTempFile(file.getParent(), "result", ".tmp");
+        try {
+            Files.write(temporary, json.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            writes.incrementAndGet();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public String getMetricsJson() {
+        return "{\"type\": \"file\", \"hits\": " + hits.get() + ", \"misses\": " + misses.get()
+            + ", \"writes\": " + writes.get() + "}";
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Broad food groups used to suggest sensible substitutions.
+ * 
+ * The Clark et al. dataset has no category column, so foods are grouped by keywords
+ * in their names. Foods are only suggested as substitutes for foods in the same
+ * substitution group (e.g. any protein for any other protein, but not fruit for meat).
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public enum FoodCategory {
+
+    RED_MEAT("protein"),
+    POULTRY("protein"),
+    FISH_AND_SEAFOOD("protein"),
+    EGGS("protein"),
+    PLANT_PROTEIN("protein"),
+    DAIRY_AND_ALTERNATIVES("dairy"),
+    GRAINS_AND_STARCHES("staple"),
+    VEGETABLES("vegetable"),
+    FRUIT("fruit"),
+    FATS_AND_OILS("fat"),
+    DRINKS("drink"),
+    SWEETS_AND_SNACKS("snack"),
+    PREPARED_MEALS("prepared"),
+    OTHER("other");
+
+    /**
+     * Keywords for each category. Rows are checked in order and the first match wins,
+     * so more specific rows come first (e.g. "Peanut butter" is a plant protein, not a fat).
+     * A keyword only matches at the start of a word, so "nut" matches "Brazil nuts" but not "Doughnuts".
+     */
+    private static final Object[][] KEYWORDS = {
+        {DRINKS, "coffee", "tea", "beer", "wine", "ale", "cider", "juice", "smoothie", "protein shake"},
+        {PREPARED_MEALS, "curry", "pizza", "vegetable lasagne", "pie", "risotto", "moussaka", "hotpot", "casserole",
+            "bolognese", "chilli", "quiche", "beef noodles", "chicken noodles", "chicken pasta", "salad",
+            "fishcakes", "fish fingers", "sausage rolls", "meatballs", "macaroni"},
+        {SWEETS_AND_SNACKS, "chocolate", "cake", "cheesecake", "biscuit", "cookie", "doughnut", "muffin", "flapjack",
+            "ice cream", "dairy-free ice cream", "ice lollies", "jam", "marmalade", "sugar", "crisps", "popcorn",
+            "prawn crackers", "cracker", "pancake", "croissant", "pain au", "protein bar", "cereal bars",
+            "shortbread", "ketchup", "banana loaf"},
+        {DAIRY_AND_ALTERNATIVES, "milk", "cheese", "yoghurt", "dairy-free", "soy desert", "halloumi", "brie",
+            "camembert", "mozzarella", "parmesan", "feta", "ricotta"},
+        {PLANT_PROTEIN, "meat-free", "vegan", "tofu", "falafel", "beans", "lentil", "chickpea", "garden peas", "nut",
+            "peanut", "almond", "walnut", "seeds", "brazil", "cashew", "pecan"},
+        {FATS_AND_OILS, "oil", "butter"},
+        {RED_MEAT, "beef", "lamb", "pork", "bacon", "steak"},
+        {POULTRY, "chicken", "turkey"},
+        {FISH_AND_SEAFOOD, "salmon", "tuna", "cod", "prawn", "haddock", "mackerel", "fish"},
+        {GRAINS_AND_STARCHES, "rice", "bread", "bagel", "baguette", "naan", "pitta", "tortilla", "spaghetti", "penne",
+            "pasta", "lasagne", "noodles", "couscous", "quinoa", "porridge", "muesli", "granola", "cereal", "potato",
+            "chips", "croquette", "poppadom", "sweetcorn"},
+        {EGGS, "egg"},
+        {VEGETABLES, "broccoli", "carrot", "tomato", "lettuce", "spinach", "onion", "pepper", "cabbage", "kale",
+            "asparagus", "beetroot", "cauliflower", "courgette", "cucumber", "mushroom", "parsnip"},
+        {FRUIT, "apple", "banana", "orange", "grape", "strawberr", "raspberr", "pineapple", "melon", "watermelon",
+            "kiwi", "lemon", "lime", "pear", "apricot", "avocado"},
+    };
+
+    /** Foods are only substituted within the same group */
+    private final String substitutionGroup;
+
+    /**
+     * Creates a category in the given substitution group.
+     */
+    FoodCategory(String substitutionGroup) {
+        this.substitutionGroup = substitutionGroup;
+    }
+
+    /**
+     * Gets the substitution group: categories in the same group can replace each other.
+     * @return The group name (e.g. "protein")
+     */
+    public String getSubstitutionGroup() {
+        return substitutionGroup;
+    }
+
+    /**
+     * Guesses the category of a food from its name.
+     * 
+     * @param foodName The food name (e.g. "Beef burger")
+     * @return The category, or OTHER if no keyword matches
+     */
+    public static FoodCategory classify(String foodName) {
+        String name = foodName.toLowerCase();
+        for (Object[] row : KEYWORDS) {
+            for (int i = 1; i < row.length; i++) {
+                if (containsWord(name, (String) row[i])) {
+                    return (FoodCategory) row[0];
+                }
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * Checks whether a keyword appears in a name at the start of a word.
+     */
+    private static boolean containsWord(String name, String keyword) {
+        int index = name.indexOf(keyword);
+        while (index >= 0) {
+            if (index == 0 || !Character.isLetter(name.charAt(index - 1))) {
+                return true;
+            }
+            index = name.indexOf(keyword, index + 1);
+        }
+        return false;
+    }
+}
@@ -9,6 +9,7 @@
  *   Water usage (liters per kg)
  *   Land use (square meters per kg)
  *   Nitrogen footprint/eutrophication (grams N per kg)
+ *   Energy content (kcal per kg), used for meal planning
  * 
  * @author Environmental Impact Calculator Team
  * @version 1.0
@@ -29,6 +30,9 @@ public class FoodItem implements InterfaceFoodItem {
     
     /** Nitrogen footprint (eutrophication) in grams per kg of food */
     private double nitrogenFootprint;
+    
+    /** Energy content in kilocalories per kg of food (0 if unknown) */
+    private double caloriesPerKg;
 
     /**
      * Creates a new FoodItem with all environmental metrics specified.
@@ -103,14 +107,25 @@ public class FoodItem implements InterfaceFoodItem {
         this.nitrogenFootprint = nitrogenFootprint;
     }
 
+    @Override
+    public double getCaloriesPerKg() {
+        return caloriesPerKg;
+    }
+
+    @Override
+    public void setCaloriesPerKg(double caloriesPerKg) {
+        this.caloriesPerKg = caloriesPerKg;
+    }
+
     @Override
     public String toString() {
         return "FoodItem{" +
-                "name='" + name + '\'' +
-                ", carbonFootprintPerKg=" + carbonFootprintPerKg +
-                ", waterUsagePerKg=" + waterUsagePerKg +
-                ", landUsePerKg=" + landUsePerKg +
-                ", nitrogenFootprint=" + nitrogenFootprint +
+                "name='" + getName() + '\'' +
+                ", carbonFootprintPerKg=" + getCarbonFootprintPerKg() +
+                ", waterUsagePerKg=" + getWaterUsagePerKg() +
+                ", landUsePerKg=" + getLandUsePerKg() +
+                ", nitrogenFootprint=" + getNitrogenFootprint() +
+                ", caloriesPerKg=" + caloriesPerKg +
                 '}';
     }
 }
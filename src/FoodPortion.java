@@ -16,6 +16,9 @@ public class FoodPortion {
     /** The weight of this portion in kilograms */
     private double portionKg;
 
+    /** How sure the recognizer was that this is the right food, from 0 to 1 */
+    private double confidence = 1.0;
+
     /**
      * Creates a new FoodPortion with a specified food item and weight.
      * 
@@ -27,6 +30,19 @@ public class FoodPortion {
         this.portionKg = portionKg;
     }
 
+    /**
+     * Creates a new FoodPortion for a recognized food, keeping the recognizer's confidence.
+     * 
+     * @param foodItem The food item containing per-kg environmental data
+     * @param portionKg The weight of this portion in kilograms
+     * @param confidence How sure the recognizer was that this is the right food, from 0 to 1
+     */
+    public FoodPortion(FoodItem foodItem, double portionKg, double confidence) {
+        this.foodItem = foodItem;
+        this.portionKg = portionKg;
+        this.confidence = confidence;
+    }
+
     /**
      * Gets the food item associated with this portion.
      * @return The FoodItem object
@@ -59,6 +75,22 @@ public class FoodPortion {
         this.portionKg = portionKg;
     }
 
+    /**
+     * Gets how sure the recognizer was that this is the right food.
+     * @return Confidence from 0 to 1 (1 for portions entered by hand)
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Sets how sure the recognizer was that this is the right food.
+     * @param confidence Confidence from 0 to 1
+     */
+    public void setConfidence(double confidence) {
+        this.confidence = confidence;
+    }
+
     /**
      * Calculates the carbon footprint for this specific portion.
      * 
@@ -98,6 +130,7 @@ public class FoodPortion {
         return "FoodPortion{" +
                 "foodItem=" + foodItem.getName() +
                 ", portionKg=" + portionKg +
+                ", confidence=" + confidence +
                 '}';
     }
 }
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Interface for services that recognize the food items in a meal image.
+ * 
+ * Implementations return JSON in the format produced by the Gemini prompt: a "mealName"
+ * and a "detectedItems" array whose entries have "originalLabel", "canonicalName",
+ * "portionKg" and "confidence" fields.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public interface FoodRecognizer {
+
+    /** Deadline value meaning the caller waits for as long as recognition takes */
+    long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Analyzes a food image from a file path.
+     * 
+     * @param imagePath Path to the image file
+     * @return JSON string with detected food items and portions
+     * @throws IOException If the image cannot be read or recognition fails
+     */
+    default String analyzeImage(String imagePath) throws IOException {
+        byte[] imageBytes = Files.readAllBytes(Paths.get(imagePath));
+        String mimeType = Files.probeContentType(Paths.get(imagePath));
+        if (mimeType == null) mimeType = "image/jpeg"; // Default fallback
+
+        return analyzeImage(imageBytes, mimeType);
+    }
+
+    /**
+     * Analyzes a food image given as raw bytes.
+     * 
+     * @param imageBytes The raw image data in bytes
+     * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
+     * @return JSON string with detected food items and portions
+     * @throws IOException If recognition fails
+     */
+    String analyzeImage(byte[] imageBytes, String mimeType) throws IOException;
+
+    /**
+     * Analyzes a food image held in a buffer, such as an upload in a pooled direct buffer.
+     * The default copies the image to a byte array; implementations that can read the
+     * buffer directly should override it.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
+     * @return JSON string with detected food items and portions
+     * @throws IOException If recognition fails
+     */
+    default String analyzeImage(ByteBuffer image, String mimeType) throws IOException {
+        byte[] imageBytes = new byte[image.remaining()];
+        image.duplicate().get(imageBytes);
+        return analyzeImage(imageBytes, mimeType);
+    }
+
+    /**
+     * Analyzes a food image whose perceptual hash the caller has already computed, so that
+     * recognizers matching on the hash do not decode and hash the image again, within the
+     * time the caller is willing to wait. The default ignores both the hash and the deadline.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
+     * @param imageHash The image's perceptual hash (see PerceptualHash), or null if it could not be decoded
+     * @param deadlineNanos When the caller stops waiting, from System.nanoTime(), or NO_DEADLINE
+     * @return JSON string with detected food items and portions
+     * @throws DeadlineExceededException If the deadline passes before recognition finishes
+     * @throws IOException If recognition fails
+     */
+    default String analyzeImage(ByteBuffer image, String mimeType, Long imageHash, long deadlineNanos) throws IOException {
+        return analyzeImage(image, mimeType);
+    }
+
+    /**
+     * Recognizes an image like {@link #analyzeImage(ByteBuffer, String, Long, long)}, and
+     * reports whether the result was matched locally, so callers only cache and share
+     * results from a recognition service. The default reports every result as coming
+     * from a service; recognizers that match locally override it.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
+     * @param imageHash The image's perceptual hash (see PerceptualHash), or null if it could not be decoded
+     * @param deadlineNanos When the caller stops waiting, from System.nanoTime(), or NO_DEADLINE
+     * @return The recognition JSON and where it came from
+     * @throws DeadlineExceededException If the deadline passes before recognition finishes
+     * @throws IOException If recognition fails
+     */
+    default Recognition recognize(ByteBuffer image, String mimeType, Long imageHash, long deadlineNanos) throws IOException {
+        return new Recognition(analyzeImage(image, mimeType, imageHash, deadlineNanos), false);
+    }
+
+    /**
+     * Tells the recognizer which canonical food names it may return. Recognizers that
+     * do not need the list (e.g. ones that only return names they were given) ignore it.
+     * 
+     * @param names The canonical names, normally every food in the loaded dataset
+     */
+    default void setCanonicalNames(Collection<String> names) {
+    }
+
+    /**
+     * Runs the recognizer's own request and response handling on synthetic data, without
+     * calling any external service, so that the JIT has compiled it before real traffic
+     * arrives. Recognizers with nothing worth warming up ignore it.
+     * 
+     * @param iterations How many synthetic requests to process
+     * @throws IOException If the synthetic data cannot be processed
+     */
+    default void warmUp(int iterations) throws IOException {
+    }
+
+    /**
+     * Reports this recognizer's operational metrics.
+     * @return JSON object with the current metrics
+     */
+    String getMetricsJson();
+}
@@ -1,10 +1,33 @@
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
 import java.net.http.HttpResponse;
 import java.net.URI;
 
@@ -16,83 +39,108 @@ import java.net.URI;
  * @author Environmental Impact Calculator Team
  * @version 1.0
  */
-public class ImageAnalysis {
+public class ImageAnalysis implements FoodRecognizer {
     
     /** API key for authenticating with Google's Gemini API */
     private String apiKey;
 
+    /** Shared HTTP client, reused so connections are kept alive between calls */
+    private final HttpClient client;
+
+    /** Keeps the call rate under the API quota */
+    private final TokenBucketRateLimiter rateLimiter;
+
+    /** Limits the number of concurrent calls based on observed latency and quota errors */
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    /** Longest time a request may wait for a rate or concurrency permit, in milliseconds */
+    private final long queueTimeoutMs;
+
+    /** Longest time a single API call may take, in milliseconds */
+    private final long requestTimeoutMs;
+
+    /** Decides how often and how long to back off before retrying a failed call */
+    private final RetryPolicy retryPolicy;
+
+    /** Fails fast while the API is unhealthy */
+    private final CircuitBreaker circuitBreaker;
+
+    /** Recent API latencies, used for the hedging delay and reported in metrics */
+    private final LatencyTracker latencyTracker;
+
+    /** Whether a second (hedged) call is sent when the first is slower than the p95 latency */
+    private final boolean hedgingEnabled;
+
+    /** Runs API calls when hedging, so the first response can be taken */
+    private final ExecutorService hedgeExecutor;
+
+    /** Recent results keyed by image hash, served while the circuit breaker is open */
+    private final Map<String, String> recentResults;
+
+    /** Number of hedged calls sent */
+    private final AtomicLong hedgesSent = new AtomicLong();
+
+    /** Number of hedged calls that answered before the original call */
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /** Number of retries performed */
+    private final AtomicLong retries = new AtomicLong();
+
+    /** Number of results served from the recent results cache because the API was unavailable */
+    private final AtomicLong cacheFallbacks = new AtomicLong();
+
+    /** Prompt tokens used by successful calls, as reported by the API */
+    private final AtomicLong promptTokens = new AtomicLong();
+
+    /** Response tokens used by successful calls, as reported by the API */
+    private final AtomicLong responseTokens = new AtomicLong();
+
+    /**
+     * The request body up to the image's MIME type. It holds the instructions and
+     * response schema, which only change when the canonical names do.
+     */
+    private volatile byte[] requestPrefix = buildRequestPrefix(List.of()).getBytes(StandardCharsets.UTF_8);
+
+    /** Pooled direct buffers for request and response bodies */
+    private final BufferPool bufferPool = BufferPool.getDefault();
+
+    /** Fewest latency samples needed before hedging starts */
+    private static final int MIN_SAMPLES_FOR_HEDGING = 20;
+
     /** The Gemini API endpoint URL */
     private static final String GEMINI_API_URL = 
         "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash:generateContent";
 
-    /** System prompt with instructions for the AI on how to analyze food images */
-    private static final String SYSTEM_PROMPT = """
-        You are an expert food recognition system specialized in analyzing meal images for environmental impact calculation.
-
-        **YOUR TASK:**
-        1. Analyze the uploaded image and identify all visible food items
-        2. Match each detected food to its closest canonical name from the provided database
-        3. Estimate portion sizes in kilograms (kg) based on visual cues
-        4. Provide confidence scores for your detections
-
-        **CANONICAL NAME MATCHING RULES:**
-        - You MUST match detected foods to names from this list (these are the exact keys in our database):
-          [Beef burger, Beef steak, Beef mince, Chicken breast, Chicken thighs, Chicken wings, Pork chops, Pork sausages, Lamb chops, Salmon, Tuna, Prawns, Cod, Rice, Bread, Pasta shells, Spaghetti, Naan, Potatoes, Beans, Lentils, Chickpeas, Tofu, Eggs, Cow's milk, Cheddar cheese, Butter, Yoghurt, Broccoli, Carrots, Tomatoes, Lettuce, Spinach, Onions, Peppers, Cabbage, Apples, Bananas, Oranges, Grapes, Strawberries, Pineapple, Olive oil, Sunflower oil, Sugar, Chocolate cake, Ice cream, Biscuits, Coffee beans, Tea, Beer, Wine]
-        - If an exact match is not possible, use the CLOSEST available canonical name
-        - If no reasonable match exists, use "other" and explain in notes
-
-        **PORTION ESTIMATION GUIDELINES:**
-        - Small portion: 0.05 - 0.1 kg (50-100g)
-        - Medium portion: 0.1 - 0.2 kg (100-200g)
-        - Large portion: 0.2 - 0.4 kg (200-400g)
-        - Use visual references (plate size, utensil comparison) to estimate
-        - For liquids, estimate volume then convert (1L water ≈ 1kg)
-
-        **CONFIDENCE SCORING:**
-        - 0.9 - 1.0: Clear image, definite identification
-        - 0.7 - 0.9: Good visibility, high certainty
-        - 0.5 - 0.7: Partial visibility or some ambiguity
-        - 0.3 - 0.5: Poor visibility, educated guess
-        - 0.0 - 0.3: Very uncertain, likely incorrect
-
-        **RESPONSE FORMAT:**
-        Return ONLY valid JSON. No markdown, no explanations, no comments.
-
-        {
-          "mealName": "string (descriptive name for the overall meal)",
-          "analysisTimestamp": "ISO 8601 timestamp",
-          "detectedItems": [
-            {
-              "originalLabel": "string (what you see in the image)",
-              "canonicalName": "string (MUST match database key exactly)",
-              "portionKg": number (decimal, e.g., 0.15 for 150g),
-              "confidence": number (0.0 to 1.0),
-              "visualNotes": "string (brief description of what helped identification)"
-            }
-          ],
-          "overallConfidence": number (0.0 to 1.0),
-          "imageQuality": "excellent | good | fair | poor",
-          "warnings": ["array of strings for any issues or uncertainties"],
-          "unidentifiedItems": ["array of items seen but not matched to database"]
-        }
-
-        **SPECIAL CASES:**
-        - Mixed dishes (e.g., curry, stew): Break down into visible components
-        - Sauces/condiments: Include if substantial, otherwise note in warnings
-        - Garnishes: Only include if they contribute significant mass
-        - Processed foods: Match to closest base ingredient
-
-        **IF NO FOOD DETECTED:**
-        {
-          "mealName": "No meal detected",
-          "analysisTimestamp": "ISO 8601 timestamp",
-          "detectedItems": [],
-          "overallConfidence": 0.0,
-          "imageQuality": "string",
-          "warnings": ["Reason why no food was detected"],
-          "unidentifiedItems": []
-        }
-      """;
+    /**
+     * Instructions for the model. The response format and the list of canonical names are
+     * not repeated here: they are sent as a response schema, which the API enforces.
+     */
+    private static final String INSTRUCTIONS = """
+        You are a food recognition system analyzing meal images for environmental impact calculation.
+        Identify every visible food item and match it to the closest canonicalName allowed by the schema
+        ("other" if nothing is reasonably close). Break mixed dishes into their visible components and
+        skip garnishes that add little mass.
+        Estimate each portion in kg from visual cues such as plate and utensil size
+        (small 0.05-0.1, medium 0.1-0.2, large 0.2-0.4; for liquids 1 L is about 1 kg).
+        Give a confidence from 0 to 1 for each item: above 0.9 for a clear, definite identification,
+        around 0.6 for partial visibility or ambiguity, below 0.3 for a guess.
+        If there is no food in the image, return mealName "No meal detected" and no items.
+        """;
+
+    /** The request body between the MIME type and the Base64 image */
+    private static final byte[] DATA_FIELD = ", \"data\": \"".getBytes(StandardCharsets.UTF_8);
+
+    /** The end of the request body, after the Base64 image */
+    private static final byte[] REQUEST_SUFFIX = "\"}}]}]}".getBytes(StandardCharsets.UTF_8);
+
+    /** Largest slice handed to the HTTP client at once when sending a request body */
+    private static final int PUBLISH_CHUNK = 64 * 1024;
+
+    /** Initial size of the pooled buffer a response body is read into; it grows as needed */
+    private static final int RESPONSE_BUFFER_BYTES = 16 * 1024;
+
+    /** Fields requested for each detected item, in the order the model should produce them */
+    private static final String[] ITEM_FIELDS = {"originalLabel", "canonicalName", "portionKg", "confidence"};
 
     /**
      * Creates a new ImageAnalysis instance.
@@ -100,113 +148,771 @@ public class ImageAnalysis {
      * @param apiKey The Gemini API key for authentication
      */
     public ImageAnalysis(String apiKey) {
-        this.apiKey = apiKey;
+        this(apiKey,
+            new TokenBucketRateLimiter(
+                AppConfig.getDouble("gemini.rate.permitsPerSecond", 0.25),
+                AppConfig.getDouble("gemini.rate.burst", 5)),
+            new AdaptiveConcurrencyLimiter(
+                AppConfig.getInt("gemini.concurrency.initial", 4),
+                AppConfig.getInt("gemini.concurrency.min", 1),
+                AppConfig.getInt("gemini.concurrency.max", 16),
+                AppConfig.getDouble("gemini.concurrency.latencyTolerance", 2.0)),
+            AppConfig.getLong("gemini.queue.timeoutMs", 10_000));
     }
 
     /**
-     * Analyzes a food image from a file path and returns JSON with detected items.
-     * 
-     * @param imagePath Path to the image file
-     * @return JSON string with detected food items, portions, and confidence scores
-     * @throws IOException If the image cannot be read or the API request fails
+     * Creates a new ImageAnalysis instance with explicit limiters.
+     *
+     * @param apiKey The Gemini API key for authentication
+     * @param rateLimiter Limits the rate of calls to the API
+     * @param concurrencyLimiter Limits the number of concurrent calls to the API
+     * @param queueTimeoutMs Longest time a request may wait for a permit, in milliseconds
      */
-    public String analyzeImage(String imagePath) throws IOException {
-        byte[] imageBytes = Files.readAllBytes(Paths.get(imagePath));
-        String mimeType = Files.probeContentType(Paths.get(imagePath));
-        if (mimeType == null) mimeType = "image/jpeg"; // Default fallback
-        
-        return analyzeImage(imageBytes, mimeType);
+    public ImageAnalysis(String apiKey, TokenBucketRateLimiter rateLimiter,
+                         AdaptiveConcurrencyLimiter concurrencyLimiter, long queueTimeoutMs) {
+        this.apiKey = apiKey;
+        this.client = HttpClient.newHttpClient();
+        this.rateLimiter = rateLimiter;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.requestTimeoutMs = AppConfig.getLong("gemini.requestTimeoutMs", 30_000);
+        this.retryPolicy = new RetryPolicy(
+            AppConfig.getInt("gemini.retry.maxAttempts", 3),
+            AppConfig.getLong("gemini.retry.baseDelayMs", 500),
+            AppConfig.getLong("gemini.retry.maxDelayMs", 8_000));
+        this.circuitBreaker = new CircuitBreaker(
+            AppConfig.getInt("gemini.breaker.failureThreshold", 5),
+            AppConfig.getLong("gemini.breaker.openMs", 30_000));
+        this.latencyTracker = new LatencyTracker(1024);
+        this.hedgingEnabled = AppConfig.getBoolean("gemini.hedge.enabled", false);
+        this.hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "gemini-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int cacheEntries = AppConfig.getInt("gemini.cache.entries", 256);
+        this.recentResults = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheEntries;
+            }
+        };
     }
-    
+
     /**
      * Analyzes a food image from a byte array definition and returns JSON.
      * 
      * @param imageBytes The raw image data in bytes
      * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
      * @return JSON string with detected food items, portions, and confidence scores
+     * @throws RecognitionUnavailableException If the service is unavailable and no cached result exists
      * @throws IOException If the API request fails
      */
+    @Override
     public String analyzeImage(byte[] imageBytes, String mimeType) throws IOException {
-        // Encode the image to Base64
-        String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-
-        // Build the JSON request
-        String jsonRequest = String.format("""
-            {
-              "contents": [{
-                "parts": [
-                  {"text": %s},
-                  {
-                    "inline_data": {
-                      "mime_type": "%s",
-                      "data": "%s"
+        return analyzeImage(ByteBuffer.wrap(imageBytes), mimeType);
+    }
+
+    /**
+     * Analyzes a food image held in a buffer and returns JSON, taking as long as it takes.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
+     * @return JSON string with detected food items, portions, and confidence scores
+     * @throws RecognitionUnavailableException If the service is unavailable and no cached result exists
+     * @throws IOException If the API request fails
+     */
+    @Override
+    public String analyzeImage(ByteBuffer image, String mimeType) throws IOException {
+        return analyzeImage(image, mimeType, null, NO_DEADLINE);
+    }
+
+    /**
+     * Analyzes a food image held in a buffer and returns JSON.
+     * 
+     * Failed calls are retried with jittered exponential backoff. While the API is
+     * unhealthy the circuit breaker fails fast, serving the previous result for the same
+     * image if there is one.
+     * 
+     * The deadline bounds the whole call: the wait for a permit, each request's timeout,
+     * and the retries, which stop once the backoff would not leave time for another attempt.
+     * 
+     * The request body is Base64-encoded straight from the image buffer into a pooled
+     * direct buffer, so no copy of the image is made on the heap.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image (e.g., "image/jpeg", "image/png")
+     * @param perceptualHash Not used; results are cached by the exact bytes of the image
+     * @param deadlineNanos When the caller stops waiting, from System.nanoTime(), or NO_DEADLINE
+     * @return JSON string with detected food items, portions, and confidence scores
+     * @throws RecognitionUnavailableException If the service is unavailable and no cached result exists
+     * @throws DeadlineExceededException If the deadline passes first
+     * @throws IOException If the API request fails
+     */
+    @Override
+    public String analyzeImage(ByteBuffer image, String mimeType, Long perceptualHash, long deadlineNanos) throws IOException {
+        String imageHash = sha256(image);
+        if (!circuitBreaker.allowRequest()) {
+            String cached = cachedResult(imageHash);
+            if (cached != null) {
+                return cached;
+            }
+            throw new RecognitionUnavailableException("Recognition service unhealthy, failing fast",
+                circuitBreaker.getRetryAfterSeconds());
+        }
+
+        BufferPool.PooledBuffer body = buildRequestBody(image, mimeType);
+        try {
+            IOException lastError = null;
+            for (int attempt = 1; attempt <= retryPolicy.getMaxAttempts(); attempt++) {
+                try {
+                    String result = fetchHedged(newRequest(body, deadlineNanos), body, deadlineNanos);
+                    circuitBreaker.recordSuccess();
+                    synchronized (recentResults) {
+                        recentResults.put(imageHash, result);
                     }
-                  }
-                ]
-              }]
-            }
-            """,
-            escapeJson(SYSTEM_PROMPT),
-            mimeType,
-            base64Image
-        );
-
-        // Create and send HTTP request
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
+                    return result;
+                } catch (ClientErrorException e) {
+                    // The API answered, so it is healthy; the request itself was rejected
+                    circuitBreaker.recordSuccess();
+                    throw e;
+                } catch (QueueRejectedException | DeadlineExceededException e) {
+                    // Out of permits, quota or time: retrying would only add to the backlog or
+                    // come too late, and none of these says whether the API is healthy
+                    circuitBreaker.recordIgnored();
+                    throw e;
+                } catch (IOException e) {
+                    lastError = e;
+                    System.out.println("Recognition attempt " + attempt + " failed: " + e.getMessage());
+                }
+
+                if (attempt < retryPolicy.getMaxAttempts()) {
+                    long backoffMs = retryPolicy.backoffMs(attempt);
+                    if (remainingNanos(deadlineNanos) <= TimeUnit.MILLISECONDS.toNanos(backoffMs)) {
+                        // Another attempt could not start before the caller stops waiting
+                        break;
+                    }
+                    retries.incrementAndGet();
+                    try {
+                        Thread.sleep(backoffMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        circuitBreaker.recordIgnored();
+                        throw new IOException("Request interrupted", e);
+                    }
+                }
+            }
+
+            circuitBreaker.recordFailure();
+            String cached = cachedResult(imageHash);
+            if (cached != null) {
+                return cached;
+            }
+            throw lastError;
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Builds an API request whose timeout ends no later than the deadline.
+     *
+     * @param body The request body
+     * @param deadlineNanos When the caller stops waiting, or NO_DEADLINE
+     * @return The request
+     * @throws DeadlineExceededException If the deadline has already passed
+     */
+    private HttpRequest newRequest(BufferPool.PooledBuffer body, long deadlineNanos) throws DeadlineExceededException {
+        long timeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(requestTimeoutMs), remainingNanos(deadlineNanos));
+        if (timeoutNanos <= 0) {
+            throw new DeadlineExceededException("Deadline passed before the recognition call was sent");
+        }
+        return HttpRequest.newBuilder()
             .uri(URI.create(GEMINI_API_URL + "?key=" + apiKey))
             .header("Content-Type", "application/json")
-            .POST(HttpRequest.BodyPublishers.ofString(jsonRequest))
+            .timeout(Duration.ofNanos(timeoutNanos))
+            .POST(bodyPublisher(body.contents()))
             .build();
-        
+    }
+
+    /**
+     * Gets the time left until a deadline.
+     *
+     * @param deadlineNanos The deadline from System.nanoTime(), or NO_DEADLINE
+     * @return Nanoseconds left (negative once passed), or Long.MAX_VALUE for NO_DEADLINE
+     */
+    private static long remainingNanos(long deadlineNanos) {
+        return deadlineNanos == NO_DEADLINE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * Writes the JSON request body into a pooled buffer: the precomputed instructions and
+     * schema, then the MIME type and the Base64-encoded image.
+     *
+     * @param image The raw image data; its position is not changed
+     * @param mimeType The MIME type of the image
+     * @return The body; the caller must release it
+     * @throws IOException If encoding fails
+     */
+    private BufferPool.PooledBuffer buildRequestBody(ByteBuffer image, String mimeType) throws IOException {
+        byte[] prefix = requestPrefix;
+        int base64Length = 4 * ((image.remaining() + 2) / 3);
+        BufferPool.PooledBuffer body = bufferPool.acquire(prefix.length + base64Length + 256);
         try {
-            HttpResponse<String> response = client.send(
-                request,
-                HttpResponse.BodyHandlers.ofString()
-            );
+            OutputStream out = body.outputStream();
+            out.write(prefix);
+            out.write(SimpleJson.quote(mimeType).getBytes(StandardCharsets.UTF_8));
+            out.write(DATA_FIELD);
+            // Closing the encoder writes the final padding; it does not release the body
+            try (OutputStream encoder = Base64.getEncoder().wrap(out)) {
+                BufferPool.writeTo(image.duplicate(), encoder);
+            }
+            out.write(REQUEST_SUFFIX);
+            return body;
+        } catch (IOException | RuntimeException e) {
+            body.release();
+            throw e;
+        }
+    }
 
-            String responseBody = response.body();
+    /**
+     * Publishes a buffer as a request body in read-only slices, so the HTTP client can send
+     * it without copying it to a heap array first. Each send (retries and hedges) reads the
+     * buffer from the start.
+     *
+     * @param content The body
+     * @return The body publisher
+     */
+    private static HttpRequest.BodyPublisher bodyPublisher(ByteBuffer content) {
+        return HttpRequest.BodyPublishers.fromPublisher(subscriber -> {
+            ByteBuffer remaining = content.duplicate();
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private boolean done;
 
-            if (response.statusCode() != 200) {
-                throw new IOException("API Error: " + responseBody);
+                @Override
+                public synchronized void request(long n) {
+                    while (n-- > 0 && !done && remaining.hasRemaining()) {
+                        ByteBuffer chunk = remaining.slice();
+                        chunk.limit(Math.min(chunk.remaining(), PUBLISH_CHUNK));
+                        remaining.position(remaining.position() + chunk.remaining());
+                        subscriber.onNext(chunk);
+                    }
+                    if (!done && !remaining.hasRemaining()) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    done = true;
+                }
+            });
+        }, content.remaining());
+    }
+
+    /**
+     * Reads a response body into a pooled direct buffer, instead of collecting its chunks
+     * in heap arrays and joining them, and decodes it once when it is complete. The buffer
+     * goes back to the pool as soon as the text is decoded or the response fails.
+     *
+     * @return The body handler
+     */
+    private HttpResponse.BodyHandler<String> pooledBodyHandler() {
+        return responseInfo -> new HttpResponse.BodySubscriber<String>() {
+            private final CompletableFuture<String> result = new CompletableFuture<>();
+            private BufferPool.PooledBuffer body;
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                body = bufferPool.acquire(RESPONSE_BUFFER_BYTES);
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> chunks) {
+                if (result.isDone()) return;
+                try {
+                    for (ByteBuffer chunk : chunks) {
+                        body.ensureRemaining(chunk.remaining());
+                        body.buffer().put(chunk);
+                    }
+                } catch (RuntimeException e) {
+                    subscription.cancel();
+                    onError(e);
+                }
             }
 
-            // Extract JSON from response
-            int jsonStart = responseBody.indexOf("```json\\n") + 9;
-            int jsonEnd = responseBody.indexOf("\\n```", jsonStart);
+            @Override
+            public void onError(Throwable error) {
+                if (result.completeExceptionally(error)) {
+                    body.release();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                if (result.isDone()) return;
+                String text;
+                try {
+                    text = StandardCharsets.UTF_8.decode(body.contents()).toString();
+                } finally {
+                    body.release();
+                }
+                result.complete(text);
+            }
 
-            if (jsonStart == 8 || jsonEnd == -1) {
-                throw new IOException("Could not find JSON markers in response");
+            @Override
+            public CompletionStage<String> getBody() {
+                return result;
             }
+        };
+    }
 
-            String cleanJson = responseBody.substring(jsonStart, jsonEnd);
+    /**
+     * Sends the request and, if hedging is enabled and the call takes longer than the
+     * recent p95 latency, sends a second copy and takes whichever answers first.
+     *
+     * @param request The request to send
+     * @param body The request's body, kept alive for as long as a call is still sending it
+     * @param deadlineNanos When the caller stops waiting, or NO_DEADLINE
+     * @return The JSON extracted from the first successful response
+     * @throws IOException If every call sent fails
+     */
+    private String fetchHedged(HttpRequest request, BufferPool.PooledBuffer body, long deadlineNanos) throws IOException {
+        if (!hedgingEnabled || latencyTracker.getCount() < MIN_SAMPLES_FOR_HEDGING) {
+            return fetchOnce(request, deadlineNanos);
+        }
 
-            // Unescape JSON characters
-            cleanJson = cleanJson
-                .replace("\\n", "\n")
-                .replace("\\\"", "\"")
-                .replace("\\\\", "\\");
+        ExecutorCompletionService<String> completion = new ExecutorCompletionService<>(hedgeExecutor);
+        List<Future<String>> calls = new ArrayList<>(2);
+        List<AtomicBoolean> started = new ArrayList<>(2);
+        calls.add(submitHoldingBody(completion, request, body, deadlineNanos, started));
+        try {
+            Future<String> first = completion.poll(latencyTracker.getP95(), TimeUnit.MILLISECONDS);
+            // Only hedge when there is spare quota, so hedges never push us over the limit
+            if (first == null && rateLimiter.getAvailableTokens() >= 1) {
+                hedgesSent.incrementAndGet();
+                calls.add(submitHoldingBody(completion, request, body, deadlineNanos, started));
+            }
 
-            return cleanJson.trim();
+            ExecutionException firstError = null;
+            for (int i = 0; i < calls.size(); i++) {
+                Future<String> done = (i == 0 && first != null) ? first : completion.take();
+                try {
+                    String result = done.get();
+                    if (calls.size() > 1 && done == calls.get(1)) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    if (firstError == null) firstError = e;
+                }
+            }
+            Throwable cause = firstError.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Recognition failed", cause);
 
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new IOException("Request interrupted", e);
+        } finally {
+            for (Future<String> call : calls) {
+                call.cancel(true);
+            }
+            // Calls cancelled before they started still hold a reference to the body
+            for (AtomicBoolean callStarted : started) {
+                if (callStarted.compareAndSet(false, true)) {
+                    body.release();
+                }
+            }
         }
     }
-    
+
     /**
-     * Escapes special characters in a string for JSON inclusion.
-     * 
-     * @param text The text to escape
-     * @return The escaped text wrapped in quotes
-     */
-    private String escapeJson(String text) {
-        return "\"" + text
-            .replace("\\", "\\\\")
-            .replace("\"", "\\\"")
-            .replace("\n", "\\n")
-            .replace("\r", "\\r")
-            .replace("\t", "\\t")
-            + "\"";
+     * Submits a call that keeps the request body alive while it runs, since a hedged call
+     * may still be sending after the caller has moved on.
+     *
+     * @param completion Where to submit the call
+     * @param request The request to send
+     * @param body The request body, retained until the call ends
+     * @param deadlineNanos When the caller stops waiting, or NO_DEADLINE
+     * @param started Receives a flag that is set once the call starts (or is abandoned)
+     * @return The submitted call
+     */
+    private Future<String> submitHoldingBody(ExecutorCompletionService<String> completion, HttpRequest request,
+                                             BufferPool.PooledBuffer body, long deadlineNanos,
+                                             List<AtomicBoolean> started) {
+        body.retain();
+        AtomicBoolean callStarted = new AtomicBoolean();
+        started.add(callStarted);
+        return completion.submit(() -> {
+            if (!callStarted.compareAndSet(false, true)) {
+                throw new IOException("Call abandoned before it started");
+            }
+            try {
+                return fetchOnce(request, deadlineNanos);
+            } finally {
+                body.release();
+            }
+        });
+    }
+
+    /**
+     * Sends the request once and extracts the meal JSON from the response.
+     *
+     * @param request The request to send
+     * @param deadlineNanos When the caller stops waiting, or NO_DEADLINE
+     * @return The meal JSON returned by the model
+     * @throws IOException If the call fails or the response has no JSON block
+     */
+    private String fetchOnce(HttpRequest request, long deadlineNanos) throws IOException {
+        String responseBody = sendLimited(request, deadlineNanos);
+
+        String text;
+        try {
+            Map<String, Object> response = SimpleJson.parseObject(responseBody);
+            text = candidateText(response);
+
+            if (response.get("usageMetadata") instanceof Map) {
+                Map<?, ?> usage = (Map<?, ?>) response.get("usageMetadata");
+                if (usage.get("promptTokenCount") instanceof Double) {
+                    promptTokens.addAndGet(((Double) usage.get("promptTokenCount")).longValue());
+                }
+                if (usage.get("candidatesTokenCount") instanceof Double) {
+                    responseTokens.addAndGet(((Double) usage.get("candidatesTokenCount")).longValue());
+                }
+            }
+        } catch (IllegalArgumentException | ClassCastException | NullPointerException | IndexOutOfBoundsException e) {
+            throw new IOException("Unexpected response format: " + e.getMessage());
+        }
+        return text;
+    }
+
+    /**
+     * Extracts the meal JSON from a parsed API response. With a response schema the
+     * model's answer is plain JSON in the first candidate's text.
+     *
+     * @param response The parsed response body
+     * @return The meal JSON
+     * @throws IllegalArgumentException If the text is not a JSON object
+     * @throws ClassCastException If the response does not have the expected structure
+     */
+    private static String candidateText(Map<String, Object> response) {
+        Map<?, ?> candidate = (Map<?, ?>) ((List<?>) response.get("candidates")).get(0);
+        Map<?, ?> part = (Map<?, ?>) ((List<?>) ((Map<?, ?>) candidate.get("content")).get("parts")).get(0);
+        String text = ((String) part.get("text")).trim();
+        SimpleJson.parseObject(text);
+        return text;
+    }
+
+    /**
+     * Builds request bodies for a synthetic image and parses synthetic responses, which
+     * covers everything on the request path except the network call itself.
+     *
+     * @param iterations How many bodies to build and responses to parse
+     * @throws IOException If a body cannot be built
+     */
+    @Override
+    public void warmUp(int iterations) throws IOException {
+        byte[] image = new byte[32 * 1024];
+        new Random(iterations).nextBytes(image);
+        String response = "{\"candidates\": [{\"content\": {\"parts\": [{\"text\": "
+            + SimpleJson.quote("{\"mealName\": \"Warm-up\", \"detectedItems\": [{\"originalLabel\": \"rice\", "
+                + "\"canonicalName\": \"other\", \"portionKg\": 0.2, \"confidence\": 0.9}]}")
+            + "}]}}], \"usageMetadata\": {\"promptTokenCount\": 1, \"candidatesTokenCount\": 1}}";
+        for (int i = 0; i < iterations; i++) {
+            sha256(ByteBuffer.wrap(image));
+            buildRequestBody(ByteBuffer.wrap(image), "image/jpeg").release();
+            candidateText(SimpleJson.parseObject(response));
+        }
+    }
+
+    /**
+     * Sets the canonical food names the model must choose from, normally every food in
+     * the loaded dataset.
+     *
+     * @param names The canonical names
+     */
+    @Override
+    public void setCanonicalNames(Collection<String> names) {
+        requestPrefix = buildRequestPrefix(names).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds the part of the request body that does not depend on the image: the
+     * instructions and a response schema restricting canonicalName to the given names.
+     *
+     * @param names The canonical names (an empty list allows any name)
+     * @return The request body up to, but not including, the image's MIME type
+     */
+    private static String buildRequestPrefix(Collection<String> names) {
+        StringBuilder item = new StringBuilder("{\"type\": \"OBJECT\", \"properties\": {");
+        item.append("\"originalLabel\": {\"type\": \"STRING\"}, ");
+        item.append("\"canonicalName\": {\"type\": \"STRING\"");
+        if (!names.isEmpty()) {
+            List<String> sorted = new ArrayList<>(names);
+            sorted.sort(null);
+            sorted.add("other");
+            item.append(", \"enum\": [");
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i > 0) item.append(", ");
+                item.append(SimpleJson.quote(sorted.get(i)));
+            }
+            item.append("]");
+        }
+        item.append("}, ");
+        item.append("\"portionKg\": {\"type\": \"NUMBER\"}, ");
+        item.append("\"confidence\": {\"type\": \"NUMBER\"}}, ");
+        item.append("\"required\": ").append(stringArray(ITEM_FIELDS)).append(", ");
+        item.append("\"propertyOrdering\": ").append(stringArray(ITEM_FIELDS)).append("}");
+
+        String[] mealFields = {"mealName", "detectedItems"};
+        String schema = "{\"type\": \"OBJECT\", \"properties\": {"
+            + "\"mealName\": {\"type\": \"STRING\"}, "
+            + "\"detectedItems\": {\"type\": \"ARRAY\", \"items\": " + item + "}}, "
+            + "\"required\": " + stringArray(mealFields) + ", "
+            + "\"propertyOrdering\": " + stringArray(mealFields) + "}";
+
+        return "{\"systemInstruction\": {\"parts\": [{\"text\": " + SimpleJson.quote(INSTRUCTIONS) + "}]}, "
+            + "\"generationConfig\": {\"responseMimeType\": \"application/json\", \"responseSchema\": " + schema + "}, "
+            + "\"contents\": [{\"parts\": [{\"inline_data\": {\"mime_type\": ";
+    }
+
+    /**
+     * Formats strings as a JSON array.
+     */
+    private static String stringArray(String[] values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) json.append(", ");
+            json.append(SimpleJson.quote(values[i]));
+        }
+        return json.append("]").toString();
+    }
+
+    /**
+     * Looks up a previous result for the same image.
+     *
+     * @param imageHash SHA-256 of the image bytes
+     * @return The cached JSON, or null if none
+     */
+    private String cachedResult(String imageHash) {
+        String cached;
+        synchronized (recentResults) {
+            cached = recentResults.get(imageHash);
+        }
+        if (cached != null) {
+            cacheFallbacks.incrementAndGet();
+            System.out.println("Recognition service unavailable, serving cached result");
+        }
+        return cached;
+    }
+
+    /**
+     * Sends a request to the API once a concurrency slot and a rate permit are available.
+     * The outcome of the call is fed back to the concurrency limiter.
+     *
+     * The slot is claimed first and given back if no rate permit comes in time, so a
+     * request that gives up in the queue never spends a rate permit. The wait ends at the
+     * queue timeout or the caller's deadline, whichever comes first.
+     *
+     * @param request The request to send
+     * @param deadlineNanos When the caller stops waiting, or NO_DEADLINE
+     * @return The response body of a successful (HTTP 200) call
+     * @throws RecognitionUnavailableException If no permit was available in time or the quota is exhausted
+     * @throws DeadlineExceededException If the deadline passed while waiting or before the API answered
+     * @throws IOException If the API request fails
+     */
+    private String sendLimited(HttpRequest request, long deadlineNanos) throws IOException {
+        if (remainingNanos(deadlineNanos) <= 0) {
+            throw new DeadlineExceededException("Deadline passed before the recognition call was sent");
+        }
+        try {
+            long queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+            boolean deadlineFirst = remainingNanos(deadlineNanos) < queueTimeoutNanos;
+            long waitUntil = System.nanoTime() + Math.min(queueTimeoutNanos, remainingNanos(deadlineNanos));
+            if (!concurrencyLimiter.acquire(Math.max(0, waitUntil - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                throw deadlineFirst
+                    ? new DeadlineExceededException("Deadline passed while waiting for a free recognition slot")
+                    : new QueueRejectedException("Too many concurrent requests, timed out in queue", retryAfterSeconds());
+            }
+            boolean permitted = false;
+            try {
+                long remaining = Math.max(0, waitUntil - System.nanoTime());
+                permitted = rateLimiter.tryAcquire(remaining, TimeUnit.NANOSECONDS);
+            } finally {
+                if (!permitted) {
+                    concurrencyLimiter.onIgnore();
+                }
+            }
+            if (!permitted) {
+                throw deadlineFirst
+                    ? new DeadlineExceededException("Deadline passed while waiting for a recognition rate permit")
+                    : new QueueRejectedException("Rate limit reached, request not queued", retryAfterSeconds());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Request interrupted", e);
+        }
+
+        long start = System.nanoTime();
+        boolean released = false;
+        try {
+            HttpResponse<String> response = client.send(request, pooledBodyHandler());
+            String responseBody = response.body();
+
+            if (response.statusCode() == 429) {
+                concurrencyLimiter.onDropped();
+                released = true;
+                throw new QueueRejectedException("API quota exceeded: " + responseBody, retryAfterSeconds());
+            }
+            if (response.statusCode() >= 500) {
+                concurrencyLimiter.onDropped();
+                released = true;
+                throw new IOException("API Error: " + responseBody);
+            }
+
+            long latencyNanos = System.nanoTime() - start;
+            concurrencyLimiter.onSuccess(latencyNanos);
+            released = true;
+            if (response.statusCode() != 200) {
+                throw new ClientErrorException("API Error: " + responseBody);
+            }
+            latencyTracker.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+            return responseBody;
+
+        } catch (HttpTimeoutException e) {
+            if (remainingNanos(deadlineNanos) > 0) {
+                throw e;
+            }
+            // The timeout was cut short to the caller's deadline, so it says nothing about upstream health
+            concurrencyLimiter.onIgnore();
+            released = true;
+            throw new DeadlineExceededException("Recognition call did not finish before the request deadline");
+        } catch (InterruptedException e) {
+            // Usually a cancelled hedge; says nothing about upstream health
+            concurrencyLimiter.onIgnore();
+            released = true;
+            Thread.currentThread().interrupt();
+            throw new IOException("Request interrupted", e);
+        } finally {
+            if (!released) {
+                // Connection failures and timeouts count as a sign of upstream trouble
+                concurrencyLimiter.onDropped();
+            }
+        }
+    }
+
+    /**
+     * Estimates how long a rejected caller should wait before retrying.
+     * @return Suggested wait in seconds
+     */
+    private int retryAfterSeconds() {
+        return (int) Math.max(1, Math.ceil(1.0 / rateLimiter.getPermitsPerSecond()));
+    }
+
+    /**
+     * Gets the rate limiter used for API calls.
+     * @return The rate limiter
+     */
+    public TokenBucketRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Gets the concurrency limiter used for API calls.
+     * @return The concurrency limiter
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Gets the circuit breaker guarding API calls.
+     * @return The circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Converts the rate limiting, retry, hedging and circuit breaker counters to JSON.
+     * @return JSON string with the current metrics
+     */
+    @Override
+    public String getMetricsJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"rateLimiter\": {\n");
+        json.append("    \"availableTokens\": ").append(String.format("%.2f", rateLimiter.getAvailableTokens())).append(",\n");
+        json.append("    \"rejected\": ").append(rateLimiter.getRejectedCount()).append("\n");
+        json.append("  },\n");
+        json.append("  \"concurrencyLimiter\": {\n");
+        json.append("    \"limit\": ").append(concurrencyLimiter.getLimit()).append(",\n");
+        json.append("    \"inFlight\": ").append(concurrencyLimiter.getInFlight()).append(",\n");
+        json.append("    \"rejected\": ").append(concurrencyLimiter.getRejectedCount()).append(",\n");
+        json.append("    \"dropped\": ").append(concurrencyLimiter.getDroppedCount()).append("\n");
+        json.append("  },\n");
+        json.append("  \"latencyMs\": {\n");
+        json.append("    \"p50\": ").append(latencyTracker.getP50()).append(",\n");
+        json.append("    \"p95\": ").append(latencyTracker.getP95()).append(",\n");
+        json.append("    \"p99\": ").append(latencyTracker.getP99()).append("\n");
+        json.append("  },\n");
+        json.append("  \"retries\": ").append(retries.get()).append(",\n");
+        json.append("  \"hedgesSent\": ").append(hedgesSent.get()).append(",\n");
+        json.append("  \"hedgeWins\": ").append(hedgeWins.get()).append(",\n");
+        json.append("  \"cacheFallbacks\": ").append(cacheFallbacks.get()).append(",\n");
+        json.append("  \"promptTokens\": ").append(promptTokens.get()).append(",\n");
+        json.append("  \"responseTokens\": ").append(responseTokens.get()).append(",\n");
+        json.append("  \"circuitBreaker\": {\n");
+        json.append("    \"state\": \"").append(circuitBreaker.getState()).append("\",\n");
+        json.append("    \"opened\": ").append(circuitBreaker.getOpenCount()).append(",\n");
+        json.append("    \"rejected\": ").append(circuitBreaker.getRejectedCount()).append("\n");
+        json.append("  }\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * Calculates the SHA-256 hash of some bytes as a hex string.
+     *
+     * @param bytes The bytes to hash
+     * @return The hash in lowercase hex
+     */
+    private static String sha256(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes.duplicate());
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Thrown when the API rejects the request itself (a 4xx other than 429); retrying will not help.
+     */
+    private static class ClientErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ClientErrorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a request could not get a local rate or concurrency permit in time, or
+     * the API answered 429 because the quota is exhausted; retrying at once will not help.
+     */
+    private static class QueueRejectedException extends RecognitionUnavailableException {
+        private static final long serialVersionUID = 1L;
+
+        QueueRejectedException(String message, int retryAfterSeconds) {
+            super(message, retryAfterSeconds);
+        }
     }
 }
@@ -0,0 +1,274 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs image analysis as a chain of asynchronous stages, each on an executor suited to its work:
+ *   hash (CPU): decode the image, compute its perceptual hash and check the near-duplicate cache
+ *   recognize (I/O): check the cache shared with other instances, then call the recognition
+ *   service; both mostly wait on the network
+ *   parse (CPU): turn the recognition JSON into a Meal
+ *   serialize (CPU): build the response JSON
+ *   respond: write the response to the client
+ *
+ * The CPU pool is sized to the number of cores and never waits on the remote service;
+ * the I/O pool is larger because its threads spend most of their time blocked. Responses
+ * are written on a pool of their own that grows as needed, so an answer (a 504 in
+ * particular) never waits behind queued recognition calls and is never turned away.
+ *
+ * Every request carries a deadline. A stage that only gets a thread after the deadline
+ * fails with DeadlineExceededException instead of doing work nobody is waiting for.
+ * Each stage records how long tasks queued and ran, so a backlog shows up in /metrics.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class ImageAnalysisPipeline {
+
+    /** Deadline value meaning the work must run however late it is */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** Calculator holding the recognizer, near-duplicate cache and food database */
+    private final EnvironmentalImpactCalculator calculator;
+
+    /** Executor for CPU-bound stages */
+    private final ThreadPoolExecutor cpuExecutor;
+
+    /** Executor for stages that block on I/O */
+    private final ThreadPoolExecutor ioExecutor;
+
+    /** Executor that writes responses; it has no queue and starts a thread whenever none is idle */
+    private final ThreadPoolExecutor respondExecutor;
+
+    private final Stage hashStage = new Stage("hash");
+    private final Stage recognizeStage = new Stage("recognize");
+    private final Stage parseStage = new Stage("parse");
+    private final Stage serializeStage = new Stage("serialize");
+    private final Stage respondStage = new Stage("respond");
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param calculator The calculator to analyze images with
+     * @param cpuThreads Threads for CPU-bound stages (normally the number of cores)
+     * @param ioThreads Threads for stages that block on I/O
+     * @param queueCapacity Tasks each executor may queue before new requests are rejected
+     */
+    public ImageAnalysisPipeline(EnvironmentalImpactCalculator calculator, int cpuThreads, int ioThreads, int queueCapacity) {
+        this.calculator = calculator;
+        this.cpuExecutor = newExecutor("pipeline-cpu", cpuThreads, queueCapacity);
+        this.ioExecutor = newExecutor("pipeline-io", ioThreads, queueCapacity);
+        // Every admitted request gets exactly one response, so this grows no further than the other pools' backlog
+        AtomicInteger counter = new AtomicInteger();
+        this.respondExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), runnable -> daemonThread(runnable, "pipeline-respond-" + counter.incrementAndGet()));
+    }
+
+    /**
+     * Creates a fixed-size executor with a bounded queue and named daemon threads.
+     */
+    private static ThreadPoolExecutor newExecutor(String name, int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), runnable -> daemonThread(runnable, name + "-" + counter.incrementAndGet()));
+    }
+
+    /**
+     * Creates a named daemon thread.
+     */
+    private static Thread daemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Analyzes an image without blocking the caller.
+     *
+     * @param image The image data; it must stay valid until the returned future completes
+     * @param mimeType The MIME type of the image
+     * @param deadlineNanos When the caller stops waiting, from System.nanoTime()
+     * @return A future completed with the meal, or with the error that stopped the analysis
+     */
+    public CompletableFuture<Meal> analyze(ByteBuffer image, String mimeType, long deadlineNanos) {
+        NearDuplicateCache cache = calculator.getNearDuplicateCache();
+        return stage(hashStage, cpuExecutor, deadlineNanos, () -> {
+            Long hash = EnvironmentalImpactCalculator.hashOf(image);
+            return new Lookup(hash, hash != null ? cache.lookup(hash) : null);
+        }).thenCompose(lookup -> {
+            if (lookup.cachedJson != null) {
+                System.out.println("Reusing result of a near-duplicate image");
+                return CompletableFuture.completedFuture(lookup.cachedJson);
+            }
+            return stage(recognizeStage, ioExecutor, deadlineNanos,
+                () -> calculator.recognize(image, mimeType, lookup.hash, deadlineNanos));
+        }).thenCompose(json -> stage(parseStage, cpuExecutor, deadlineNanos,
+            () -> calculator.createMealFromRecognition(json)));
+    }
+
+    /**
+     * Runs response serialization on the CPU executor.
+     *
+     * @param work Builds the response body
+     * @param deadlineNanos When the caller stops waiting, from System.nanoTime()
+     * @return A future completed with the response body
+     */
+    public <T> CompletableFuture<T> serialize(Callable<T> work, long deadlineNanos) {
+        return stage(serializeStage, cpuExecutor, deadlineNanos, work);
+    }
+
+    /**
+     * Writes a response on the respond executor. Responses are written even after the deadline,
+     * so that the client always gets an answer.
+     *
+     * @param work Writes the response
+     * @return A future completed once the response is written. It fails with
+     *         RecognitionUnavailableException, before this method returns, only if the
+     *         pipeline has been shut down; the caller must then answer by itself.
+     */
+    public CompletableFuture<Void> respond(Callable<Void> work) {
+        return stage(respondStage, respondExecutor, NO_DEADLINE, work);
+    }
+
+    /**
+     * Submits one stage's work to an executor, recording its queue and run times.
+     *
+     * @param stage The stage's metrics
+     * @param executor The executor to run on
+     * @param deadlineNanos The request deadline, from System.nanoTime()
+     * @param work The work to run
+     * @return A future completed with the work's result or error
+     */
+    private <T> CompletableFuture<T> stage(Stage stage, Executor executor, long deadlineNanos, Callable<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long enqueued = System.nanoTime();
+        stage.queued.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                stage.onStarted(started - enqueued);
+                if (deadlineNanos != NO_DEADLINE && started - deadlineNanos > 0) {
+                    stage.expired.increment();
+                    future.completeExceptionally(new DeadlineExceededException(
+                        "Deadline passed before the " + stage.name + " stage started"));
+                    return;
+                }
+                try {
+                    T result = work.call();
+                    stage.onFinished(System.nanoTime() - started, true);
+                    future.complete(result);
+                } catch (Throwable e) {
+                    stage.onFinished(System.nanoTime() - started, false);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stage.queued.decrementAndGet();
+            stage.rejected.increment();
+            future.completeExceptionally(new RecognitionUnavailableException(
+                "Server is busy, the " + stage.name + " queue is full", 1));
+        }
+        return future;
+    }
+
+    /**
+     * Stops accepting new work and waits for queued work to finish. Responses are still
+     * accepted until the other stages have finished, so their results are written out.
+     *
+     * @param timeout Longest time to wait
+     * @param unit The unit of the timeout
+     * @return true if all work finished in time
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        cpuExecutor.shutdown();
+        ioExecutor.shutdown();
+        boolean finished = cpuExecutor.awaitTermination(timeout, unit)
+            && ioExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        respondExecutor.shutdown();
+        return respondExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+            && finished;
+    }
+
+    /**
+     * Reports queue and run times for every stage.
+     * @return JSON object with one entry per stage
+     */
+    public String getMetricsJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"cpuThreads\": ").append(cpuExecutor.getMaximumPoolSize()).append(",\n");
+        json.append("  \"ioThreads\": ").append(ioExecutor.getMaximumPoolSize()).append(",\n");
+        Stage[] stages = {hashStage, recognizeStage, parseStage, serializeStage, respondStage};
+        for (int i = 0; i < stages.length; i++) {
+            json.append("  \"").append(stages[i].name).append("\": ").append(stages[i].toJson());
+            json.append(i < stages.length - 1 ? ",\n" : "\n");
+        }
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * The outcome of the near-duplicate lookup.
+     */
+    private static class Lookup {
+        final Long hash;
+        final String cachedJson;
+
+        Lookup(Long hash, String cachedJson) {
+            this.hash = hash;
+            this.cachedJson = cachedJson;
+        }
+    }
+
+    /**
+     * Counters for one stage.
+     */
+    private static class Stage {
+        final String name;
+        /** Tasks waiting for a thread */
+        final AtomicInteger queued = new AtomicInteger();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder expired = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder started = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        final LongAdder runNanos = new LongAdder();
+        final AtomicLong maxQueueNanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void onStarted(long waitedNanos) {
+            queued.decrementAndGet();
+            started.increment();
+            queueNanos.add(waitedNanos);
+            maxQueueNanos.accumulateAndGet(waitedNanos, Math::max);
+        }
+
+        void onFinished(long ranNanos, boolean success) {
+            runNanos.add(ranNanos);
+            (success ? completed : failed).increment();
+        }
+
+        String toJson() {
+            long startedCount = Math.max(1, started.sum());
+            long finishedCount = Math.max(1, completed.sum() + failed.sum());
+            return String.format("{\"queued\": %d, \"completed\": %d, \"failed\": %d, \"expired\": %d, \"rejected\": %d, "
+                    + "\"avgQueueMs\": %.2f, \"maxQueueMs\": %.2f, \"avgRunMs\": %.2f}",
+                queued.get(), completed.sum(), failed.sum(), expired.sum(), rejected.sum(),
+                queueNanos.sum() / 1e6 / startedCount, maxQueueNanos.get() / 1e6, runNanos.sum() / 1e6 / finishedCount);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps per-user impact totals by day, week and month, and per food item, up to date
+ * as meals are recorded.
+ * 
+ * Every recorded meal is added once to its day, week and month buckets and to the totals
+ * of each food it contains. Dashboards then read precomputed totals instead of summing the
+ * meal history, so a weekly or monthly figure costs the same no matter how many meals it covers.
+ * 
+ * The totals cover the meals the history still holds: a meal dropped by the history's
+ * retention period is subtracted again (see remove), so "all-time" means "within the
+ * retention period" and the totals are the same before and after a restart. Buckets and
+ * foods left with no meals are not reported.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class ImpactAggregates {
+
+    /** The length of a rollup bucket */
+    public enum Period {
+        DAY, WEEK, MONTH;
+
+        /**
+         * Finds the first day of the bucket containing a date.
+         * 
+         * @param date The date
+         * @return The first day of its day, week (Monday) or month
+         */
+        public LocalDate bucketStart(LocalDate date) {
+            switch (this) {
+                case WEEK: return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                case MONTH: return date.withDayOfMonth(1);
+                default: return date;
+            }
+        }
+    }
+
+    /** Time zone used to decide which day a meal belongs to */
+    private final ZoneId zone;
+
+    /** Aggregates by user */
+    private final Map<String, UserAggregates> users = new ConcurrentHashMap<>();
+
+    /** Per-food totals across all users */
+    private final Map<String, ImpactTotals> foodsOverall = new ConcurrentHashMap<>();
+
+    /**
+     * Creates empty aggregates.
+     * 
+     * @param zone Time zone used to decide which day a meal belongs to
+     */
+    public ImpactAggregates(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Gets the time zone that decides which day a meal belongs to.
+     * @return The zone
+     */
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * Adds a recorded meal to all of its rollups.
+     * 
+     * @param record The recorded meal
+     */
+    public void record(MealRecord record) {
+        UserAggregates user = users.computeIfAbsent(record.getUserId(), id -> new UserAggregates());
+        LocalDate date = Instant.ofEpochMilli(record.getTimestamp()).atZone(zone).toLocalDate();
+
+        double totalKg = 0;
+        for (double kg : record.getPortionsKg()) {
+            totalKg += kg;
+        }
+        for (Period period : Period.values()) {
+            user.buckets.get(period)
+                .computeIfAbsent(period.bucketStart(date).toEpochDay(), day -> new ImpactTotals())
+                .add(totalKg, record.getCarbonFootprint(), record.getWaterUsage(),
+                     record.getLandUsage(), record.getNitrogenWaste());
+        }
+        user.allTime.add(totalKg, record.getCarbonFootprint(), record.getWaterUsage(),
+            record.getLandUsage(), record.getNitrogenWaste());
+
+        String[] names = record.getFoodNames();
+        double[] portions = record.getPortionsKg();
+        double[] carbon = record.getPortionCarbon();
+        double[] water = record.getPortionWater();
+        double[] land = record.getPortionLand();
+        double[] nitrogen = record.getPortionNitrogen();
+        for (int i = 0; i < names.length; i++) {
+            user.foods.computeIfAbsent(names[i], name -> new ImpactTotals())
+                .add(portions[i], carbon[i], water[i], land[i], nitrogen[i]);
+            foodsOverall.computeIfAbsent(names[i], name -> new ImpactTotals())
+                .add(portions[i], carbon[i], water[i], land[i], nitrogen[i]);
+        }
+    }
+
+    /**
+     * Takes a meal added by record back out of all of its rollups, e.g. once the meal
+     * history has dropped it.
+     * 
+     * @param record The meal to remove
+     */
+    public void remove(MealRecord record) {
+        UserAggregates user = users.get(record.getUserId());
+        if (user == null) return;
+        LocalDate date = Instant.ofEpochMilli(record.getTimestamp()).atZone(zone).toLocalDate();
+
+        double totalKg = 0;
+        for (double kg : record.getPortionsKg()) {
+            totalKg += kg;
+        }
+        for (Period period : Period.values()) {
+            ImpactTotals bucket = user.buckets.get(period).get(period.bucketStart(date).toEpochDay());
+            if (bucket != null) {
+                bucket.subtract(totalKg, record.getCarbonFootprint(), record.getWaterUsage(),
+                    record.getLandUsage(), record.getNitrogenWaste());
+            }
+        }
+        user.allTime.subtract(totalKg, record.getCarbonFootprint(), record.getWaterUsage(),
+            record.getLandUsage(), record.getNitrogenWaste());
+
+        String[] names = record.getFoodNames();
+        double[] portions = record.getPortionsKg();
+        double[] carbon = record.getPortionCarbon();
+        double[] water = record.getPortionWater();
+        double[] land = record.getPortionLand();
+        double[] nitrogen = record.getPortionNitrogen();
+        for (int i = 0; i < names.length; i++) {
+            ImpactTotals food = user.foods.get(names[i]);
+            if (food != null) {
+                food.subtract(portions[i], carbon[i], water[i], land[i], nitrogen[i]);
+            }
+            food = foodsOverall.get(names[i]);
+            if (food != null) {
+                food.subtract(portions[i], carbon[i], water[i], land[i], nitrogen[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets a user's totals for the buckets that start within a date range.
+     * 
+     * @param userId The user
+     * @param period The bucket length
+     * @param from First date of the range (inclusive)
+     * @param to Last date of the range (inclusive)
+     * @return Totals by first day of each bucket, in date order; empty for unknown users or if from is after to
+     */
+    public NavigableMap<LocalDate, ImpactTotals> getRollups(String userId, Period period, LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, ImpactTotals> result = new TreeMap<>();
+        UserAggregates user = users.get(userId);
+        if (user == null || from.isAfter(to)) return result;
+
+        long first = period.bucketStart(from).toEpochDay();
+        for (Map.Entry<Long, ImpactTotals> bucket : user.buckets.get(period).subMap(first, true, to.toEpochDay(), true).entrySet()) {
+            if (bucket.getValue().getCount() > 0) {
+                result.put(LocalDate.ofEpochDay(bucket.getKey()), bucket.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a user's all-time totals.
+     * 
+     * @param userId The user
+     * @return The totals, or null for unknown users
+     */
+    public ImpactTotals getAllTime(String userId) {
+        UserAggregates user = users.get(userId);
+        return user == null ? null : user.allTime;
+    }
+
+    /**
+     * Gets a user's all-time totals per food item.
+     * 
+     * @param userId The user
+     * @return Totals by food name; empty for unknown users
+     */
+    public Map<String, ImpactTotals> getFoodTotals(String userId) {
+        UserAggregates user = users.get(userId);
+        return user == null ? Map.of() : nonEmpty(user.foods);
+    }
+
+    /**
+     * Gets the all-time totals per food item across all users.
+     * @return Totals by food name
+     */
+    public Map<String, ImpactTotals> getFoodTotalsOverall() {
+        return nonEmpty(foodsOverall);
+    }
+
+    /**
+     * Copies the totals that still count at least one entry. Empty totals are left in
+     * place rather than removed, so a meal recorded at the same time is never lost.
+     */
+    private static Map<String, ImpactTotals> nonEmpty(Map<String, ImpactTotals> totals) {
+        Map<String, ImpactTotals> result = new HashMap<>();
+        for (Map.Entry<String, ImpactTotals> entry : totals.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The rollups of a single user.
+     */
+    private static class UserAggregates {
+        final Map<Period, ConcurrentSkipListMap<Long, ImpactTotals>> buckets = new ConcurrentHashMap<>();
+        final Map<String, ImpactTotals> foods = new ConcurrentHashMap<>();
+        final ImpactTotals allTime = new ImpactTotals();
+
+        UserAggregates() {
+            for (Period period : Period.values()) {
+                buckets.put(period, new ConcurrentSkipListMap<>());
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * The four environmental metrics tracked for every food item.
+ * 
+ * Lets code that treats all metrics alike (sorting, searching, simulating) loop over
+ * them instead of repeating itself for each getter.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public enum ImpactMetric {
+
+    /** Carbon footprint in kg CO2 equivalent */
+    CARBON("carbonFootprint"),
+
+    /** Water usage in liters */
+    WATER("waterUsage"),
+
+    /** Land use in square meters */
+    LAND("landUsage"),
+
+    /** Nitrogen waste (eutrophication) in grams */
+    NITROGEN("nitrogenWaste");
+
+    /** Field name used for this metric in JSON responses */
+    private final String jsonName;
+
+    /**
+     * Creates a metric with its JSON field name.
+     */
+    ImpactMetric(String jsonName) {
+        this.jsonName = jsonName;
+    }
+
+    /**
+     * Gets the field name used for this metric in JSON responses.
+     * @return The JSON field name (e.g. "carbonFootprint")
+     */
+    public String getJsonName() {
+        return jsonName;
+    }
+
+    /**
+     * Gets this metric's per-kg value for a food item.
+     * 
+     * @param item The food item
+     * @return The metric per kilogram of the food
+     */
+    public double perKg(InterfaceFoodItem item) {
+        switch (this) {
+            case CARBON: return item.getCarbonFootprintPerKg();
+            case WATER: return item.getWaterUsagePerKg();
+            case LAND: return item.getLandUsePerKg();
+            default: return item.getNitrogenFootprint();
+        }
+    }
+
+    /**
+     * Gets this metric's total for a meal.
+     * 
+     * @param meal The meal
+     * @return The meal's total for this metric
+     */
+    public double total(InterfaceMeal meal) {
+        switch (this) {
+            case CARBON: return meal.calculateTotalFootprints();
+            case WATER: return meal.calculateTotalWaterUsage();
+            case LAND: return meal.calculateLandUsage();
+            default: return meal.calculateNitrogenWaste();
+        }
+    }
+
+    /**
+     * Finds a metric by its JSON field name or enum name, ignoring case.
+     * 
+     * @param name The name, e.g. "carbonFootprint" or "carbon"
+     * @return The metric
+     * @throws IllegalArgumentException If no metric has that name
+     */
+    public static ImpactMetric fromName(String name) {
+        for (ImpactMetric metric : values()) {
+            if (metric.jsonName.equalsIgnoreCase(name) || metric.name().equalsIgnoreCase(name)) {
+                return metric;
+            }
+        }
+        throw new IllegalArgumentException("Unknown metric: " + name);
+    }
+}
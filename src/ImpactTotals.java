@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of the four environmental metrics, safe to update from many threads.
+ * 
+ * Each metric is a DoubleAdder, which spreads concurrent updates over several internal
+ * cells instead of contending on one value, so recording meals never blocks readers or
+ * other writers.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class ImpactTotals {
+
+    /** Number of meals (or portions, for per-food totals) added */
+    private final LongAdder count = new LongAdder();
+
+    /** Total weight in kilograms */
+    private final DoubleAdder weightKg = new DoubleAdder();
+
+    /** Total carbon footprint in kg CO2 equivalent */
+    private final DoubleAdder carbonFootprint = new DoubleAdder();
+
+    /** Total water usage in liters */
+    private final DoubleAdder waterUsage = new DoubleAdder();
+
+    /** Total land usage in square meters */
+    private final DoubleAdder landUsage = new DoubleAdder();
+
+    /** Total nitrogen waste in grams */
+    private final DoubleAdder nitrogenWaste = new DoubleAdder();
+
+    /**
+     * Adds one entry to the totals.
+     * 
+     * @param weightKg Weight in kilograms
+     * @param carbon Carbon footprint in kg CO2e
+     * @param water Water usage in liters
+     * @param land Land usage in m²
+     * @param nitrogen Nitrogen waste in grams
+     */
+    public void add(double weightKg, double carbon, double water, double land, double nitrogen) {
+        this.count.increment();
+        this.weightKg.add(weightKg);
+        this.carbonFootprint.add(carbon);
+        this.waterUsage.add(water);
+        this.landUsage.add(land);
+        this.nitrogenWaste.add(nitrogen);
+    }
+
+    /**
+     * Takes an entry added earlier back out of the totals.
+     * 
+     * @param weightKg Weight in kilograms
+     * @param carbon Carbon footprint in kg CO2e
+     * @param water Water usage in liters
+     * @param land Land usage in m²
+     * @param nitrogen Nitrogen waste in grams
+     */
+    public void subtract(double weightKg, double carbon, double water, double land, double nitrogen) {
+        this.count.decrement();
+        this.weightKg.add(-weightKg);
+        this.carbonFootprint.add(-carbon);
+        this.waterUsage.add(-water);
+        this.landUsage.add(-land);
+        this.nitrogenWaste.add(-nitrogen);
+    }
+
+    /**
+     * Gets the number of entries added.
+     * @return Entry count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the total weight.
+     * @return Weight in kg
+     */
+    public double getWeightKg() {
+        return weightKg.sum();
+    }
+
+    /**
+     * Gets the total carbon footprint.
+     * @return Carbon footprint in kg CO2 equivalent
+     */
+    public double getCarbonFootprint() {
+        return carbonFootprint.sum();
+    }
+
+    /**
+     * Gets the total water usage.
+     * @return Water usage in liters
+     */
+    public double getWaterUsage() {
+        return waterUsage.sum();
+    }
+
+    /**
+     * Gets the total land usage.
+     * @return Land usage in square meters
+     */
+    public double getLandUsage() {
+        return landUsage.sum();
+    }
+
+    /**
+     * Gets the total nitrogen waste.
+     * @return Nitrogen waste in grams
+     */
+    public double getNitrogenWaste() {
+        return nitrogenWaste.sum();
+    }
+
+    /**
+     * Converts the totals to JSON fields, without surrounding braces, so callers can add their own fields.
+     * @return JSON fields for the totals
+     */
+    public String toJsonFields() {
+        return "\"count\": " + getCount()
+            + ", \"weightKg\": " + String.format("%.3f", getWeightKg())
+            + ", \"carbonFootprint\": " + String.format("%.2f", getCarbonFootprint())
+            + ", \"waterUsage\": " + String.format("%.2f", getWaterUsage())
+            + ", \"landUsage\": " + String.format("%.2f", getLandUsage())
+            + ", \"nitrogenWaste\": " + String.format("%.2f", getNitrogenWaste());
+    }
+}
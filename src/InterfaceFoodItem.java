@@ -68,6 +68,18 @@ public interface InterfaceFoodItem {
      */
     void setNitrogenFootprint(double nitrogenFootprint);
     
+    /**
+     * Gets the energy content per kilogram of this food.
+     * @return Energy in kilocalories per kg of food (0 if unknown)
+     */
+    double getCaloriesPerKg();
+    
+    /**
+     * Sets the energy content per kilogram.
+     * @param caloriesPerKg The energy value to set, in kcal per kg
+     */
+    void setCaloriesPerKg(double caloriesPerKg);
+    
     /**
      * Returns a string representation of the food item.
      * @return String containing all food item details
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent call latencies and reports percentiles over them.
+ *
+ * Latencies are stored in a fixed-size ring buffer. Percentiles are recalculated
+ * only every few samples, so reading them is cheap enough to do on every call.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class LatencyTracker {
+
+    /** Number of new samples after which cached percentiles are recalculated */
+    private static final int RECALCULATE_EVERY = 32;
+
+    /** Ring buffer of recent latencies in milliseconds */
+    private final long[] samples;
+
+    /** Next position to write in the ring buffer */
+    private int next;
+
+    /** Number of valid samples in the buffer */
+    private int count;
+
+    /** Samples recorded since the percentiles were last calculated */
+    private int sinceRecalculation;
+
+    /** Cached 50th percentile in milliseconds */
+    private long p50;
+
+    /** Cached 95th percentile in milliseconds */
+    private long p95;
+
+    /** Cached 99th percentile in milliseconds */
+    private long p99;
+
+    /**
+     * Creates a tracker that remembers the given number of samples.
+     *
+     * @param windowSize How many recent samples to keep
+     */
+    public LatencyTracker(int windowSize) {
+        this.samples = new long[windowSize];
+    }
+
+    /**
+     * Records a call latency.
+     *
+     * @param latencyMs The latency in milliseconds
+     */
+    public synchronized void record(long latencyMs) {
+        samples[next] = latencyMs;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+        if (++sinceRecalculation >= RECALCULATE_EVERY || count <= RECALCULATE_EVERY) {
+            recalculate();
+        }
+    }
+
+    /**
+     * Recalculates the cached percentiles from the current window.
+     */
+    private void recalculate() {
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        p50 = percentile(sorted, 0.50);
+        p95 = percentile(sorted, 0.95);
+        p99 = percentile(sorted, 0.99);
+        sinceRecalculation = 0;
+    }
+
+    /**
+     * Picks a percentile from a sorted array.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Gets the number of samples currently in the window.
+     * @return Sample count
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the median latency.
+     * @return 50th percentile in milliseconds
+     */
+    public synchronized long getP50() {
+        return p50;
+    }
+
+    /**
+     * Gets the 95th percentile latency.
+     * @return 95th percentile in milliseconds
+     */
+    public synchronized long getP95() {
+        return p95;
+    }
+
+    /**
+     * Gets the 99th percentile latency.
+     * @return 99th percentile in milliseconds
+     */
+    public synchronized long getP99() {
+        return p99;
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognizes meals locally by matching an image against a labelled set of reference images.
+ * 
+ * Each reference image is reduced to a perceptual hash when loaded. An incoming image is
+ * hashed the same way and matched to the closest reference; if it is close enough, that
+ * reference's labels are returned. This runs on the CPU in milliseconds with no network call,
+ * so it is used in front of (and as a fallback for) the remote service.
+ * 
+ * The reference set is described by a CSV file with the columns:
+ *   image,mealName,items
+ * where image is a path relative to the CSV file and items lists canonical food names with
+ * portions, e.g. "Rice:0.25;Beans:0.15".
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class LocalFoodRecognizer implements FoodRecognizer, FileOperations {
+
+    /** Labels of the loaded reference images, indexed by perceptual hash */
+    private final BKTree<ReferenceImage> references = new BKTree<>();
+
+    /** Largest Hamming distance accepted as a match by analyzeImage */
+    private final int maxDistance;
+
+    /** Number of images matched to a reference */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of images with no close enough reference */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a local recognizer with no reference images loaded.
+     * 
+     * @param maxDistance Largest Hamming distance (out of 64 bits) accepted as a match
+     */
+    public LocalFoodRecognizer(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Loads the reference images listed in a labels CSV file.
+     * 
+     * @param filename Path to the labels CSV file
+     * @throws IOException If the labels file cannot be read
+     */
+    @Override
+    public void loadFromFile(String filename) throws IOException {
+        File labelsFile = new File(filename);
+        File baseDir = labelsFile.getAbsoluteFile().getParentFile();
+
+        try (Scanner scanner = new Scanner(labelsFile)) {
+            boolean isFirstLine = true;
+
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+
+                if (isFirstLine) {
+                    isFirstLine = false;
+                    continue;
+                }
+
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] parts = line.split(",", 3);
+                if (parts.length < 3) {
+                    System.out.println("Skipping malformed reference line: " + line);
+                    continue;
+                }
+
+                try {
+                    byte[] imageBytes = Files.readAllBytes(new File(baseDir, parts[0].trim()).toPath());
+                    long hash = PerceptualHash.dHash(imageBytes);
+                    addReference(hash, parts[1].trim(), parseItems(parts[2]));
+                } catch (IOException | IllegalArgumentException e) {
+                    System.out.println("Skipping reference image " + parts[0] + ": " + e.getMessage());
+                }
+            }
+        }
+        System.out.println("Loaded " + references.size() + " local reference images");
+    }
+
+    /**
+     * Parses an items column such as "Rice:0.25;Beans:0.15".
+     */
+    private static List<LabelledPortion> parseItems(String column) {
+        List<LabelledPortion> items = new ArrayList<>();
+        for (String entry : column.split(";")) {
+            if (entry.trim().isEmpty()) continue;
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Item without portion: " + entry);
+            }
+            items.add(new LabelledPortion(entry.substring(0, colon).trim(),
+                Double.parseDouble(entry.substring(colon + 1).trim())));
+        }
+        return items;
+    }
+
+    /**
+     * Adds a reference image whose labels are already known.
+     * 
+     * @param hash The perceptual hash of the image
+     * @param mealName The meal name to report on a match
+     * @param items The canonical food names and portions in the image
+     */
+    public synchronized void addReference(long hash, String mealName, List<LabelledPortion> items) {
+        references.add(hash, new ReferenceImage(mealName, items));
+    }
+
+    /**
+     * Gets the number of loaded reference images.
+     * @return Reference count
+     */
+    public synchronized int size() {
+        return references.size();
+    }
+
+    /**
+     * Matches an image against the reference set.
+     * 
+     * @param imageBytes The raw image data
+     * @param mimeType The MIME type of the image
+     * @return JSON for the closest reference image
+     * @throws IOException If the image cannot be decoded or no reference is close enough
+     */
+    @Override
+    public String analyzeImage(byte[] imageBytes, String mimeType) throws IOException {
+        String json = findMatch(imageBytes, maxDistance);
+        if (json == null) {
+            throw new IOException("No similar reference image found");
+        }
+        return json;
+    }
+
+    /**
+     * Matches an image against the reference set, reporting the result as a local match.
+     */
+    @Override
+    public Recognition recognize(ByteBuffer image, String mimeType, Long imageHash, long deadlineNanos) throws IOException {
+        String json = findMatch(imageHash != null ? imageHash : PerceptualHash.dHash(image), maxDistance);
+        if (json == null) {
+            throw new IOException("No similar reference image found");
+        }
+        return new Recognition(json, true);
+    }
+
+    /**
+     * Looks for a reference image within the given distance.
+     * 
+     * @param imageBytes The raw image data
+     * @param distanceLimit Largest Hamming distance accepted as a match
+     * @return JSON for the closest reference image, or null if none is close enough
+     * @throws IOException If the image cannot be decoded
+     */
+    public String findMatch(byte[] imageBytes, int distanceLimit) throws IOException {
+        return findMatch(PerceptualHash.dHash(imageBytes), distanceLimit);
+    }
+
+    /**
+     * Looks for a reference image within the given distance.
+     * 
+     * @param image The raw image data; its position is not changed
+     * @param distanceLimit Largest Hamming distance accepted as a match
+     * @return JSON for the closest reference image, or null if none is close enough
+     * @throws IOException If the image cannot be decoded
+     */
+    public String findMatch(ByteBuffer image, int distanceLimit) throws IOException {
+        return findMatch(PerceptualHash.dHash(image), distanceLimit);
+    }
+
+    /**
+     * Looks for a reference image whose hash is within the given distance.
+     * 
+     * @param hash The perceptual hash of the image
+     * @param distanceLimit Largest Hamming distance accepted as a match
+     * @return JSON for the closest reference image, or null if none is close enough
+     */
+    public String findMatch(long hash, int distanceLimit) {
+
+        BKTree.Match<ReferenceImage> match;
+        synchronized (this) {
+            match = references.findNearest(hash, distanceLimit);
+        }
+
+        if (match == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        ReferenceImage best = match.getValue();
+        return toJson(best.mealName, best.items, 1.0 - match.getDistance() / 64.0);
+    }
+
+    /**
+     * Builds recognition JSON in the same format the remote service returns.
+     * 
+     * @param mealName The meal name
+     * @param items The detected items
+     * @param confidence The confidence to report for every item
+     * @return The JSON string
+     */
+    static String toJson(String mealName, List<LabelledPortion> items, double confidence) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"mealName\": ").append(SimpleJson.quote(mealName)).append(",\n");
+        json.append("  \"detectedItems\": [\n");
+        for (int i = 0; i < items.size(); i++) {
+            LabelledPortion item = items.get(i);
+            json.append("    {\n");
+            json.append("      \"originalLabel\": ").append(SimpleJson.quote(item.getName())).append(",\n");
+            json.append("      \"canonicalName\": ").append(SimpleJson.quote(item.getName())).append(",\n");
+            json.append("      \"portionKg\": ").append(item.getPortionKg()).append(",\n");
+            json.append("      \"confidence\": ").append(String.format("%.2f", confidence)).append("\n");
+            json.append("    }");
+            if (i < items.size() - 1) json.append(",");
+            json.append("\n");
+        }
+        json.append("  ]\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    @Override
+    public String getMetricsJson() {
+        return "{\"referenceImages\": " + size() + ", \"hits\": " + hits.get() + ", \"misses\": " + misses.get() + "}";
+    }
+
+    /**
+     * A canonical food name with a portion weight, as labelled in a reference image.
+     */
+    public static class LabelledPortion {
+
+        /** Canonical food name */
+        private final String name;
+
+        /** Portion weight in kilograms */
+        private final double portionKg;
+
+        /**
+         * Creates a labelled portion.
+         * 
+         * @param name Canonical food name
+         * @param portionKg Portion weight in kilograms
+         */
+        public LabelledPortion(String name, double portionKg) {
+            this.name = name;
+            this.portionKg = portionKg;
+        }
+
+        /**
+         * Gets the canonical food name.
+         * @return The name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the portion weight.
+         * @return Weight in kg
+         */
+        public double getPortionKg() {
+            return portionKg;
+        }
+    }
+
+    /**
+     * The labels of a reference image.
+     */
+    private static class ReferenceImage {
+        final String mealName;
+        final List<LabelledPortion> items;
+
+        ReferenceImage(String mealName, List<LabelledPortion> items) {
+            this.mealName = mealName;
+            this.items = items;
+        }
+    }
+}
@@ -160,14 +160,15 @@ public class Meal implements InterfaceMeal {
     public String toJson() {
         StringBuilder json = new StringBuilder();
         json.append("{\n");
-        json.append("  \"mealName\": \"").append(this.name).append("\",\n");
+        json.append("  \"mealName\": ").append(SimpleJson.quote(this.name)).append(",\n");
         json.append("  \"items\": [\n");
         
         for (int i = 0; i < foodPortions.length; i++) {
             FoodPortion portion = foodPortions[i];
             json.append("    {\n");
-            json.append("      \"name\": \"").append(portion.getFoodItem().getName()).append("\",\n");
-            json.append("      \"portionKg\": ").append(portion.getPortionKg()).append("\n");
+            json.append("      \"name\": ").append(SimpleJson.quote(portion.getFoodItem().getName())).append(",\n");
+            json.append("      \"portionKg\": ").append(portion.getPortionKg()).append(",\n");
+            json.append("      \"confidence\": ").append(portion.getConfidence()).append("\n");
             json.append("    }");
             if (i < foodPortions.length - 1) json.append(",");
             json.append("\n");
@@ -0,0 +1,950 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Stores every recorded meal in an embedded, append-only log so users can look back
+ * at their meals over time, with no external database.
+ *
+ * Records are encoded by the caller and appended to segment files in a directory. A single
+ * writer thread takes all pending records, writes them with one FileChannel call and then
+ * syncs to disk once for the whole batch ("group commit"), so many writers share the cost of
+ * each fsync. When the active segment grows past a size limit a new one is started.
+ *
+ * An in-memory index maps each user's meals, ordered by timestamp, to where they are in
+ * the segments, so a range query reads only the meals it returns. The index holds no meal
+ * contents (about 100 bytes per meal); set a retention period to bound it as well as the
+ * disk. A record is indexed once its batch is written, so a failed write never leaves it
+ * visible. On startup the index is rebuilt by replaying the segments.
+ *
+ * Compaction rewrites all sealed segments into one, dropping meals older than the
+ * retention period. Removal listeners are told about each dropped meal, so state built from
+ * the listeners (e.g. ImpactAggregates) covers the same meals as a restart would replay.
+ *
+ * The store holds an exclusive lock on the directory ("lock" file) while open, so a second
+ * process (or store) can never replay, truncate or append to segments another one is using.
+ *
+ * Segment file layout:
+ *   header: int magic, int version, long firstCoveredSegmentId
+ *   frames: int length, int crc32, byte[length] payload
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class MealHistoryStore implements AutoCloseable {
+
+    /** Marks the start of a segment file ("MEAL") */
+    private static final int MAGIC = 0x4D45414C;
+
+    /** Segment format version (2: meals carry the impacts of each portion) */
+    private static final int VERSION = 2;
+
+    /** Size of the segment header in bytes */
+    private static final int HEADER_BYTES = 16;
+
+    /** Size of a frame's length and checksum in bytes */
+    private static final int FRAME_HEADER_BYTES = 8;
+
+    /** Record type for a meal */
+    private static final byte TYPE_MEAL = 1;
+
+    /** Largest number of records written in one batch */
+    private static final int MAX_BATCH = 1024;
+
+    /** Bits of a location that hold the offset within the segment (segments up to 1 TB) */
+    private static final int OFFSET_BITS = 40;
+
+    /** Directory holding the segment files */
+    private final File directory;
+
+    /** Exclusive lock on the directory, held until close */
+    private final FileLock directoryLock;
+
+    /** Size after which the active segment is sealed and a new one started */
+    private final long maxSegmentBytes;
+
+    /** Whether each batch is synced to disk before its writers are told it succeeded */
+    private final boolean fsync;
+
+    /** Meals older than this are dropped during compaction; 0 keeps them forever */
+    private final long retentionMillis;
+
+    /** Location (see locationOf) of each live record by user, ordered by timestamp then sequence */
+    private final Map<String, ConcurrentSkipListMap<RecordKey, Long>> index = new ConcurrentHashMap<>();
+
+    /** Read-only channels of the segments, opened when first read */
+    private final Map<Long, FileChannel> readChannels = new ConcurrentHashMap<>();
+
+    /** Held for reading while records are read from the segments, and for writing while compaction moves them */
+    private final ReentrantReadWriteLock locationLock = new ReentrantReadWriteLock();
+
+    /** Records waiting for the writer thread */
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    /** Held while writing a batch or switching segments */
+    private final ReentrantLock segmentLock = new ReentrantLock();
+
+    /** Ensures only one compaction runs at a time */
+    private final Object compactionLock = new Object();
+
+    /** Listeners told about every meal written, after it is indexed */
+    private final List<Consumer<MealRecord>> listeners = new ArrayList<>();
+
+    /** Listeners told about every meal dropped by retention, once it is gone from disk */
+    private final List<Consumer<MealRecord>> removalListeners = new ArrayList<>();
+
+    /** The background thread that writes batches */
+    private final Thread writerThread;
+
+    /** Next sequence number to hand out */
+    private long nextSequence;
+
+    /** Id of the segment currently being appended to */
+    private long activeSegmentId;
+
+    /** Channel of the active segment */
+    private FileChannel activeChannel;
+
+    /** Whether close has been called */
+    private volatile boolean closed;
+
+    /**
+     * Opens (or creates) a history store in the given directory and rebuilds its index.
+     *
+     * @param directory Directory holding the segment files
+     * @param maxSegmentBytes Size after which a new segment is started
+     * @param fsync Whether to sync each batch to disk before acknowledging it
+     * @param retentionMillis Meals older than this are dropped during compaction; 0 keeps them forever
+     * @throws IOException If the directory or its segments cannot be read, or another store has it open
+     */
+    public MealHistoryStore(File directory, long maxSegmentBytes, boolean fsync, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.fsync = fsync;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(directory.toPath());
+        this.directoryLock = lockDirectory(directory);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            directoryLock.channel().close();
+            throw e;
+        }
+
+        this.writerThread = new Thread(this::writeLoop, "meal-history-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Records a meal for a user at the given time.
+     *
+     * The returned future completes once the meal has been written (and synced, if
+     * enabled) to disk; from then on it is visible to queries and listeners.
+     * A meal that cannot be encoded (e.g. a user id longer than 65535 bytes) fails on
+     * its own without affecting the other meals in its batch.
+     *
+     * @param userId The user the meal belongs to
+     * @param timestamp When the meal was eaten, in milliseconds since the epoch
+     * @param meal The meal
+     * @return A future that completes with the stored record when it is durable
+     */
+    public CompletableFuture<MealRecord> append(String userId, long timestamp, Meal meal) {
+        PendingWrite write;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Meal history store is closed"));
+            }
+            MealRecord record = MealRecord.fromMeal(nextSequence, userId, timestamp, meal);
+            try {
+                write = new PendingWrite(record);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(new IOException("Meal cannot be stored: " + e.getMessage(), e));
+            }
+            // Sequence and queue order must agree, so both happen under the same lock
+            nextSequence++;
+            queue.add(write);
+        }
+        MealRecord record = write.record;
+        return write.done.thenApply(ignored -> record);
+    }
+
+    /**
+     * Finds a user's meals in a time range, oldest first.
+     *
+     * @param userId The user
+     * @param fromMillis Start of the range (inclusive), in milliseconds since the epoch
+     * @param toMillis End of the range (exclusive), in milliseconds since the epoch
+     * @return The meals in the range
+     * @throws IOException If a meal cannot be read from its segment
+     */
+    public List<MealRecord> query(String userId, long fromMillis, long toMillis) throws IOException {
+        List<MealRecord> result = new ArrayList<>();
+        ConcurrentSkipListMap<RecordKey, Long> meals = index.get(userId);
+        if (meals == null || fromMillis >= toMillis) {
+            return result;
+        }
+        locationLock.readLock().lock();
+        try {
+            for (long location : meals.subMap(
+                    new RecordKey(fromMillis, Long.MIN_VALUE), true,
+                    new RecordKey(toMillis, Long.MIN_VALUE), false).values()) {
+                result.add(readRecord(location));
+            }
+        } finally {
+            locationLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Registers a listener told about each meal once it is written and about each
+     * existing meal when the store starts.
+     * Must be called before the store is shared between threads.
+     *
+     * @param listener Receives each recorded meal
+     * @throws IOException If an existing meal cannot be read
+     */
+    public void addListener(Consumer<MealRecord> listener) throws IOException {
+        listeners.add(listener);
+        locationLock.readLock().lock();
+        try {
+            for (ConcurrentSkipListMap<RecordKey, Long> meals : index.values()) {
+                for (long location : meals.values()) {
+                    listener.accept(readRecord(location));
+                }
+            }
+        } finally {
+            locationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Registers a listener told about each meal that compaction drops because it is
+     * older than the retention period, after the compacted segment is in place.
+     * Must be called before the store is shared between threads.
+     *
+     * @param listener Receives each dropped meal
+     */
+    public void addRemovalListener(Consumer<MealRecord> listener) {
+        removalListeners.add(listener);
+    }
+
+    /**
+     * Gets the number of live meals in the store.
+     * @return Meal count
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentSkipListMap<RecordKey, Long> meals : index.values()) {
+            size += meals.size();
+        }
+        return size;
+    }
+
+    /**
+     * Adds a record's location to the in-memory index.
+     */
+    private void indexRecord(String userId, long timestamp, long sequence, long location) {
+        index.computeIfAbsent(userId, user -> new ConcurrentSkipListMap<>())
+            .put(new RecordKey(timestamp, sequence), location);
+    }
+
+    /**
+     * Packs a segment id and an offset within it into one long.
+     */
+    private static long locationOf(long segmentId, long offset) {
+        return (segmentId << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Gets the segment id of a location.
+     */
+    private static long segmentOf(long location) {
+        return location >>> OFFSET_BITS;
+    }
+
+    /**
+     * Gets the offset within its segment of a location.
+     */
+    private static long offsetOf(long location) {
+        return location & ((1L << OFFSET_BITS) - 1);
+    }
+
+    /**
+     * Reads the meal at a location. Caller must hold the read lock of locationLock.
+     */
+    private MealRecord readRecord(long location) throws IOException {
+        long segmentId = segmentOf(location);
+        FileChannel channel = readChannels.get(segmentId);
+        if (channel == null) {
+            channel = readChannels.computeIfAbsent(segmentId, id -> {
+                try {
+                    return FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    return null;
+                }
+            });
+            if (channel == null) {
+                throw new IOException("Meal history segment " + segmentId + " cannot be opened");
+            }
+        }
+        ByteBuffer frame = readFrame(channel, offsetOf(location));
+        if (frame == null) {
+            throw new IOException("Damaged meal record in segment " + segmentId + " at byte " + offsetOf(location));
+        }
+        DataInputStream in = payloadOf(frame);
+        in.readByte();
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        String userId = in.readUTF();
+        return MealRecord.readBody(sequence, userId, timestamp, in);
+    }
+
+    /**
+     * Reads the frame at an offset and checks it.
+     *
+     * @return The whole frame (length, checksum and payload), or null if it is truncated or damaged
+     */
+    private static ByteBuffer readFrame(FileChannel channel, long offset) throws IOException {
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        if (!readFully(channel, frameHeader, offset)) {
+            return null;
+        }
+        int length = frameHeader.getInt(0);
+        int crc = frameHeader.getInt(4);
+        if (length <= 0 || offset + FRAME_HEADER_BYTES + length > channel.size()) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + length);
+        frame.put(frameHeader.flip());
+        if (!readFully(channel, frame, offset + FRAME_HEADER_BYTES)) {
+            return null;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(frame.array(), FRAME_HEADER_BYTES, length);
+        if ((int) checksum.getValue() != crc) {
+            return null;
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Fills a buffer from a channel, starting at a position.
+     *
+     * @return false if the channel ended first
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * Opens a stream over a frame's payload.
+     */
+    private static DataInputStream payloadOf(ByteBuffer frame) {
+        return new DataInputStream(new ByteArrayInputStream(
+            frame.array(), FRAME_HEADER_BYTES, frame.limit() - FRAME_HEADER_BYTES));
+    }
+
+    /**
+     * Takes an exclusive lock on the directory's lock file.
+     *
+     * @throws IOException If another process or store already holds it
+     */
+    private static FileLock lockDirectory(File directory) throws IOException {
+        FileChannel channel = FileChannel.open(new File(directory, "lock").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        if (lock == null) {
+            closeQuietly(channel);
+            throw new IOException("Meal history directory " + directory + " is in use by another process");
+        }
+        return lock;
+    }
+
+    /**
+     * Rebuilds the index from the segment files and opens the last segment for appending.
+     */
+    private void recover() throws IOException {
+        TreeMap<Long, File> segments = listSegments();
+
+        // A crash while the newest segment was being created can leave it without a complete header
+        if (!segments.isEmpty() && segments.lastEntry().getValue().length() < HEADER_BYTES) {
+            File incomplete = segments.remove(segments.lastKey());
+            System.out.println("Removing incomplete meal history segment " + incomplete.getName());
+            Files.delete(incomplete.toPath());
+        }
+
+        // A compacted segment replaces every segment in its covered range
+        for (Long id : new ArrayList<>(segments.keySet())) {
+            File file = segments.get(id);
+            if (file == null) continue;
+            long firstCovered = readHeader(file);
+            for (long older = firstCovered; older < id; older++) {
+                File superseded = segments.remove(older);
+                if (superseded != null) {
+                    Files.deleteIfExists(superseded.toPath());
+                }
+            }
+        }
+
+        long lastId = segments.isEmpty() ? 0 : segments.lastKey();
+        for (Map.Entry<Long, File> segment : segments.entrySet()) {
+            replay(segment.getKey(), segment.getValue(), segment.getKey() == lastId);
+        }
+
+        if (segments.isEmpty() || segments.get(lastId).length() >= maxSegmentBytes) {
+            openNewSegment(lastId + 1, lastId + 1);
+        } else {
+            activeSegmentId = lastId;
+            activeChannel = FileChannel.open(segments.get(lastId).toPath(), StandardOpenOption.WRITE);
+            activeChannel.position(activeChannel.size());
+        }
+        System.out.println("Meal history loaded: " + size() + " meals in " + Math.max(1, segments.size()) + " segments");
+    }
+
+    /**
+     * Indexes all records in a segment. A damaged tail of the last segment
+     * (e.g. from a crash mid-write) is cut off.
+     */
+    private void replay(long segmentId, File file, boolean isLast) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = HEADER_BYTES;
+            ByteBuffer frame;
+            while (position < channel.size() && (frame = readFrame(channel, position)) != null) {
+                DataInputStream in = payloadOf(frame);
+                byte type = in.readByte();
+                long sequence = in.readLong();
+                long timestamp = in.readLong();
+                String userId = in.readUTF();
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (type == TYPE_MEAL) {
+                    indexRecord(userId, timestamp, sequence, locationOf(segmentId, position));
+                } else {
+                    System.out.println("Skipping meal history record of unknown type " + type + " in " + file.getName());
+                }
+                position += frame.remaining();
+            }
+
+            if (position < channel.size()) {
+                if (isLast) {
+                    System.out.println("Truncating damaged tail of " + file.getName() + " at byte " + position);
+                    channel.truncate(position);
+                } else {
+                    System.out.println("Ignoring damaged records in " + file.getName() + " after byte " + position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes batches of pending records and writes them, syncing once per batch.
+     */
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) return;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+                for (PendingWrite write : batch) {
+                    apply(write);
+                    write.done.complete(null);
+                }
+            } catch (IOException e) {
+                System.out.println("Meal history write failed: " + e.getMessage());
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Makes a written meal visible: indexes it and tells the listeners about it. A listener
+     * that fails is logged and skipped; the meal is stored either way, and the writer thread
+     * must keep running for every later append.
+     */
+    private void apply(PendingWrite write) {
+        MealRecord record = write.record;
+        indexRecord(record.getUserId(), record.getTimestamp(), record.getSequence(), write.location);
+        notifyListeners(listeners, record);
+    }
+
+    /**
+     * Tells listeners about a meal. A listener that throws is logged and skipped, so it
+     * cannot stop the writer thread or keep the other listeners from hearing about the meal.
+     */
+    private static void notifyListeners(List<Consumer<MealRecord>> listeners, MealRecord record) {
+        for (Consumer<MealRecord> listener : listeners) {
+            try {
+                listener.accept(record);
+            } catch (RuntimeException e) {
+                System.out.println("Meal history listener failed on meal " + record.getSequence() + ": " + e);
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of records to the active segment and notes where each one went.
+     * If the write or sync fails, the part of the batch that reached the segment is cut
+     * off again, so a torn frame never sits in front of later records.
+     */
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            buffers[i] = batch.get(i).frame.duplicate();
+            bytes += buffers[i].remaining();
+        }
+
+        segmentLock.lock();
+        try {
+            ensureActiveSegment();
+            long start = activeChannel.position();
+            try {
+                long written = 0;
+                while (written < bytes) {
+                    written += activeChannel.write(buffers);
+                }
+                if (fsync) {
+                    activeChannel.force(false);
+                }
+            } catch (IOException e) {
+                discardFrom(start);
+                throw e;
+            }
+            long offset = start;
+            for (PendingWrite write : batch) {
+                write.location = locationOf(activeSegmentId, offset);
+                offset += write.frame.remaining();
+            }
+            if (activeChannel.size() >= maxSegmentBytes) {
+                try {
+                    rollSegment();
+                } catch (IOException e) {
+                    // The batch itself is written; the next batch opens a new segment
+                    System.out.println("Could not seal meal history segment: " + e.getMessage());
+                    closeQuietly(activeChannel);
+                }
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Removes whatever a failed batch wrote to the active segment. If the segment cannot
+     * be cut back, it is abandoned with the torn batch as its last frame (which replay
+     * stops at) and later batches go to a new segment. Caller must hold segmentLock.
+     *
+     * @param start The segment size before the batch
+     */
+    private void discardFrom(long start) {
+        try {
+            activeChannel.truncate(start);
+            activeChannel.position(start);
+            if (fsync) {
+                activeChannel.force(false);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not undo failed meal history write, starting a new segment: " + e.getMessage());
+            closeQuietly(activeChannel);
+            try {
+                openNewSegment(activeSegmentId + 1, activeSegmentId + 1);
+            } catch (IOException again) {
+                // Retried before the next batch is written
+                System.out.println("Could not start a new meal history segment: " + again.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment if an earlier failure left the active one closed.
+     * Caller must hold segmentLock.
+     */
+    private void ensureActiveSegment() throws IOException {
+        if (!activeChannel.isOpen()) {
+            openNewSegment(activeSegmentId + 1, activeSegmentId + 1);
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring errors.
+     */
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+    }
+
+    /**
+     * Encodes a meal as a frame: length, CRC32, payload.
+     *
+     * @throws UTFDataFormatException If a string is longer than 65535 bytes in UTF-8
+     */
+    private static ByteBuffer encode(MealRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_MEAL);
+        out.writeLong(record.getSequence());
+        out.writeLong(record.getTimestamp());
+        out.writeUTF(record.getUserId());
+        record.writeBody(out);
+        out.flush();
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Wraps a payload in a frame with its length and checksum.
+     */
+    private static ByteBuffer frame(byte[] payload) {
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length).putInt((int) checksum.getValue()).put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Seals the active segment and starts a new one. Caller must hold segmentLock.
+     */
+    private void rollSegment() throws IOException {
+        activeChannel.force(true);
+        activeChannel.close();
+        openNewSegment(activeSegmentId + 1, activeSegmentId + 1);
+    }
+
+    /**
+     * Creates a new, empty segment and makes it the active one.
+     */
+    private void openNewSegment(long id, long firstCovered) throws IOException {
+        Path file = segmentFile(id).toPath();
+        FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = header(firstCovered);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+            syncDirectory();
+        } catch (IOException e) {
+            // A segment without a complete header would stop the store from opening
+            closeQuietly(channel);
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        activeSegmentId = id;
+        activeChannel = channel;
+    }
+
+    /**
+     * Rewrites all sealed segments into one, keeping only live meals within the retention period.
+     *
+     * The sealed segments are copied frame by frame; a frame is kept if the index still
+     * points at it. Once the compacted segment is in place, the index is pointed at the
+     * new copies.
+     *
+     * @throws IOException If the compacted segment cannot be written
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            long lastSealedId;
+            segmentLock.lock();
+            try {
+                ensureActiveSegment();
+                if (activeChannel.size() > HEADER_BYTES) {
+                    rollSegment();
+                }
+                lastSealedId = activeSegmentId - 1;
+            } finally {
+                segmentLock.unlock();
+            }
+
+            TreeMap<Long, File> sealed = new TreeMap<>(listSegments().headMap(lastSealedId, true));
+            if (sealed.isEmpty()) {
+                return;
+            }
+
+            long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+            List<Move> moves = new ArrayList<>();
+            List<MealRecord> dropped = new ArrayList<>();
+
+            // Write the compacted segment under a temporary name, then swap it in atomically
+            Path temp = new File(directory, "compaction.tmp").toPath();
+            try (FileChannel out = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.write(header(sealed.firstKey()));
+                for (Map.Entry<Long, File> segment : sealed.entrySet()) {
+                    try (FileChannel in = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ)) {
+                        long position = HEADER_BYTES;
+                        ByteBuffer frame;
+                        while (position < in.size() && (frame = readFrame(in, position)) != null) {
+                            long location = locationOf(segment.getKey(), position);
+                            position += frame.remaining();
+
+                            DataInputStream payload = payloadOf(frame);
+                            payload.readByte();
+                            long sequence = payload.readLong();
+                            long timestamp = payload.readLong();
+                            String userId = payload.readUTF();
+                            ConcurrentSkipListMap<RecordKey, Long> meals = index.get(userId);
+                            RecordKey key = new RecordKey(timestamp, sequence);
+                            if (meals == null || !Long.valueOf(location).equals(meals.get(key))) {
+                                continue; // dropped by an earlier compaction
+                            }
+                            if (timestamp < cutoff) {
+                                meals.remove(key, location);
+                                if (!removalListeners.isEmpty()) {
+                                    dropped.add(MealRecord.readBody(sequence, userId, timestamp, payload));
+                                }
+                                continue;
+                            }
+                            moves.add(new Move(meals, key, location, locationOf(lastSealedId, out.position())));
+                            while (frame.hasRemaining()) {
+                                out.write(frame);
+                            }
+                        }
+                    }
+                }
+                out.force(true);
+            }
+
+            locationLock.writeLock().lock();
+            try {
+                Files.move(temp, segmentFile(lastSealedId).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (Long id : sealed.keySet()) {
+                    FileChannel channel = readChannels.remove(id);
+                    if (channel != null) {
+                        closeQuietly(channel);
+                    }
+                }
+                for (Move move : moves) {
+                    move.meals.replace(move.key, move.from, move.to);
+                }
+            } finally {
+                locationLock.writeLock().unlock();
+            }
+            for (Long id : sealed.headMap(lastSealedId, false).keySet()) {
+                Files.deleteIfExists(segmentFile(id).toPath());
+            }
+            syncDirectory();
+            for (MealRecord record : dropped) {
+                notifyListeners(removalListeners, record);
+            }
+            System.out.println("Compacted " + sealed.size() + " history segments, " + moves.size() + " meals kept"
+                + (dropped.isEmpty() ? "" : ", " + dropped.size() + " dropped"));
+        }
+    }
+
+    /**
+     * Writes any pending records and closes the segments.
+     *
+     * @throws IOException If the final sync fails
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        locationLock.writeLock().lock();
+        try {
+            for (FileChannel channel : readChannels.values()) {
+                closeQuietly(channel);
+            }
+            readChannels.clear();
+        } finally {
+            locationLock.writeLock().unlock();
+        }
+        segmentLock.lock();
+        try {
+            if (activeChannel.isOpen()) {
+                activeChannel.force(true);
+                activeChannel.close();
+            }
+        } finally {
+            segmentLock.unlock();
+            // Closing the channel releases the lock
+            closeQuietly(directoryLock.channel());
+        }
+    }
+
+    /**
+     * Lists the segment files in the directory by id.
+     */
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.matches("segment-\\d+\\.log"));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segments.put(Long.parseLong(name.substring(8, name.length() - 4)), file);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Syncs the directory, so files created, renamed or deleted in it survive a crash.
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows cannot open a directory as a channel, and has no directory entries to sync
+            if (!System.getProperty("os.name").startsWith("Windows")) throw e;
+        }
+    }
+
+    /**
+     * Reads a segment header and returns the first segment id it covers.
+     */
+    private static long readHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (!readFully(channel, header, 0)) {
+                throw new EOFException("Not a meal history segment: " + file);
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a meal history segment: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported meal history version " + version + " in " + file);
+            }
+            return header.getLong();
+        }
+    }
+
+    /**
+     * Builds a segment header.
+     */
+    private static ByteBuffer header(long firstCovered) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(firstCovered);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Gets the file for a segment id.
+     */
+    private File segmentFile(long id) {
+        return new File(directory, String.format("segment-%012d.log", id));
+    }
+
+    /**
+     * Position of a record in a user's index: ordered by timestamp, then sequence.
+     */
+    private static class RecordKey implements Comparable<RecordKey> {
+        final long timestamp;
+        final long sequence;
+
+        RecordKey(long timestamp, long sequence) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(RecordKey other) {
+            int byTime = Long.compare(timestamp, other.timestamp);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * An encoded meal waiting to be written, with the future its writer is waiting on.
+     */
+    private static class PendingWrite {
+        final MealRecord record;
+        final ByteBuffer frame;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        /** Where the frame was written; set by the writer thread */
+        long location;
+
+        PendingWrite(MealRecord record) throws IOException {
+            this.record = record;
+            this.frame = encode(record);
+        }
+    }
+
+    /**
+     * A meal copied to the compacted segment, whose index entry must follow it.
+     */
+    private static class Move {
+        final ConcurrentSkipListMap<RecordKey, Long> meals;
+        final RecordKey key;
+        final long from;
+        final long to;
+
+        Move(ConcurrentSkipListMap<RecordKey, Long> meals, RecordKey key, long from, long to) {
+            this.meals = meals;
+            this.key = key;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
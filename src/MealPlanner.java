@@ -0,0 +1,475 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds combinations of foods that meet calorie and weight budgets while keeping the four
+ * environmental metrics low.
+ *
+ * There is usually no single "best" meal: one plan may use less water, another less land.
+ * The planner therefore returns the Pareto front: every plan for which no other plan is at
+ * least as good on all four metrics and better on one.
+ *
+ * The search picks up to maxItems distinct foods, each with a portion from a fixed set of
+ * steps. It runs on a fork-join pool, with one task per first food; deeper branches are split
+ * off as tasks of their own while they still have enough work left to be worth stealing.
+ * The search uses branch and bound:
+ *   A branch is dropped once it exceeds the calorie or weight budget
+ *   A branch is dropped when the remaining foods cannot reach the calorie minimum
+ *   A branch is dropped when even its cheapest possible completion is dominated by a plan already found
+ * The search stops at a time limit or when cancelled, returning the best front found so far.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class MealPlanner {
+
+    /** Number of metrics searched over */
+    private static final int METRICS = ImpactMetric.values().length;
+
+    /** How many nodes are visited between checks of the time limit */
+    private static final int STOP_CHECK_INTERVAL = 1024;
+
+    /** Smallest number of (food, portion) choices at the next level for which a branch is forked */
+    private static final int FORK_THRESHOLD = 256;
+
+    /** All foods that may be planned with */
+    private final Collection<FoodItem> foodItems;
+
+    /** The pool the search runs on */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a planner.
+     *
+     * @param foodItems All foods that may be planned with
+     * @param pool The fork-join pool to run searches on
+     */
+    public MealPlanner(Collection<FoodItem> foodItems, ForkJoinPool pool) {
+        this.foodItems = foodItems;
+        this.pool = pool;
+    }
+
+    /**
+     * Searches for the Pareto front of plans meeting the constraints.
+     *
+     * @param constraints The budgets and search settings
+     * @param cancelled Set to true from another thread to stop the search early
+     * @return The plans found, and whether the search finished before being stopped
+     * @throws IllegalArgumentException If the constraints are inconsistent, or name unknown foods
+     *         or foods without calorie data
+     */
+    public Result plan(Constraints constraints, AtomicBoolean cancelled) {
+        Search search = new Search(constraints, selectCandidates(constraints), cancelled);
+        long start = System.nanoTime();
+        pool.invoke(search.rootTask());
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        return new Result(search.front.plans(), !search.stopped, search.nodes.sum(), elapsedMs);
+    }
+
+    /**
+     * Picks the foods to search over, ordered so that low-impact foods are tried first
+     * (good plans found early make the bound prune more). Foods without calorie data are
+     * left out, or rejected if the request listed them.
+     */
+    private List<FoodItem> selectCandidates(Constraints constraints) {
+        List<FoodItem> candidates = new ArrayList<>();
+        Set<String> wanted = constraints.getFoods().isEmpty() ? null : new HashSet<>(constraints.getFoods());
+        Set<String> withoutCalories = new TreeSet<>();
+        for (FoodItem item : foodItems) {
+            if (wanted != null && !wanted.remove(item.getName())) continue;
+            if (item.getCaloriesPerKg() > 0) {
+                candidates.add(item);
+            } else if (wanted != null) {
+                withoutCalories.add(item.getName());
+            }
+        }
+        if (wanted != null && !wanted.isEmpty()) {
+            throw new IllegalArgumentException("Unknown food items: " + wanted);
+        }
+        if (!withoutCalories.isEmpty()) {
+            throw new IllegalArgumentException("No calorie data, so these foods cannot be planned: " + withoutCalories);
+        }
+        candidates.sort(Comparator.comparingDouble(item -> item.getCarbonFootprintPerKg() / item.getCaloriesPerKg()));
+        return candidates;
+    }
+
+    /**
+     * The state of one search: the candidate foods as primitive arrays, the precomputed
+     * bounds and the front found so far.
+     */
+    private static class Search {
+        final Constraints constraints;
+        final FoodItem[] foods;
+        final double[] kcalPerKg;
+        final double[][] metricPerKg;
+        final double[] portions;
+        /** For each start index, the smallest metric-per-kcal among foods from there on */
+        final double[][] suffixMinPerKcal;
+        /** For each start index, the largest kcal-per-kg among foods from there on */
+        final double[] suffixMaxKcalPerKg;
+        /** Whether the metric bound is valid (it assumes no food has a negative impact) */
+        final boolean boundValid;
+        final ParetoFront front = new ParetoFront();
+        final LongAdder nodes = new LongAdder();
+        final AtomicBoolean cancelled;
+        final long deadline;
+        volatile boolean stopped;
+
+        Search(Constraints constraints, List<FoodItem> candidates, AtomicBoolean cancelled) {
+            this.constraints = constraints;
+            this.cancelled = cancelled;
+            this.deadline = System.nanoTime() + constraints.getTimeLimitMs() * 1_000_000L;
+
+            int n = candidates.size();
+            foods = candidates.toArray(new FoodItem[0]);
+            kcalPerKg = new double[n];
+            metricPerKg = new double[METRICS][n];
+            boolean nonNegative = true;
+            for (int i = 0; i < n; i++) {
+                kcalPerKg[i] = foods[i].getCaloriesPerKg();
+                for (ImpactMetric metric : ImpactMetric.values()) {
+                    metricPerKg[metric.ordinal()][i] = metric.perKg(foods[i]);
+                    nonNegative &= metricPerKg[metric.ordinal()][i] >= 0;
+                }
+            }
+            boundValid = nonNegative;
+
+            suffixMinPerKcal = new double[METRICS][n + 1];
+            suffixMaxKcalPerKg = new double[n + 1];
+            for (int m = 0; m < METRICS; m++) {
+                suffixMinPerKcal[m][n] = Double.POSITIVE_INFINITY;
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                suffixMaxKcalPerKg[i] = Math.max(suffixMaxKcalPerKg[i + 1], kcalPerKg[i]);
+                for (int m = 0; m < METRICS; m++) {
+                    suffixMinPerKcal[m][i] = Math.min(suffixMinPerKcal[m][i + 1], metricPerKg[m][i] / kcalPerKg[i]);
+                }
+            }
+
+            List<Double> steps = new ArrayList<>();
+            for (double p = constraints.getMinPortionKg(); p <= constraints.getMaxPortionKg() + 1e-9; p += constraints.getPortionStepKg()) {
+                steps.add(Math.round(p * 1000) / 1000.0);
+            }
+            portions = steps.stream().mapToDouble(Double::doubleValue).toArray();
+        }
+
+        /**
+         * Creates the root task, which forks one subtask per first food.
+         */
+        RecursiveAction rootTask() {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<>(foods.length);
+                    for (int i = 0; i < foods.length; i++) {
+                        tasks.add(branchTask(i, i + 1, 0, new double[2 + METRICS],
+                            new int[constraints.getMaxItems()], new double[constraints.getMaxItems()]));
+                    }
+                    invokeAll(tasks);
+                }
+            };
+        }
+
+        /**
+         * Creates a task that runs {@link #expand} on its own copy of the chosen foods, so the
+         * caller can go on changing its arrays while the task runs.
+         */
+        RecursiveAction branchTask(int i, int end, int depth, double[] sums, int[] chosen, double[] chosenKg) {
+            int[] ownChosen = chosen.clone();
+            double[] ownChosenKg = chosenKg.clone();
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    expand(i, end, depth, sums, ownChosen, ownChosenKg, new int[1]);
+                }
+            };
+        }
+
+        /**
+         * Tries every portion of food i as the next item, then recurses into later foods.
+         *
+         * @param i The food to add
+         * @param end Add foods with index below this only (first call: just food i)
+         * @param depth Number of foods already chosen
+         * @param sums Totals so far: kcal, weight, then one per metric
+         * @param chosen Indexes of the foods chosen so far
+         * @param chosenKg Portions of the foods chosen so far
+         * @param counter Nodes visited since the last stop check
+         */
+        void expand(int i, int end, int depth, double[] sums, int[] chosen, double[] chosenKg, int[] counter) {
+            List<RecursiveAction> forked = null;
+            search:
+            for (int food = i; food < end; food++) {
+                for (double portion : portions) {
+                    if (stopped || (++counter[0] % STOP_CHECK_INTERVAL == 0 && checkStop())) {
+                        break search;
+                    }
+                    nodes.increment();
+
+                    double kcal = sums[0] + kcalPerKg[food] * portion;
+                    double weight = sums[1] + portion;
+                    // Portions are ascending, so larger portions of this food are over budget too
+                    if (kcal > constraints.getMaxKcal() || weight > constraints.getMaxWeightKg() + 1e-9) break;
+
+                    double[] next = new double[2 + METRICS];
+                    next[0] = kcal;
+                    next[1] = weight;
+                    for (int m = 0; m < METRICS; m++) {
+                        next[2 + m] = sums[2 + m] + metricPerKg[m][food] * portion;
+                    }
+
+                    int slotsLeft = constraints.getMaxItems() - depth - 1;
+                    double missingKcal = constraints.getMinKcal() - kcal;
+                    double[] bound = new double[METRICS];
+                    for (int m = 0; m < METRICS; m++) {
+                        bound[m] = next[2 + m];
+                    }
+                    if (missingKcal > 0) {
+                        double reachable = slotsLeft * constraints.getMaxPortionKg() * suffixMaxKcalPerKg[food + 1];
+                        if (reachable < missingKcal) continue;
+                        for (int m = 0; m < METRICS; m++) {
+                            bound[m] += missingKcal * suffixMinPerKcal[m][food + 1];
+                        }
+                    }
+                    if (boundValid && front.dominates(bound)) continue;
+
+                    chosen[depth] = food;
+                    chosenKg[depth] = portion;
+                    if (missingKcal <= 0) {
+                        front.offer(planOf(chosen, chosenKg, depth + 1, next));
+                    }
+                    if (slotsLeft > 1 && (long) (foods.length - food - 1) * portions.length >= FORK_THRESHOLD) {
+                        // Big enough to be worth handing to an idle worker
+                        RecursiveAction task = branchTask(food + 1, foods.length, depth + 1, next, chosen, chosenKg);
+                        task.fork();
+                        if (forked == null) forked = new ArrayList<>();
+                        forked.add(task);
+                    } else if (slotsLeft > 0) {
+                        expand(food + 1, foods.length, depth + 1, next, chosen, chosenKg, counter);
+                    }
+                }
+            }
+            if (forked != null) {
+                for (RecursiveAction task : forked) {
+                    task.join();
+                }
+            }
+        }
+
+        /**
+         * Checks the time limit and cancellation flag.
+         */
+        boolean checkStop() {
+            if (cancelled.get() || System.nanoTime() > deadline) {
+                stopped = true;
+            }
+            return stopped;
+        }
+
+        /**
+         * Builds a plan from the chosen foods.
+         */
+        Plan planOf(int[] chosen, double[] chosenKg, int count, double[] sums) {
+            String[] names = new String[count];
+            double[] kgs = new double[count];
+            for (int k = 0; k < count; k++) {
+                names[k] = foods[chosen[k]].getName();
+                kgs[k] = chosenKg[k];
+            }
+            double[] metrics = new double[METRICS];
+            System.arraycopy(sums, 2, metrics, 0, METRICS);
+            return new Plan(names, kgs, sums[0], sums[1], metrics);
+        }
+    }
+
+    /**
+     * The set of plans not dominated by any other plan found so far.
+     * Reads use an immutable snapshot, so the many dominance checks made while searching never lock.
+     */
+    private static class ParetoFront {
+        private volatile Plan[] snapshot = new Plan[0];
+
+        /**
+         * Checks whether some plan in the front is at least as good as the given metrics on every metric.
+         */
+        boolean dominates(double[] metrics) {
+            for (Plan plan : snapshot) {
+                if (atLeastAsGood(plan.metrics, metrics)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Adds a plan unless it is dominated, removing any plans it dominates.
+         */
+        synchronized void offer(Plan plan) {
+            if (dominates(plan.metrics)) return;
+            List<Plan> kept = new ArrayList<>(snapshot.length + 1);
+            for (Plan existing : snapshot) {
+                if (!atLeastAsGood(plan.metrics, existing.metrics)) {
+                    kept.add(existing);
+                }
+            }
+            kept.add(plan);
+            snapshot = kept.toArray(new Plan[0]);
+        }
+
+        List<Plan> plans() {
+            return List.of(snapshot);
+        }
+
+        private static boolean atLeastAsGood(double[] a, double[] b) {
+            for (int m = 0; m < a.length; m++) {
+                if (a[m] > b[m]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Budgets and settings for a planning search. Every setting has a default.
+     */
+    public static class Constraints {
+        private double minKcal = 500;
+        private double maxKcal = 800;
+        private double maxWeightKg = 0.6;
+        private int maxItems = 3;
+        private double minPortionKg = 0.05;
+        private double maxPortionKg = 0.25;
+        private double portionStepKg = 0.05;
+        private long timeLimitMs = 2000;
+        private List<String> foods = new ArrayList<>();
+
+        /**
+         * Checks that the settings make sense together.
+         *
+         * @throws IllegalArgumentException If they do not
+         */
+        public void validate() {
+            if (minKcal < 0 || maxKcal < minKcal) throw new IllegalArgumentException("Require 0 <= minKcal <= maxKcal");
+            if (maxItems < 1 || maxItems > 6) throw new IllegalArgumentException("maxItems must be between 1 and 6");
+            if (minPortionKg <= 0 || maxPortionKg < minPortionKg || portionStepKg <= 0) {
+                throw new IllegalArgumentException("Require 0 < minPortionKg <= maxPortionKg and portionStepKg > 0");
+            }
+            if ((maxPortionKg - minPortionKg) / portionStepKg > 50) throw new IllegalArgumentException("Too many portion steps");
+            if (timeLimitMs <= 0 || timeLimitMs > 30_000) throw new IllegalArgumentException("timeLimitMs must be between 1 and 30000");
+        }
+
+        public double getMinKcal() { return minKcal; }
+        public void setMinKcal(double minKcal) { this.minKcal = minKcal; }
+        public double getMaxKcal() { return maxKcal; }
+        public void setMaxKcal(double maxKcal) { this.maxKcal = maxKcal; }
+        public double getMaxWeightKg() { return maxWeightKg; }
+        public void setMaxWeightKg(double maxWeightKg) { this.maxWeightKg = maxWeightKg; }
+        public int getMaxItems() { return maxItems; }
+        public void setMaxItems(int maxItems) { this.maxItems = maxItems; }
+        public double getMinPortionKg() { return minPortionKg; }
+        public void setMinPortionKg(double minPortionKg) { this.minPortionKg = minPortionKg; }
+        public double getMaxPortionKg() { return maxPortionKg; }
+        public void setMaxPortionKg(double maxPortionKg) { this.maxPortionKg = maxPortionKg; }
+        public double getPortionStepKg() { return portionStepKg; }
+        public void setPortionStepKg(double portionStepKg) { this.portionStepKg = portionStepKg; }
+        public long getTimeLimitMs() { return timeLimitMs; }
+        public void setTimeLimitMs(long timeLimitMs) { this.timeLimitMs = timeLimitMs; }
+        public List<String> getFoods() { return foods; }
+        public void setFoods(List<String> foods) { this.foods = foods; }
+    }
+
+    /**
+     * One planned meal: its foods, portions and totals.
+     */
+    public static class Plan {
+        private final String[] foodNames;
+        private final double[] portionsKg;
+        private final double kcal;
+        private final double weightKg;
+        private final double[] metrics;
+
+        /**
+         * Creates a plan.
+         *
+         * @param foodNames Names of the foods
+         * @param portionsKg Portion of each food in kg
+         * @param kcal Total energy in kcal
+         * @param weightKg Total weight in kg
+         * @param metrics Totals indexed by ImpactMetric ordinal
+         */
+        public Plan(String[] foodNames, double[] portionsKg, double kcal, double weightKg, double[] metrics) {
+            this.foodNames = foodNames;
+            this.portionsKg = portionsKg;
+            this.kcal = kcal;
+            this.weightKg = weightKg;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Gets the plan's total for a metric.
+         *
+         * @param metric The metric
+         * @return The total
+         */
+        public double getTotal(ImpactMetric metric) {
+            return metrics[metric.ordinal()];
+        }
+
+        /**
+         * Converts the plan to JSON.
+         * @return JSON string representation of the plan
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"items\": [");
+            for (int i = 0; i < foodNames.length; i++) {
+                if (i > 0) json.append(", ");
+                json.append("{\"name\": ").append(SimpleJson.quote(foodNames[i]))
+                    .append(", \"portionKg\": ").append(portionsKg[i]).append("}");
+            }
+            json.append("], \"kcal\": ").append(String.format("%.0f", kcal));
+            json.append(", \"weightKg\": ").append(String.format("%.2f", weightKg));
+            for (ImpactMetric metric : ImpactMetric.values()) {
+                json.append(", \"").append(metric.getJsonName()).append("\": ")
+                    .append(String.format("%.2f", metrics[metric.ordinal()]));
+            }
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * The outcome of a search.
+     */
+    public static class Result {
+        private final List<Plan> plans;
+        private final boolean complete;
+        private final long nodesVisited;
+        private final long elapsedMs;
+
+        /**
+         * Creates a result.
+         *
+         * @param plans The Pareto front found
+         * @param complete Whether the search finished before the time limit or cancellation
+         * @param nodesVisited Number of partial plans examined
+         * @param elapsedMs How long the search took
+         */
+        public Result(List<Plan> plans, boolean complete, long nodesVisited, long elapsedMs) {
+            this.plans = plans;
+            this.complete = complete;
+            this.nodesVisited = nodesVisited;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public List<Plan> getPlans() { return plans; }
+        public boolean isComplete() { return complete; }
+        public long getNodesVisited() { return nodesVisited; }
+        public long getElapsedMs() { return elapsedMs; }
+    }
+}
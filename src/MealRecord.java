@@ -0,0 +1,316 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A meal as stored in the meal history: who ate it, when, what it contained and its impacts.
+ * 
+ * The impacts of each portion are calculated once when the record is created, with the
+ * emission factors the meal was analyzed with (e.g. a regional profile), so reading history
+ * never needs the food database and per-food figures always add up to the meal's totals.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class MealRecord {
+
+    /** Sequence number assigned by the history store; defines the order of records */
+    private final long sequence;
+
+    /** The user the meal belongs to */
+    private final String userId;
+
+    /** When the meal was recorded, in milliseconds since the epoch */
+    private final long timestamp;
+
+    /** The meal name */
+    private final String mealName;
+
+    /** Canonical names of the foods in the meal */
+    private final String[] foodNames;
+
+    /** Portion weight in kg for each food */
+    private final double[] portionsKg;
+
+    /** Carbon footprint of each portion in kg CO2 equivalent */
+    private final double[] portionCarbon;
+
+    /** Water usage of each portion in liters */
+    private final double[] portionWater;
+
+    /** Land usage of each portion in square meters */
+    private final double[] portionLand;
+
+    /** Nitrogen waste of each portion in grams */
+    private final double[] portionNitrogen;
+
+    /** Total carbon footprint in kg CO2 equivalent */
+    private final double carbonFootprint;
+
+    /** Total water usage in liters */
+    private final double waterUsage;
+
+    /** Total land usage in square meters */
+    private final double landUsage;
+
+    /** Total nitrogen waste in grams */
+    private final double nitrogenWaste;
+
+    /**
+     * Creates a record with all fields specified. The totals are the sums of the portions.
+     * 
+     * @param sequence Sequence number assigned by the history store
+     * @param userId The user the meal belongs to
+     * @param timestamp When the meal was recorded, in milliseconds since the epoch
+     * @param mealName The meal name
+     * @param foodNames Canonical names of the foods in the meal
+     * @param portionsKg Portion weight in kg for each food
+     * @param portionCarbon Carbon footprint of each portion in kg CO2e
+     * @param portionWater Water usage of each portion in liters
+     * @param portionLand Land usage of each portion in m²
+     * @param portionNitrogen Nitrogen waste of each portion in grams
+     */
+    public MealRecord(long sequence, String userId, long timestamp, String mealName, String[] foodNames,
+                      double[] portionsKg, double[] portionCarbon, double[] portionWater, double[] portionLand,
+                      double[] portionNitrogen) {
+        this.sequence = sequence;
+        this.userId = userId;
+        this.timestamp = timestamp;
+        this.mealName = mealName;
+        this.foodNames = foodNames;
+        this.portionsKg = portionsKg;
+        this.portionCarbon = portionCarbon;
+        this.portionWater = portionWater;
+        this.portionLand = portionLand;
+        this.portionNitrogen = portionNitrogen;
+        this.carbonFootprint = sum(portionCarbon);
+        this.waterUsage = sum(portionWater);
+        this.landUsage = sum(portionLand);
+        this.nitrogenWaste = sum(portionNitrogen);
+    }
+
+    /**
+     * Adds up an array.
+     */
+    private static double sum(double[] values) {
+        double total = 0;
+        for (double value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     * Creates a record from a meal, calculating the impacts of its portions.
+     * 
+     * @param sequence Sequence number assigned by the history store
+     * @param userId The user the meal belongs to
+     * @param timestamp When the meal was recorded, in milliseconds since the epoch
+     * @param meal The meal to record
+     * @return The new record
+     */
+    public static MealRecord fromMeal(long sequence, String userId, long timestamp, Meal meal) {
+        FoodPortion[] portions = meal.getFoodPortions();
+        String[] names = new String[portions.length];
+        double[] weights = new double[portions.length];
+        double[] carbon = new double[portions.length];
+        double[] water = new double[portions.length];
+        double[] land = new double[portions.length];
+        double[] nitrogen = new double[portions.length];
+        for (int i = 0; i < portions.length; i++) {
+            names[i] = portions[i].getFoodItem().getName();
+            weights[i] = portions[i].getPortionKg();
+            carbon[i] = portions[i].calculateCarbonFootprint();
+            water[i] = portions[i].calculateWaterUsage();
+            land[i] = portions[i].calculateLandUsage();
+            nitrogen[i] = portions[i].calculateNitrogenWaste();
+        }
+        return new MealRecord(sequence, userId, timestamp, meal.getName(), names, weights, carbon, water, land, nitrogen);
+    }
+
+    /**
+     * Writes the record's fields (after the sequence, user and timestamp) in binary form.
+     * 
+     * @param out The stream to write to
+     * @throws IOException If writing fails
+     */
+    void writeBody(DataOutputStream out) throws IOException {
+        out.writeUTF(mealName);
+        out.writeInt(foodNames.length);
+        for (int i = 0; i < foodNames.length; i++) {
+            out.writeUTF(foodNames[i]);
+            out.writeDouble(portionsKg[i]);
+            out.writeDouble(portionCarbon[i]);
+            out.writeDouble(portionWater[i]);
+            out.writeDouble(portionLand[i]);
+            out.writeDouble(portionNitrogen[i]);
+        }
+    }
+
+    /**
+     * Reads a record written by writeBody.
+     * 
+     * @param sequence The sequence number already read
+     * @param userId The user already read
+     * @param timestamp The timestamp already read
+     * @param in The stream to read the remaining fields from
+     * @return The record
+     * @throws IOException If the data is truncated
+     */
+    static MealRecord readBody(long sequence, String userId, long timestamp, DataInputStream in) throws IOException {
+        String mealName = in.readUTF();
+        int count = in.readInt();
+        String[] names = new String[count];
+        double[] weights = new double[count];
+        double[] carbon = new double[count];
+        double[] water = new double[count];
+        double[] land = new double[count];
+        double[] nitrogen = new double[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+            weights[i] = in.readDouble();
+            carbon[i] = in.readDouble();
+            water[i] = in.readDouble();
+            land[i] = in.readDouble();
+            nitrogen[i] = in.readDouble();
+        }
+        return new MealRecord(sequence, userId, timestamp, mealName, names, weights, carbon, water, land, nitrogen);
+    }
+
+    /**
+     * Gets the sequence number.
+     * @return The sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the user the meal belongs to.
+     * @return The user id
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Gets when the meal was recorded.
+     * @return Milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the meal name.
+     * @return The meal name
+     */
+    public String getMealName() {
+        return mealName;
+    }
+
+    /**
+     * Gets the canonical names of the foods in the meal.
+     * @return Array of food names
+     */
+    public String[] getFoodNames() {
+        return foodNames;
+    }
+
+    /**
+     * Gets the portion weights, in the same order as the food names.
+     * @return Array of weights in kg
+     */
+    public double[] getPortionsKg() {
+        return portionsKg;
+    }
+
+    /**
+     * Gets the carbon footprint of each portion, in the same order as the food names.
+     * @return Array of carbon footprints in kg CO2 equivalent
+     */
+    public double[] getPortionCarbon() {
+        return portionCarbon;
+    }
+
+    /**
+     * Gets the water usage of each portion, in the same order as the food names.
+     * @return Array of water usages in liters
+     */
+    public double[] getPortionWater() {
+        return portionWater;
+    }
+
+    /**
+     * Gets the land usage of each portion, in the same order as the food names.
+     * @return Array of land usages in square meters
+     */
+    public double[] getPortionLand() {
+        return portionLand;
+    }
+
+    /**
+     * Gets the nitrogen waste of each portion, in the same order as the food names.
+     * @return Array of nitrogen waste in grams
+     */
+    public double[] getPortionNitrogen() {
+        return portionNitrogen;
+    }
+
+    /**
+     * Gets the total carbon footprint.
+     * @return Carbon footprint in kg CO2 equivalent
+     */
+    public double getCarbonFootprint() {
+        return carbonFootprint;
+    }
+
+    /**
+     * Gets the total water usage.
+     * @return Water usage in liters
+     */
+    public double getWaterUsage() {
+        return waterUsage;
+    }
+
+    /**
+     * Gets the total land usage.
+     * @return Land usage in square meters
+     */
+    public double getLandUsage() {
+        return landUsage;
+    }
+
+    /**
+     * Gets the total nitrogen waste.
+     * @return Nitrogen waste in grams
+     */
+    public double getNitrogenWaste() {
+        return nitrogenWaste;
+    }
+
+    /**
+     * Converts the record to a JSON string representation that the web app can use.
+     * @return JSON string representation of the record
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": ").append(timestamp).append(",\n");
+        json.append("  \"mealName\": ").append(SimpleJson.quote(mealName)).append(",\n");
+        json.append("  \"items\": [");
+        for (int i = 0; i < foodNames.length; i++) {
+            json.append("{\"name\": ").append(SimpleJson.quote(foodNames[i]))
+                .append(", \"portionKg\": ").append(portionsKg[i]).append("}");
+            if (i < foodNames.length - 1) json.append(", ");
+        }
+        json.append("],\n");
+        json.append("  \"totals\": {");
+        json.append("\"carbonFootprint\": ").append(String.format("%.2f", carbonFootprint)).append(", ");
+        json.append("\"waterUsage\": ").append(String.format("%.2f", waterUsage)).append(", ");
+        json.append("\"landUsage\": ").append(String.format("%.2f", landUsage)).append(", ");
+        json.append("\"nitrogenWaste\": ").append(String.format("%.2f", nitrogenWaste)).append("}\n");
+        json.append("}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Caches recognition results by perceptual hash so that near-duplicate images
+ * (re-encoded, resized or slightly cropped photos of the same plate) reuse an earlier
+ * result instead of being recognized again.
+ * 
+ * Entries are kept in a BK-tree for lookups by Hamming distance. BK-trees do not support
+ * removal, so when the cache is full the oldest quarter of the entries is dropped and the
+ * tree is rebuilt from the rest.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class NearDuplicateCache {
+
+    /** Index of cached results by perceptual hash */
+    private final BKTree<String> index = new BKTree<>();
+
+    /** Entries in insertion order, used to evict the oldest */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    /** Guards the index and entry list; lookups can run in parallel */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Maximum number of entries kept */
+    private final int capacity;
+
+    /** Largest Hamming distance treated as the same image */
+    private final int maxDistance;
+
+    /** Number of lookups answered from the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups with no close enough entry */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     * 
+     * @param capacity Maximum number of entries kept
+     * @param maxDistance Largest Hamming distance (out of 64 bits) treated as the same image
+     */
+    public NearDuplicateCache(int capacity, int maxDistance) {
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Looks up a result for an image similar to the given hash.
+     * 
+     * @param hash The perceptual hash of the new image
+     * @return The cached recognition JSON, or null if no similar image is cached
+     */
+    public String lookup(long hash) {
+        BKTree.Match<String> match;
+        lock.readLock().lock();
+        try {
+            match = index.findNearest(hash, maxDistance);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (match == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return match.getValue();
+    }
+
+    /**
+     * Stores a recognition result for an image.
+     * 
+     * @param hash The perceptual hash of the image
+     * @param json The recognition JSON
+     */
+    public void put(long hash, String json) {
+        lock.writeLock().lock();
+        try {
+            if (entries.size() >= capacity) {
+                evictOldest(Math.max(1, capacity / 4));
+            }
+            entries.addLast(new Entry(hash, json));
+            index.add(hash, json);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest entries and rebuilds the index. Caller must hold the write lock.
+     */
+    private void evictOldest(int count) {
+        for (int i = 0; i < count && !entries.isEmpty(); i++) {
+            entries.removeFirst();
+        }
+        index.clear();
+        for (Entry entry : entries) {
+            index.add(entry.hash, entry.json);
+        }
+    }
+
+    /**
+     * Reports the cache's size and hit counts as JSON.
+     * @return JSON object with the current metrics
+     */
+    public String getMetricsJson() {
+        int size;
+        lock.readLock().lock();
+        try {
+            size = index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return "{\"entries\": " + size + ", \"hits\": " + hits.get() + ", \"misses\": " + misses.get() + "}";
+    }
+
+    /**
+     * A cached result and its hash.
+     */
+    private static class Entry {
+        final long hash;
+        final String json;
+
+        Entry(long hash, String json) {
+            this.hash = hash;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+/**
+ * Thrown when a request body is larger than the server accepts.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class PayloadTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param maxBytes The largest body accepted, in bytes
+     */
+    public PayloadTooLargeException(long maxBytes) {
+        super("Request body is larger than " + maxBytes + " bytes");
+    }
+}
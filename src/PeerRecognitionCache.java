@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared recognition cache partitioned across the server instances themselves.
+ *
+ * Every instance is configured with the same list of peers. A consistent-hash ring over
+ * that list decides which instance owns each image hash; the owner keeps the result in
+ * memory and the others fetch and store it over HTTP (GET and PUT on
+ * /cache/recognition/{hash}). Each result is therefore held once in the cluster, and the
+ * cluster-wide hit rate grows with total traffic instead of being split across instances.
+ * When the peer list changes, only the hashes of the added or removed instance move.
+ *
+ * Peer calls use a short timeout; an unreachable owner counts as a miss, and stores are
+ * sent asynchronously so they never delay a response.
+ *
+ * Every peer call carries a secret shared by all instances, and an instance only accepts
+ * stores for hashes it owns and results that have the shape of a recognition result, so
+ * a client that reaches the endpoint cannot plant results for other users' images.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class PeerRecognitionCache implements SharedRecognitionCache {
+
+    /** Path prefix of the peer endpoint */
+    public static final String PATH = "/cache/recognition/";
+
+    /** Header carrying the shared secret on peer calls */
+    public static final String SECRET_HEADER = "X-Cache-Secret";
+
+    /** Base URL of this instance, as it appears in the peer list */
+    private final String self;
+
+    /** Which peer owns which hashes */
+    private final ConsistentHashRing ring;
+
+    /** Results for the hashes this instance owns, least recently used first */
+    private final LinkedHashMap<Long, String> owned = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Most results kept in owned */
+    private final int capacity;
+
+    /** Most memory the results in owned may take, in bytes */
+    private final long maxBytes;
+
+    /** Memory taken by the results in owned, in bytes (guarded by owned) */
+    private long ownedBytes;
+
+    /** The secret every peer sends with its calls */
+    private final byte[] secret;
+
+    /** Client for calls to other peers */
+    private final HttpClient client;
+
+    /** Longest wait for a peer, in milliseconds */
+    private final long timeoutMs;
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong remoteHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong remoteErrors = new AtomicLong();
+    private final AtomicLong servedToPeers = new AtomicLong();
+
+    /**
+     * Creates this instance's view of the peer cache.
+     *
+     * @param self This instance's base URL (e.g. http://10.0.0.5:8080); must be in peers
+     * @param peers Base URLs of every instance, the same list on all of them
+     * @param virtualNodes Points per instance on the hash ring
+     * @param capacity Results kept for the hashes this instance owns
+     * @param maxBytes Most memory those results may take, in bytes
+     * @param secret Secret shared by all instances, sent with every peer call
+     * @param timeoutMs Longest wait for a peer, in milliseconds
+     * @throws IllegalArgumentException If self is not one of the peers or the secret is empty
+     */
+    public PeerRecognitionCache(String self, List<String> peers, int virtualNodes, int capacity, long maxBytes,
+                                String secret, long timeoutMs) {
+        this.self = stripSlash(self);
+        this.ring = new ConsistentHashRing(peers.stream().map(PeerRecognitionCache::stripSlash).toList(), virtualNodes);
+        if (!ring.getNodes().contains(this.self)) {
+            throw new IllegalArgumentException("cache.shared.self (" + self + ") must be one of cache.shared.peers " + ring.getNodes());
+        }
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("cache.shared.secret must be set when sharing results with peers");
+        }
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.timeoutMs = timeoutMs;
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(timeoutMs))
+            .build();
+        System.out.println("Sharing recognition results with " + (ring.getNodes().size() - 1) + " peers; this instance owns "
+            + String.format("%.1f%%", ring.getShares().get(this.self) * 100) + " of image hashes");
+    }
+
+    /**
+     * Removes a trailing slash so that "http://a:8080/" and "http://a:8080" match.
+     */
+    private static String stripSlash(String url) {
+        String trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    @Override
+    public String get(long imageHash) throws IOException {
+        String owner = ring.nodeFor(imageHash);
+        if (owner.equals(self)) {
+            String json = getOwned(imageHash);
+            (json != null ? localHits : misses).incrementAndGet();
+            return json;
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(owner + PATH + SharedRecognitionCache.keyOf(imageHash)))
+            .timeout(Duration.ofMillis(timeoutMs))
+            .header(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8))
+            .GET()
+            .build();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                remoteHits.incrementAndGet();
+                return response.body();
+            }
+            if (response.statusCode() == 404) {
+                misses.incrementAndGet();
+                return null;
+            }
+            // Counted as a remote error by the catch below
+            throw new IOException("Peer " + owner + " answered " + response.statusCode());
+        } catch (IOException e) {
+            remoteErrors.incrementAndGet();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while asking peer " + owner, e);
+        }
+    }
+
+    @Override
+    public void put(long imageHash, String json) {
+        String owner = ring.nodeFor(imageHash);
+        if (owner.equals(self)) {
+            putOwned(imageHash, json);
+            return;
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(owner + PATH + SharedRecognitionCache.keyOf(imageHash)))
+            .timeout(Duration.ofMillis(timeoutMs))
+            .header("Content-Type", "application/json")
+            .header(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8))
+            .PUT(HttpRequest.BodyPublishers.ofString(json))
+            .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (error != null || response.statusCode() != 204) {
+                remoteErrors.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Checks the secret a peer sent, in time that does not depend on how much of it matches.
+     *
+     * @param presented The value of the secret header, or null if absent
+     * @return true if it is the shared secret
+     */
+    public boolean isPeer(String presented) {
+        return presented != null && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks whether this instance owns an image hash, i.e. is where peers store its result.
+     *
+     * @param imageHash The perceptual hash of the image
+     * @return true if the hash maps to this instance on the ring
+     */
+    public boolean owns(long imageHash) {
+        return ring.nodeFor(imageHash).equals(self);
+    }
+
+    /**
+     * Checks that a result sent by a peer has the shape of a recognition result (see
+     * FoodRecognizer): a "mealName" and "detectedItems" whose entries each have a
+     * "canonicalName", a "portionKg" of at least zero and a "confidence" from 0 to 1.
+     *
+     * @param json The result
+     * @throws IllegalArgumentException If it does not
+     */
+    public static void validateResult(String json) {
+        Map<String, Object> result = SimpleJson.parseObject(json);
+        if (!(result.get("mealName") instanceof String) || !(result.get("detectedItems") instanceof List)) {
+            throw new IllegalArgumentException("Expected a \"mealName\" and a \"detectedItems\" array");
+        }
+        for (Object value : (List<?>) result.get("detectedItems")) {
+            if (!(value instanceof Map)) {
+                throw new IllegalArgumentException("Each detected item must be an object");
+            }
+            Map<?, ?> item = (Map<?, ?>) value;
+            Object originalLabel = item.get("originalLabel");
+            if (!(item.get("canonicalName") instanceof String) || (originalLabel != null && !(originalLabel instanceof String))) {
+                throw new IllegalArgumentException("Each detected item needs a \"canonicalName\"");
+            }
+            if (!(item.get("portionKg") instanceof Double) || (Double) item.get("portionKg") < 0) {
+                throw new IllegalArgumentException("Each detected item needs a \"portionKg\" of at least 0");
+            }
+            if (!(item.get("confidence") instanceof Double)
+                    || (Double) item.get("confidence") < 0 || (Double) item.get("confidence") > 1) {
+                throw new IllegalArgumentException("Each detected item needs a \"confidence\" from 0 to 1");
+            }
+        }
+    }
+
+    /**
+     * Gets a result stored on this instance, for a peer's GET.
+     *
+     * @param imageHash The perceptual hash of the image
+     * @return The recognition JSON, or null if not stored here
+     */
+    public String getOwned(long imageHash) {
+        synchronized (owned) {
+            return owned.get(imageHash);
+        }
+    }
+
+    /**
+     * Stores a result on this instance, for a peer's PUT.
+     *
+     * @param imageHash The perceptual hash of the image
+     * @param json The recognition JSON
+     */
+    public void putOwned(long imageHash, String json) {
+        synchronized (owned) {
+            String previous = owned.put(imageHash, json);
+            ownedBytes += sizeOf(json) - (previous != null ? sizeOf(previous) : 0);
+            // Evict least recently used results until both limits hold
+            Iterator<String> eldest = owned.values().iterator();
+            while ((owned.size() > capacity || ownedBytes > maxBytes) && eldest.hasNext()) {
+                ownedBytes -= sizeOf(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Estimates the memory a stored result takes: two bytes per character, as a string
+     * that is not plain Latin-1 uses.
+     */
+    private static long sizeOf(String json) {
+        return 2L * json.length();
+    }
+
+    /**
+     * Counts a request answered for another peer.
+     */
+    public void recordServedToPeer() {
+        servedToPeers.incrementAndGet();
+    }
+
+    @Override
+    public String getMetricsJson() {
+        int size;
+        long bytes;
+        synchronized (owned) {
+            size = owned.size();
+            bytes = ownedBytes;
+        }
+        StringBuilder shares = new StringBuilder("{");
+        for (Map.Entry<String, Double> share : ring.getShares().entrySet()) {
+            if (shares.length() > 1) shares.append(", ");
+            shares.append(SimpleJson.quote(share.getKey())).append(": ").append(String.format("%.3f", share.getValue()));
+        }
+        shares.append("}");
+        return "{\"type\": \"peers\", \"self\": " + SimpleJson.quote(self) + ", \"ownedEntries\": " + size
+            + ", \"ownedBytes\": " + bytes + ", \"localHits\": " + localHits.get() + ", \"remoteHits\": " + remoteHits.get()
+            + ", \"misses\": " + misses.get() + ", \"remoteErrors\": " + remoteErrors.get()
+            + ", \"servedToPeers\": " + servedToPeers.get() + ", \"ringShares\": " + shares + "}";
+    }
+}
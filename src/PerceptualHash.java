@@ -0,0 +1,120 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Computes perceptual hashes of images so that visually similar images can be matched.
+ * 
+ * Uses the difference hash (dHash): the image is shrunk to 9x8 grey pixels and each bit
+ * records whether a pixel is brighter than its right-hand neighbour. Re-encoding, resizing
+ * and small crops change only a few bits, so similar images have a small Hamming distance
+ * between their hashes.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public final class PerceptualHash {
+
+    /** Width the image is decoded at; large photos are subsampled while decoding */
+    private static final int DECODE_WIDTH = 128;
+
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private PerceptualHash() {}
+
+    /**
+     * Computes the 64-bit difference hash of an encoded image.
+     * 
+     * @param imageBytes The encoded image (any format ImageIO can read, e.g. PNG or JPEG)
+     * @return The 64-bit hash
+     * @throws IOException If the image cannot be decoded
+     */
+    public static long dHash(byte[] imageBytes) throws IOException {
+        return dHash(decode(new ByteArrayInputStream(imageBytes)));
+    }
+
+    /**
+     * Computes the 64-bit difference hash of an encoded image held in a buffer
+     * (e.g. an upload in a pooled direct buffer), without copying it to the heap.
+     * 
+     * @param image The encoded image; its position is not changed
+     * @return The 64-bit hash
+     * @throws IOException If the image cannot be decoded
+     */
+    public static long dHash(ByteBuffer image) throws IOException {
+        return dHash(decode(BufferPool.asInputStream(image.duplicate())));
+    }
+
+    /**
+     * Computes the 64-bit difference hash of a decoded image.
+     * 
+     * @param image The image
+     * @return The 64-bit hash
+     */
+    public static long dHash(BufferedImage image) {
+        BufferedImage small = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = small.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, 9, 8, null);
+        graphics.dispose();
+
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                int left = small.getRaster().getSample(x, y, 0);
+                int right = small.getRaster().getSample(x + 1, y, 0);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Counts the bits that differ between two hashes.
+     * 
+     * @param a The first hash
+     * @param b The second hash
+     * @return The Hamming distance (0 to 64)
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Decodes an image, skipping pixels while reading large images since the hash
+     * only needs a thumbnail.
+     * 
+     * @param imageStream The encoded image
+     * @return The decoded (possibly subsampled) image
+     * @throws IOException If no ImageIO reader supports the format
+     */
+    private static BufferedImage decode(InputStream imageStream) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageStream)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, reader.getWidth(0) / DECODE_WIDTH);
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
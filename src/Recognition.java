@@ -0,0 +1,46 @@
+/**
+ * The result of recognizing an image, together with where it came from.
+ *
+ * Results from a recognition service are worth keeping in the recognition caches and
+ * sharing with other instances. Results matched locally against reference images are
+ * not: they are cheap to compute again, and a match accepted only because the service
+ * failed (see TieredFoodRecognizer) should not stand in for a real answer later.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class Recognition {
+
+    /** The recognition JSON (see FoodRecognizer) */
+    private final String json;
+
+    /** Whether the result was matched locally rather than returned by a recognition service */
+    private final boolean local;
+
+    /**
+     * Creates a recognition result.
+     *
+     * @param json The recognition JSON
+     * @param local Whether it was matched locally rather than returned by a recognition service
+     */
+    public Recognition(String json, boolean local) {
+        this.json = json;
+        this.local = local;
+    }
+
+    /**
+     * Gets the recognition JSON.
+     * @return The JSON string
+     */
+    public String getJson() {
+        return json;
+    }
+
+    /**
+     * Checks whether the result was matched locally against reference images.
+     * @return true for a local match, false for a result from a recognition service
+     */
+    public boolean isLocal() {
+        return local;
+    }
+}
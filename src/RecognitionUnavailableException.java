@@ -0,0 +1,38 @@
+import java.io.IOException;
+
+/**
+ * Thrown when the recognition service cannot take a request right now, for example
+ * because the API quota is exhausted or the request waited too long in the queue.
+ *
+ * Unlike a general IOException, this is a temporary condition: the caller may retry
+ * after the suggested delay.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class RecognitionUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Suggested number of seconds to wait before retrying */
+    private final int retryAfterSeconds;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message Description of why the request was not served
+     * @param retryAfterSeconds Suggested number of seconds to wait before retrying
+     */
+    public RecognitionUnavailableException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Gets the suggested number of seconds to wait before retrying.
+     * @return Seconds to wait
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how many times a failed call is retried and how long to wait between attempts.
+ *
+ * Waits grow exponentially from a base delay up to a cap, and each wait is chosen at
+ * random between zero and that value ("full jitter") so that many clients failing at
+ * the same moment do not all retry at the same moment.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class RetryPolicy {
+
+    /** Total number of attempts, including the first one */
+    private final int maxAttempts;
+
+    /** Backoff before the first retry, in milliseconds */
+    private final long baseDelayMs;
+
+    /** Largest backoff between attempts, in milliseconds */
+    private final long maxDelayMs;
+
+    /**
+     * Creates a new retry policy.
+     *
+     * @param maxAttempts Total number of attempts, including the first one (at least 1)
+     * @param baseDelayMs Backoff before the first retry, in milliseconds
+     * @param maxDelayMs Largest backoff between attempts, in milliseconds
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Gets the total number of attempts allowed.
+     * @return Maximum attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Calculates a jittered backoff before the given retry.
+     *
+     * @param attempt The attempt that just failed (1 for the first attempt)
+     * @return Milliseconds to wait before the next attempt
+     */
+    public long backoffMs(int attempt) {
+        long ceiling = baseDelayMs << Math.min(attempt - 1, 20);
+        if (ceiling <= 0 || ceiling > maxDelayMs) {
+            ceiling = maxDelayMs;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A recognition result cache shared by every server instance in a deployment, so that an
+ * image recognized by one instance is not sent to the recognition service again by another.
+ *
+ * Results are keyed by the image's perceptual hash. Only identical hashes are shared;
+ * finding near-duplicates by Hamming distance stays in each instance's NearDuplicateCache,
+ * which sits in front of this tier.
+ *
+ * A shared cache is an optimization: callers treat an IOException as a miss and carry on.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public interface SharedRecognitionCache {
+
+    /**
+     * Looks up the result for an image.
+     *
+     * @param imageHash The perceptual hash of the image
+     * @return The recognition JSON, or null if no instance has stored one
+     * @throws IOException If the cache cannot be reached
+     */
+    String get(long imageHash) throws IOException;
+
+    /**
+     * Stores the result for an image. Implementations may store it asynchronously.
+     *
+     * @param imageHash The perceptual hash of the image
+     * @param json The recognition JSON
+     * @throws IOException If the cache cannot be reached
+     */
+    void put(long imageHash, String json) throws IOException;
+
+    /**
+     * Reports the cache's operational metrics.
+     * @return JSON object with the current metrics
+     */
+    String getMetricsJson();
+
+    /**
+     * Creates the shared cache selected by the cache.shared.type setting:
+     *   none (default): no shared cache
+     *   file: a directory shared by all instances (cache.shared.dir)
+     *   peers: each instance owns part of the hash space, found with consistent hashing
+     *   over cache.shared.peers (comma-separated base URLs, including this instance's
+     *   cache.shared.self). Peer calls must carry cache.shared.secret, which is required;
+     *   cache.shared.capacity and cache.shared.maxBytes bound the results each instance keeps
+     *
+     * @return The shared cache, or null if none is configured
+     * @throws IOException If the cache directory cannot be created
+     * @throws IllegalArgumentException If the type is unknown or the peers are misconfigured
+     */
+    static SharedRecognitionCache fromConfig() throws IOException {
+        String type = AppConfig.getString("cache.shared.type", "none").toLowerCase(Locale.ROOT);
+        switch (type) {
+            case "none":
+                return null;
+            case "file":
+                return new FileRecognitionCache(new File(AppConfig.getString("cache.shared.dir", "recognition-cache")));
+            case "peers":
+                List<String> peers = Arrays.asList(AppConfig.getString("cache.shared.peers", "").split("\\s*,\\s*"));
+                return new PeerRecognitionCache(
+                    AppConfig.getString("cache.shared.self", ""),
+                    peers,
+                    AppConfig.getInt("cache.shared.virtualNodes", 128),
+                    AppConfig.getInt("cache.shared.capacity", 10_000),
+                    AppConfig.getLong("cache.shared.maxBytes", 64L * 1024 * 1024),
+                    AppConfig.getString("cache.shared.secret", ""),
+                    AppConfig.getLong("cache.shared.timeoutMs", 250));
+            default:
+                throw new IllegalArgumentException("Unknown cache.shared.type: " + type + " (expected none, file or peers)");
+        }
+    }
+
+    /**
+     * Formats an image hash as the fixed-width key used in file names and URLs.
+     *
+     * @param imageHash The perceptual hash
+     * @return 16 lower-case hex digits
+     */
+    static String keyOf(long imageHash) {
+        return String.format("%016x", imageHash);
+    }
+}
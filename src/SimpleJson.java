@@ -0,0 +1,282 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small JSON reader and writer helper, so the project needs no external JSON library.
+ * 
+ * Parsed values are returned as plain Java objects:
+ *   objects become Map&lt;String, Object&gt; (keeping key order)
+ *   arrays become List&lt;Object&gt;
+ *   numbers become Double, strings become String, true/false become Boolean, and null becomes null
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public final class SimpleJson {
+
+    /** The text being parsed */
+    private final String text;
+
+    /** Current read position */
+    private int pos;
+
+    /** Number of objects and arrays the read position is inside */
+    private int depth;
+
+    /** Deepest nesting accepted, so hostile input cannot overflow the stack */
+    private static final int MAX_DEPTH = 512;
+
+    /**
+     * Creates a parser over the given text.
+     */
+    private SimpleJson(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a JSON document.
+     * 
+     * @param json The JSON text
+     * @return The parsed value
+     * @throws IllegalArgumentException If the text is not valid JSON
+     */
+    public static Object parse(String json) {
+        SimpleJson parser = new SimpleJson(json);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.pos != json.length()) {
+            throw parser.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Parses a JSON document whose top level must be an object.
+     * 
+     * @param json The JSON text
+     * @return The parsed object
+     * @throws IllegalArgumentException If the text is not a valid JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String json) {
+        Object value = parse(json);
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * Quotes and escapes a string for inclusion in JSON output.
+     * 
+     * @param value The string to quote
+     * @return The quoted string, e.g. "Cow's \"milk\"" becomes "\"Cow's \\\"milk\\\"\""
+     */
+    public static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+        return out.toString();
+    }
+
+    /**
+     * Reads any JSON value at the current position.
+     */
+    private Object readValue() {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("Unexpected end of input");
+        }
+        char c = text.charAt(pos);
+        if ((c == '{' || c == '[') && depth >= MAX_DEPTH) {
+            throw error("Nesting too deep");
+        }
+        switch (c) {
+            case '{': return readObject();
+            case '[': return readArray();
+            case '"': return readString();
+            case 't': expect("true"); return Boolean.TRUE;
+            case 'f': expect("false"); return Boolean.FALSE;
+            case 'n': expect("null"); return null;
+            default: return readNumber();
+        }
+    }
+
+    /**
+     * Reads a JSON object.
+     */
+    private Map<String, Object> readObject() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        pos++; // skip '{'
+        depth++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            depth--;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("Expected a field name");
+            }
+            String key = readString();
+            skipWhitespace();
+            if (peek() != ':') {
+                throw error("Expected ':'");
+            }
+            pos++;
+            map.put(key, readValue());
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                depth--;
+                return map;
+            }
+            if (c != ',') throw error("Expected ',' or '}'");
+        }
+    }
+
+    /**
+     * Reads a JSON array.
+     */
+    private List<Object> readArray() {
+        List<Object> list = new ArrayList<>();
+        pos++; // skip '['
+        depth++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            depth--;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            skipWhitespace();
+            char c = next();
+            if (c == ']') {
+                depth--;
+                return list;
+            }
+            if (c != ',') throw error("Expected ',' or ']'");
+        }
+    }
+
+    /**
+     * Reads a JSON string, decoding escape sequences.
+     */
+    private String readString() {
+        pos++; // skip opening quote
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case '"': out.append('"'); break;
+                case '\\': out.append('\\'); break;
+                case '/': out.append('/'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > text.length()) throw error("Bad unicode escape");
+                    out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: throw error("Bad escape sequence");
+            }
+        }
+    }
+
+    /**
+     * Reads a JSON number. Numbers too large for a double (e.g. 1e999) are rejected
+     * rather than read as infinity.
+     */
+    private Double readNumber() {
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("Unexpected character '" + text.charAt(pos) + "'");
+        }
+        double value;
+        try {
+            value = Double.parseDouble(text.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+        if (!Double.isFinite(value)) {
+            throw error("Number out of range");
+        }
+        return value;
+    }
+
+    /**
+     * Checks that the given literal appears at the current position and skips it.
+     */
+    private void expect(String literal) {
+        if (!text.startsWith(literal, pos)) {
+            throw error("Expected " + literal);
+        }
+        pos += literal.length();
+    }
+
+    /**
+     * Skips spaces, tabs and line breaks.
+     */
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * Returns the current character without consuming it.
+     */
+    private char peek() {
+        if (pos >= text.length()) throw error("Unexpected end of input");
+        return text.charAt(pos);
+    }
+
+    /**
+     * Returns the current character and moves past it.
+     */
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    /**
+     * Creates a parse error that reports the current position.
+     */
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON at position " + pos + ": " + message);
+    }
+}
@@ -0,0 +1,92 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each startup phase took, measured from the moment the JVM started,
+ * and whether a class-data sharing (CDS) archive was used to load the classes.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class StartupTimings {
+
+    /** When the JVM started, in epoch milliseconds */
+    private final long jvmStartMillis;
+
+    /** When the previous phase ended, in epoch milliseconds */
+    private long lastMark;
+
+    /** Duration of each phase in milliseconds, in the order they ran */
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    /** The -XX:SharedArchiveFile the JVM was started with, or null for the JDK's default archive */
+    private final String sharedArchive;
+
+    /**
+     * Starts recording. The time from JVM start until now is recorded as the "jvm" phase.
+     */
+    public StartupTimings() {
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        jvmStartMillis = runtime.getStartTime();
+        String archive = null;
+        for (String argument : runtime.getInputArguments()) {
+            if (argument.startsWith("-XX:SharedArchiveFile=")) {
+                archive = argument.substring("-XX:SharedArchiveFile=".length());
+            }
+        }
+        sharedArchive = archive;
+        lastMark = jvmStartMillis;
+        mark("jvm");
+    }
+
+    /**
+     * Ends the current phase.
+     *
+     * @param phase Name of the phase that just finished
+     */
+    public synchronized void mark(String phase) {
+        long now = System.currentTimeMillis();
+        phases.merge(phase, now - lastMark, Long::sum);
+        lastMark = now;
+    }
+
+    /**
+     * Gets the time from JVM start to the last mark.
+     * @return Milliseconds since the JVM started
+     */
+    public synchronized long getTotalMillis() {
+        return lastMark - jvmStartMillis;
+    }
+
+    /**
+     * Summarizes the phases on one line for the startup log.
+     * @return e.g. "jvm 120 ms, bind 15 ms, load 480 ms (total 615 ms, CDS archive app.jsa)"
+     */
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            if (text.length() > 0) text.append(", ");
+            text.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+        }
+        text.append(" (total ").append(getTotalMillis()).append(" ms, ")
+            .append(sharedArchive == null ? "default CDS archive" : "CDS archive " + sharedArchive).append(")");
+        return text.toString();
+    }
+
+    /**
+     * Converts the timings to JSON.
+     * @return JSON object with each phase in milliseconds, the total and the CDS archive
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            json.append("\"").append(phase.getKey()).append("Ms\": ").append(phase.getValue()).append(", ");
+        }
+        json.append("\"totalMs\": ").append(getTotalMillis())
+            .append(", \"sharedArchive\": ").append(sharedArchive == null ? "null" : SimpleJson.quote(sharedArchive))
+            .append("}");
+        return json.toString();
+    }
+}
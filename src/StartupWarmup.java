@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises the server's hot paths with synthetic meals before it reports ready, so the
+ * first real requests do not run in the interpreter while the JIT catches up.
+ *
+ * Three kinds of work are repeated:
+ *   recognition JSON is parsed into meals and serialized again, as /analyze-image does
+ *   the recognizer builds request bodies and parses responses (no external call is made)
+ *   meals are posted to the server's own /meals endpoints over loopback, which runs the
+ *   HTTP client and server, the handlers and the response encoding end to end
+ * The loopback requests carry a per-process token so the admission filter lets them in
+ * while every other request still gets 503.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class StartupWarmup {
+
+    /** Header carrying the warm-up token */
+    public static final String TOKEN_HEADER = "X-Warm-Up-Token";
+
+    /** Calculator whose parsing and recognizer are warmed up */
+    private final EnvironmentalImpactCalculator calculator;
+
+    /** Base address of the server, e.g. http://127.0.0.1:8080 */
+    private final String baseUrl;
+
+    /** Token that admits warm-up requests before the server is ready */
+    private final String token;
+
+    /** Food names to build synthetic meals from */
+    private final String[] foodNames;
+
+    /**
+     * Creates a warm-up run.
+     *
+     * @param calculator The loaded calculator
+     * @param port The port the server listens on
+     * @param token The token the admission filter accepts
+     */
+    public StartupWarmup(EnvironmentalImpactCalculator calculator, int port, String token) {
+        this.calculator = calculator;
+        this.baseUrl = "http://127.0.0.1:" + port;
+        this.token = token;
+        this.foodNames = calculator.getFoodItems().stream().map(FoodItem::getName).toArray(String[]::new);
+    }
+
+    /**
+     * Runs the warm-up until the given number of rounds is done or the time is up.
+     *
+     * @param rounds Number of synthetic meals to push through each path
+     * @param concurrency Number of threads sending loopback requests
+     * @param timeoutMs Longest time to spend warming up
+     * @return The number of loopback requests that were answered with 200
+     * @throws IOException If the in-process paths fail on the synthetic data
+     */
+    public int run(int rounds, int concurrency, long timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Random random = new Random(42);
+
+        // In-process paths: parse recognition JSON, serialize meals, build recognizer requests
+        for (int i = 0; i < rounds && System.nanoTime() < deadline; i++) {
+            calculator.createMealFromRecognition(recognitionJson(random)).toJson();
+        }
+        calculator.getRecognizer().warmUp(Math.max(1, rounds / 10));
+
+        // Loopback requests through the HTTP stack
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+        ExecutorService senders = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+            Thread thread = new Thread(runnable, "warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger answered = new AtomicInteger();
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < Math.max(1, concurrency); t++) {
+                long seed = t;
+                workers.add(senders.submit(() -> {
+                    Random workerRandom = new Random(seed);
+                    int n;
+                    while ((n = next.getAndIncrement()) < rounds && System.nanoTime() < deadline) {
+                        String meal = composeJson(workerRandom);
+                        boolean ok;
+                        if (n % 8 == 7) {
+                            ok = post(client, "/meals/compose/bulk", "{\"meals\": [" + meal + ", " + composeJson(workerRandom) + "]}");
+                        } else if (n % 4 == 3) {
+                            ok = post(client, "/meals/substitutions", meal);
+                        } else {
+                            ok = post(client, "/meals/compose", meal);
+                        }
+                        if (ok) answered.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Warm-up request failed: " + e.getCause());
+        } finally {
+            senders.shutdownNow();
+        }
+        return answered.get();
+    }
+
+    /**
+     * Posts one warm-up request.
+     *
+     * @return true if the server answered 200
+     */
+    private boolean post(HttpClient client, String path, String body) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .header(TOKEN_HEADER, token)
+                .timeout(Duration.ofSeconds(10))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+            return client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode() == 200;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Builds a synthetic recognition result in the format the recognizer returns.
+     */
+    private String recognitionJson(Random random) {
+        StringBuilder json = new StringBuilder("{\"mealName\": \"Warm-up\", \"detectedItems\": [");
+        int items = 1 + random.nextInt(6);
+        for (int i = 0; i < items; i++) {
+            String food = SimpleJson.quote(foodNames[random.nextInt(foodNames.length)]);
+            if (i > 0) json.append(", ");
+            json.append("{\"originalLabel\": ").append(food)
+                .append(", \"canonicalName\": ").append(food)
+                .append(", \"portionKg\": ").append(0.05 + random.nextInt(35) / 100.0)
+                .append(", \"confidence\": ").append(0.5 + random.nextInt(50) / 100.0).append("}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Builds a synthetic /meals/compose request body.
+     */
+    private String composeJson(Random random) {
+        StringBuilder json = new StringBuilder("{\"mealName\": \"Warm-up\", \"items\": [");
+        int items = 1 + random.nextInt(6);
+        for (int i = 0; i < items; i++) {
+            if (i > 0) json.append(", ");
+            json.append("{\"name\": ").append(SimpleJson.quote(foodNames[random.nextInt(foodNames.length)]))
+                .append(", \"portionKg\": ").append(0.05 + random.nextInt(35) / 100.0).append("}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Suggests lower-impact substitutions for the foods in a meal and evaluates "what-if"
+ * variants of a meal.
+ * 
+ * When created, the foods are split into substitution groups (see FoodCategory) and each
+ * group is sorted once per metric, lowest impact first. Finding the best replacements for a
+ * portion then only reads the start of its group's list, stopping as soon as a candidate is
+ * no better than the current food, instead of scanning every food on every request.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class SubstitutionRecommender {
+
+    /** Foods by name */
+    private final Map<String, FoodItem> itemsByName = new HashMap<>();
+
+    /** For each substitution group, its foods sorted by each metric (indexed by metric ordinal), lowest first */
+    private final Map<String, FoodItem[][]> sortedByGroup = new HashMap<>();
+
+    /**
+     * Builds the sorted indexes for a set of foods.
+     * 
+     * @param items All foods that may be suggested
+     */
+    public SubstitutionRecommender(Collection<FoodItem> items) {
+        Map<String, List<FoodItem>> groups = new HashMap<>();
+        for (FoodItem item : items) {
+            itemsByName.put(item.getName(), item);
+            groups.computeIfAbsent(groupOf(item.getName()), group -> new ArrayList<>()).add(item);
+        }
+
+        for (Map.Entry<String, List<FoodItem>> group : groups.entrySet()) {
+            FoodItem[][] sorted = new FoodItem[ImpactMetric.values().length][];
+            for (ImpactMetric metric : ImpactMetric.values()) {
+                FoodItem[] byMetric = group.getValue().toArray(new FoodItem[0]);
+                Arrays.sort(byMetric, Comparator.comparingDouble(metric::perKg));
+                sorted[metric.ordinal()] = byMetric;
+            }
+            sortedByGroup.put(group.getKey(), sorted);
+        }
+    }
+
+    /**
+     * Gets the substitution group of a food.
+     */
+    private static String groupOf(String foodName) {
+        return FoodCategory.classify(foodName).getSubstitutionGroup();
+    }
+
+    /**
+     * Finds the single-food substitutions that reduce a metric the most.
+     * 
+     * @param meal The meal to improve
+     * @param metric The metric to reduce
+     * @param limit Maximum number of suggestions to return
+     * @return Suggestions ordered by the saving they give, largest first
+     * @throws IllegalArgumentException If the limit is negative
+     */
+    public List<Suggestion> suggest(Meal meal, ImpactMetric metric, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        List<Suggestion> suggestions = new ArrayList<>();
+        double mealTotal = metric.total(meal);
+        FoodPortion[] portions = meal.getFoodPortions();
+
+        for (FoodPortion portion : portions) {
+            FoodItem current = portion.getFoodItem();
+            double currentPerKg = metric.perKg(current);
+            FoodItem[][] sorted = sortedByGroup.get(groupOf(current.getName()));
+            if (sorted == null) continue;
+
+            int found = 0;
+            for (FoodItem candidate : sorted[metric.ordinal()]) {
+                double candidatePerKg = metric.perKg(candidate);
+                // The list is sorted, so no later candidate can be better either
+                if (candidatePerKg >= currentPerKg || found >= limit) break;
+                if (candidate.getName().equals(current.getName())) continue;
+
+                double saving = (currentPerKg - candidatePerKg) * portion.getPortionKg();
+                suggestions.add(new Suggestion(current.getName(), candidate.getName(), portion.getPortionKg(),
+                    saving, mealTotal > 0 ? saving / mealTotal : 0));
+                found++;
+            }
+        }
+
+        suggestions.sort(Comparator.comparingDouble(Suggestion::getSaving).reversed());
+        return suggestions.size() > limit ? new ArrayList<>(suggestions.subList(0, limit)) : suggestions;
+    }
+
+    /**
+     * Calculates the totals of many variants of a meal in one pass.
+     * 
+     * The per-portion impacts of the base meal are calculated once; each variant's totals
+     * are then the base totals plus the difference made by its changes.
+     * 
+     * Portions of the same food are treated as one: a change replaces all of them, and a
+     * new portion weight is the weight of the food in the whole meal. If a variant changes
+     * the same food more than once, its last change is the one that counts.
+     * 
+     * @param meal The base meal
+     * @param variants For each variant, the changes that make it
+     * @return For each variant, its totals indexed by metric ordinal
+     * @throws IllegalArgumentException If a change names a food not in the meal or not in the
+     *         database, or gives a negative portion weight
+     */
+    public double[][] evaluateVariants(Meal meal, List<List<Change>> variants) {
+        ImpactMetric[] metrics = ImpactMetric.values();
+        FoodPortion[] portions = meal.getFoodPortions();
+
+        // One entry per distinct food, adding up its portions
+        Map<String, Integer> foodIndex = new HashMap<>();
+        List<double[]> contributions = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double[] base = new double[metrics.length];
+        for (FoodPortion portion : portions) {
+            Integer index = foodIndex.get(portion.getFoodItem().getName());
+            if (index == null) {
+                index = contributions.size();
+                foodIndex.put(portion.getFoodItem().getName(), index);
+                contributions.add(new double[metrics.length]);
+                weights.add(0.0);
+            }
+            weights.set(index, weights.get(index) + portion.getPortionKg());
+            for (ImpactMetric metric : metrics) {
+                double value = metric.perKg(portion.getFoodItem()) * portion.getPortionKg();
+                contributions.get(index)[metric.ordinal()] += value;
+                base[metric.ordinal()] += value;
+            }
+        }
+
+        double[][] results = new double[variants.size()][];
+        for (int v = 0; v < variants.size(); v++) {
+            // Merge the variant's changes per food first, so a food is only taken out once
+            Map<Integer, Change> changesByFood = new HashMap<>();
+            for (Change change : variants.get(v)) {
+                Integer index = foodIndex.get(change.getReplace());
+                if (index == null) {
+                    throw new IllegalArgumentException("Meal has no item named " + change.getReplace());
+                }
+                if (change.getWith() != null && !itemsByName.containsKey(change.getWith())) {
+                    throw new IllegalArgumentException("Unknown food item: " + change.getWith());
+                }
+                if (change.getPortionKg() < 0) {
+                    throw new IllegalArgumentException("portionKg must not be negative");
+                }
+                changesByFood.put(index, change);
+            }
+
+            double[] totals = base.clone();
+            for (Map.Entry<Integer, Change> entry : changesByFood.entrySet()) {
+                int index = entry.getKey();
+                Change change = entry.getValue();
+                FoodItem replacement = change.getWith() == null ? null : itemsByName.get(change.getWith());
+                double portionKg = Double.isNaN(change.getPortionKg())
+                    ? weights.get(index) : change.getPortionKg();
+
+                for (ImpactMetric metric : metrics) {
+                    totals[metric.ordinal()] -= contributions.get(index)[metric.ordinal()];
+                    if (replacement != null) {
+                        totals[metric.ordinal()] += metric.perKg(replacement) * portionKg;
+                    }
+                }
+            }
+            results[v] = totals;
+        }
+        return results;
+    }
+
+    /**
+     * A suggested replacement of one food in a meal.
+     */
+    public static class Suggestion {
+
+        /** Name of the food to replace */
+        private final String replace;
+
+        /** Name of the suggested food */
+        private final String with;
+
+        /** Portion weight in kg (kept the same) */
+        private final double portionKg;
+
+        /** How much the metric drops */
+        private final double saving;
+
+        /** The saving as a fraction of the meal's total */
+        private final double savingShare;
+
+        /**
+         * Creates a suggestion.
+         * 
+         * @param replace Name of the food to replace
+         * @param with Name of the suggested food
+         * @param portionKg Portion weight in kg
+         * @param saving How much the metric drops
+         * @param savingShare The saving as a fraction of the meal's total
+         */
+        public Suggestion(String replace, String with, double portionKg, double saving, double savingShare) {
+            this.replace = replace;
+            this.with = with;
+            this.portionKg = portionKg;
+            this.saving = saving;
+            this.savingShare = savingShare;
+        }
+
+        /**
+         * Gets how much the metric drops.
+         * @return The saving, in the metric's unit
+         */
+        public double getSaving() {
+            return saving;
+        }
+
+        /**
+         * Converts the suggestion to JSON.
+         * @return JSON string representation of the suggestion
+         */
+        public String toJson() {
+            return "{\"replace\": " + SimpleJson.quote(replace)
+                + ", \"with\": " + SimpleJson.quote(with)
+                + ", \"portionKg\": " + portionKg
+                + ", \"saving\": " + String.format("%.2f", saving)
+                + ", \"savingPercent\": " + String.format("%.1f", savingShare * 100) + "}";
+        }
+    }
+
+    /**
+     * One change in a what-if variant: replace (or remove) a food and optionally change its portion.
+     */
+    public static class Change {
+
+        /** Name of the food in the meal to change */
+        private final String replace;
+
+        /** Name of the food to put in its place, or null to remove it */
+        private final String with;
+
+        /** New portion weight in kg, or NaN to keep the current one */
+        private final double portionKg;
+
+        /**
+         * Creates a change.
+         * 
+         * @param replace Name of the food in the meal to change
+         * @param with Name of the replacement food, or null to remove the food
+         * @param portionKg New portion weight in kg, or NaN to keep the current one
+         */
+        public Change(String replace, String with, double portionKg) {
+            this.replace = replace;
+            this.with = with;
+            this.portionKg = portionKg;
+        }
+
+        /**
+         * Gets the name of the food to change.
+         * @return The food name
+         */
+        public String getReplace() {
+            return replace;
+        }
+
+        /**
+         * Gets the name of the replacement food.
+         * @return The food name, or null if the food is removed
+         */
+        public String getWith() {
+            return with;
+        }
+
+        /**
+         * Gets the new portion weight.
+         * @return Weight in kg, or NaN to keep the current one
+         */
+        public double getPortionKg() {
+            return portionKg;
+        }
+    }
+}
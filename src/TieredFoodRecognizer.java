@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Combines a local recognizer with a remote one.
+ * 
+ * The local recognizer is asked first with a strict match threshold; only images it does
+ * not recognize are sent to the remote service. If the remote call fails, the local
+ * recognizer is asked again with a looser threshold before giving up.
+ * 
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class TieredFoodRecognizer implements FoodRecognizer {
+
+    /** Fast, CPU-only first tier */
+    private final LocalFoodRecognizer local;
+
+    /** Remote service used when the local tier has no match */
+    private final FoodRecognizer remote;
+
+    /** Largest Hamming distance accepted before calling the remote service */
+    private final int firstTierDistance;
+
+    /** Largest Hamming distance accepted when the remote service has failed */
+    private final int fallbackDistance;
+
+    /**
+     * Creates a tiered recognizer.
+     * 
+     * @param local The local recognizer
+     * @param remote The remote recognizer
+     * @param firstTierDistance Largest distance accepted before calling the remote service
+     * @param fallbackDistance Largest distance accepted when the remote service fails
+     */
+    public TieredFoodRecognizer(LocalFoodRecognizer local, FoodRecognizer remote,
+                                int firstTierDistance, int fallbackDistance) {
+        this.local = local;
+        this.remote = remote;
+        this.firstTierDistance = firstTierDistance;
+        this.fallbackDistance = fallbackDistance;
+    }
+
+    @Override
+    public String analyzeImage(byte[] imageBytes, String mimeType) throws IOException {
+        return analyzeImage(ByteBuffer.wrap(imageBytes), mimeType);
+    }
+
+    @Override
+    public String analyzeImage(ByteBuffer image, String mimeType) throws IOException {
+        Long hash;
+        try {
+            hash = PerceptualHash.dHash(image);
+        } catch (IOException e) {
+            hash = null;
+        }
+        return analyzeImage(image, mimeType, hash, NO_DEADLINE);
+    }
+
+    @Override
+    public String analyzeImage(ByteBuffer image, String mimeType, Long imageHash, long deadlineNanos) throws IOException {
+        return recognize(image, mimeType, imageHash, deadlineNanos).getJson();
+    }
+
+    /**
+     * Recognizes an image, matching it locally by the hash the caller computed instead of
+     * decoding and hashing the image again. The deadline is passed on to the remote service.
+     * First-tier and fallback matches are reported as local, so they are not cached or shared.
+     */
+    @Override
+    public Recognition recognize(ByteBuffer image, String mimeType, Long imageHash, long deadlineNanos) throws IOException {
+        if (imageHash == null) {
+            // e.g. a format ImageIO cannot decode; only the remote service can help
+            return remote.recognize(image, mimeType, null, deadlineNanos);
+        }
+
+        String json = local.findMatch(imageHash, firstTierDistance);
+        if (json != null) {
+            return new Recognition(json, true);
+        }
+
+        try {
+            return remote.recognize(image, mimeType, imageHash, deadlineNanos);
+        } catch (IOException e) {
+            json = local.findMatch(imageHash, fallbackDistance);
+            if (json != null) {
+                System.out.println("Remote recognition failed, using local fallback: " + e.getMessage());
+                return new Recognition(json, true);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void setCanonicalNames(Collection<String> names) {
+        remote.setCanonicalNames(names);
+    }
+
+    @Override
+    public void warmUp(int iterations) throws IOException {
+        remote.warmUp(iterations);
+    }
+
+    @Override
+    public String getMetricsJson() {
+        return "{\n  \"local\": " + local.getMetricsJson() + ",\n  \"remote\": " + remote.getMetricsJson() + "\n}";
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token-bucket rate limiter that keeps outgoing API calls under a fixed quota.
+ *
+ * Tokens are added continuously at a fixed rate up to a maximum burst size. Each call
+ * takes one token. When the bucket is empty, a caller reserves the next token and waits
+ * for it, so waiting callers are served in arrival order. A caller whose wait would be
+ * longer than its timeout is rejected straight away instead of queueing.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class TokenBucketRateLimiter {
+
+    /** Number of tokens added per second */
+    private final double permitsPerSecond;
+
+    /** Maximum number of tokens the bucket can hold (the allowed burst) */
+    private final double burstCapacity;
+
+    /** Tokens currently available; negative when callers have reserved future tokens */
+    private double availableTokens;
+
+    /** Time of the last refill, from System.nanoTime() */
+    private long lastRefillNanos;
+
+    /** Number of callers that timed out waiting for a token */
+    private long rejectedCount;
+
+    /**
+     * Creates a new rate limiter that starts with a full bucket.
+     *
+     * @param permitsPerSecond How many calls are allowed per second on average
+     * @param burstCapacity How many calls may be made back-to-back after an idle period
+     */
+    public TokenBucketRateLimiter(double permitsPerSecond, double burstCapacity) {
+        if (permitsPerSecond <= 0 || burstCapacity < 1) {
+            throw new IllegalArgumentException("permitsPerSecond must be > 0 and burstCapacity >= 1");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burstCapacity = burstCapacity;
+        this.availableTokens = burstCapacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes one token, waiting up to the given timeout for it to become available.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return true if a token was taken, false if it would not be available in time
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            if (availableTokens >= 1) {
+                availableTokens -= 1;
+                return true;
+            }
+            waitNanos = (long) ((1 - availableTokens) / permitsPerSecond * 1_000_000_000L);
+            if (waitNanos > unit.toNanos(timeout)) {
+                rejectedCount++;
+                return false;
+            }
+            // Reserve the next token so later callers queue behind this one
+            availableTokens -= 1;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                availableTokens += 1;
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the tokens earned since the last refill, up to the burst capacity.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        double earned = (now - lastRefillNanos) / 1_000_000_000.0 * permitsPerSecond;
+        availableTokens = Math.min(burstCapacity, availableTokens + earned);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Gets the number of tokens currently available.
+     * @return Available tokens (negative when callers are queued)
+     */
+    public synchronized double getAvailableTokens() {
+        refill();
+        return availableTokens;
+    }
+
+    /**
+     * Gets the configured rate.
+     * @return Permits per second
+     */
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Gets the number of callers rejected because they could not get a token in time.
+     * @return Rejected call count
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
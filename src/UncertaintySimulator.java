@@ -0,0 +1,274 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates how uncertain a meal's totals are, using Monte Carlo simulation.
+ *
+ * Two sources of error are modelled for each portion:
+ *   The portion weight is an estimate, so each sample scales it by a log-normal factor
+ *   with mean 1 (portionSigma sets how wide the spread is)
+ *   The food may be misidentified: with probability 1 - confidence a sample uses a random
+ *   food from the same substitution group (see FoodCategory) instead, with its values taken
+ *   from the same emission profile as the meal
+ * Each sample sums the four metrics over all portions; the spread of those sums gives a
+ * confidence interval for every total.
+ *
+ * Samples are split into chunks that run on a parallel stream. Each chunk has its own
+ * SplittableRandom (split from one seed beforehand, so results do not depend on thread
+ * timing) and writes into shared primitive arrays, so no objects are created per sample.
+ *
+ * @author Environmental Impact Calculator Team
+ * @version 1.0
+ */
+public class UncertaintySimulator {
+
+    /** Number of metrics simulated */
+    private static final int METRICS = ImpactMetric.values().length;
+
+    /** Samples per parallel chunk */
+    private static final int CHUNK_SIZE = 1024;
+
+    /** For each substitution group, its foods' global per-kg values (indexed by metric ordinal, then food) */
+    private final Map<String, double[][]> groupPerKg = new HashMap<>();
+
+    /** For each substitution group, its global foods */
+    private final Map<String, FoodItem[]> groupFoods = new HashMap<>();
+
+    /** Regional values for the foods a misidentified item may really be */
+    private final EmissionProfiles profiles;
+
+    /** Number of samples per simulation */
+    private final int samples;
+
+    /** Standard deviation of the log of the portion error */
+    private final double portionSigma;
+
+    /**
+     * Creates a simulator.
+     *
+     * @param foodItems All foods that a misidentified item may really be
+     * @param profiles The emission profiles meals may be simulated under
+     * @param samples Number of samples per simulation
+     * @param portionSigma Standard deviation of the log of the portion error (0.3 is roughly +/-30%)
+     */
+    public UncertaintySimulator(Collection<FoodItem> foodItems, EmissionProfiles profiles,
+                                int samples, double portionSigma) {
+        if (samples < 100 || portionSigma < 0) {
+            throw new IllegalArgumentException("Require samples >= 100 and portionSigma >= 0");
+        }
+        this.profiles = profiles;
+        this.samples = samples;
+        this.portionSigma = portionSigma;
+
+        Map<String, List<FoodItem>> groups = new HashMap<>();
+        for (FoodItem item : foodItems) {
+            groups.computeIfAbsent(groupOf(item.getName()), group -> new ArrayList<>()).add(item);
+        }
+        for (Map.Entry<String, List<FoodItem>> group : groups.entrySet()) {
+            double[][] perKg = new double[METRICS][group.getValue().size()];
+            for (int i = 0; i < group.getValue().size(); i++) {
+                for (ImpactMetric metric : ImpactMetric.values()) {
+                    perKg[metric.ordinal()][i] = metric.perKg(group.getValue().get(i));
+                }
+            }
+            groupPerKg.put(group.getKey(), perKg);
+            groupFoods.put(group.getKey(), group.getValue().toArray(new FoodItem[0]));
+        }
+    }
+
+    /**
+     * Gets the substitution group of a food.
+     */
+    private static String groupOf(String foodName) {
+        return FoodCategory.classify(foodName).getSubstitutionGroup();
+    }
+
+    /**
+     * Gets the per-kg values of a substitution group's foods under a profile.
+     */
+    private double[][] alternativesOf(String group, String profileName) {
+        FoodItem[] foods = groupFoods.get(group);
+        if (foods == null || !profiles.hasRegionalValues(profileName)) {
+            return groupPerKg.get(group);
+        }
+        double[][] perKg = new double[METRICS][foods.length];
+        for (int i = 0; i < foods.length; i++) {
+            FoodItem food = profiles.resolve(foods[i], profileName);
+            for (ImpactMetric metric : ImpactMetric.values()) {
+                perKg[metric.ordinal()][i] = metric.perKg(food);
+            }
+        }
+        return perKg;
+    }
+
+    /**
+     * Simulates a meal's totals.
+     *
+     * @param meal The meal, with the profile's values already applied
+     * @param profileName The profile the meal uses, or null for the global one
+     * @param seed Seed for the random numbers; the same seed gives the same result
+     * @return The distribution of each total
+     * @throws IllegalArgumentException If no profile has that name
+     */
+    public Result simulate(Meal meal, String profileName, long seed) {
+        FoodPortion[] portions = meal.getFoodPortions();
+        int n = portions.length;
+        double[][] basePerKg = new double[METRICS][n];
+        double[] portionKg = new double[n];
+        double[] confidence = new double[n];
+        double[][][] alternatives = new double[n][][];
+        // Groups are resolved once per meal, however many of its portions share one
+        Map<String, double[][]> resolved = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            for (ImpactMetric metric : ImpactMetric.values()) {
+                basePerKg[metric.ordinal()][i] = metric.perKg(portions[i].getFoodItem());
+            }
+            portionKg[i] = portions[i].getPortionKg();
+            confidence[i] = portions[i].getConfidence();
+            alternatives[i] = resolved.computeIfAbsent(groupOf(portions[i].getFoodItem().getName()),
+                group -> alternativesOf(group, profileName));
+        }
+
+        // Split all generators up front so each chunk's stream is fixed by the seed
+        int chunks = (samples + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] generators = new SplittableRandom[chunks];
+        for (int c = 0; c < chunks; c++) {
+            generators[c] = root.split();
+        }
+
+        double[][] totals = new double[METRICS][samples];
+        // Mean-preserving log-normal: E[exp(sigma * Z - sigma^2 / 2)] = 1
+        double drift = portionSigma * portionSigma / 2;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            SplittableRandom random = generators[c];
+            int end = Math.min(samples, (c + 1) * CHUNK_SIZE);
+            for (int s = c * CHUNK_SIZE; s < end; s++) {
+                double carbon = 0, water = 0, land = 0, nitrogen = 0;
+                for (int i = 0; i < n; i++) {
+                    double kg = portionKg[i] * Math.exp(portionSigma * random.nextGaussian() - drift);
+                    double[][] perKg = basePerKg;
+                    int food = i;
+                    if (random.nextDouble() >= confidence[i] && alternatives[i] != null) {
+                        perKg = alternatives[i];
+                        food = random.nextInt(perKg[0].length);
+                    }
+                    carbon += perKg[0][food] * kg;
+                    water += perKg[1][food] * kg;
+                    land += perKg[2][food] * kg;
+                    nitrogen += perKg[3][food] * kg;
+                }
+                totals[0][s] = carbon;
+                totals[1][s] = water;
+                totals[2][s] = land;
+                totals[3][s] = nitrogen;
+            }
+        });
+
+        double[][] summary = new double[METRICS][];
+        for (int m = 0; m < METRICS; m++) {
+            summary[m] = summarize(totals[m]);
+        }
+        return new Result(samples, summary);
+    }
+
+    /**
+     * Reduces one metric's samples to mean, 2.5th, 50th and 97.5th percentiles.
+     */
+    private static double[] summarize(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        Arrays.sort(values);
+        return new double[] {
+            sum / values.length,
+            percentile(values, 0.025),
+            percentile(values, 0.5),
+            percentile(values, 0.975)
+        };
+    }
+
+    /**
+     * Reads a percentile from sorted values, interpolating between neighbours.
+     */
+    private static double percentile(double[] sorted, double p) {
+        double position = p * (sorted.length - 1);
+        int lower = (int) position;
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        return sorted[lower] + (sorted[upper] - sorted[lower]) * (position - lower);
+    }
+
+    /**
+     * The distribution of a meal's totals.
+     */
+    public static class Result {
+        private final int samples;
+        /** Per metric ordinal: mean, low (2.5%), median, high (97.5%) */
+        private final double[][] summary;
+
+        Result(int samples, double[][] summary) {
+            this.samples = samples;
+            this.summary = summary;
+        }
+
+        /**
+         * Gets the mean of a total.
+         * @param metric The metric
+         * @return The mean
+         */
+        public double getMean(ImpactMetric metric) {
+            return summary[metric.ordinal()][0];
+        }
+
+        /**
+         * Gets the lower end of the 95% interval of a total.
+         * @param metric The metric
+         * @return The 2.5th percentile
+         */
+        public double getLow(ImpactMetric metric) {
+            return summary[metric.ordinal()][1];
+        }
+
+        /**
+         * Gets the median of a total.
+         * @param metric The metric
+         * @return The 50th percentile
+         */
+        public double getMedian(ImpactMetric metric) {
+            return summary[metric.ordinal()][2];
+        }
+
+        /**
+         * Gets the upper end of the 95% interval of a total.
+         * @param metric The metric
+         * @return The 97.5th percentile
+         */
+        public double getHigh(ImpactMetric metric) {
+            return summary[metric.ordinal()][3];
+        }
+
+        /**
+         * Converts the result to JSON.
+         * @return JSON object with the sample count and, per metric, mean, median and 95% interval
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("    \"samples\": ").append(samples);
+            for (ImpactMetric metric : ImpactMetric.values()) {
+                json.append(",\n    \"").append(metric.getJsonName()).append("\": {")
+                    .append(String.format("\"mean\": %.2f, \"median\": %.2f, \"low95\": %.2f, \"high95\": %.2f",
+                        getMean(metric), getMedian(metric), getLow(metric), getHigh(metric)))
+                    .append("}");
+            }
+            json.append("\n  }");
+            return json.toString();
+        }
+    }
+}
@@ -1,10 +1,33 @@
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.net.URLDecoder;
 import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A simple HTTP server that provides a REST API for food image analysis.
@@ -19,40 +42,337 @@ public class WebServer {
     
     /** Calculator instance for processing requests */
     private EnvironmentalImpactCalculator calculator;
+
+    /** Stores every analyzed meal per user */
+    private MealHistoryStore historyStore;
+
+    /** Per-user rollups of recorded meals, kept up to date as meals are recorded */
+    private ImpactAggregates aggregates;
+
+    /** Suggests lower-impact substitutions by emission profile name, using indexes built once at startup */
+    private final Map<String, SubstitutionRecommender> recommenders = new HashMap<>();
+
+    /** Searches for low-impact meal plans by emission profile name, all on one fork-join pool */
+    private final Map<String, MealPlanner> planners = new HashMap<>();
+
+    /** Estimates confidence intervals of meal totals when a request asks for them */
+    private UncertaintySimulator uncertaintySimulator;
+
+    /** Regional emission factors that a request can select instead of the global dataset */
+    private EmissionProfiles profiles;
+
+    /** Runs /analyze-image requests as asynchronous stages on CPU and I/O executors */
+    private ImageAnalysisPipeline pipeline;
+    
+    /** Runs the periodic meal history compaction */
+    private ScheduledExecutorService maintenance;
+
+    /** Temporary history directory of a training run, deleted when the server stops */
+    private File trainingHistoryDir;
+
+    /** Threads that run the HTTP handlers */
+    private ExecutorService requestExecutor;
+
+    /** Whether the dataset is loaded and warmed up, so the load balancer may send traffic */
+    private volatile boolean ready;
+
+    /** Whether requests other than health checks are admitted */
+    private volatile boolean accepting;
+
+    /** Whether the server is shutting down */
+    private volatile boolean draining;
+
+    /** Set once new requests are refused on shutdown, so running /meals/plan searches return what they have */
+    private final AtomicBoolean planningCancelled = new AtomicBoolean();
+
+    /** Requests that have been admitted but not yet answered */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** When the server was created, for the uptime reported by /live */
+    private final long createdMillis = System.currentTimeMillis();
+
+    /** How long each startup phase took */
+    private final StartupTimings startupTimings = new StartupTimings();
+
+    /** Token that admits the warm-up's own requests before the server is ready (null otherwise) */
+    private volatile String warmUpToken;
     
     /**
-     * Creates and configures a new web server.
+     * Creates a new web server. The port is bound straight away so that /live and /ready
+     * can answer while the food database loads; every other endpoint answers 503 until then.
      * 
      * @param port The port number to listen on
-     * @throws IOException If the server cannot start or database cannot load
+     * @throws IOException If the port cannot be bound
      */
     public WebServer(int port) throws IOException {
+        // Without TCP_NODELAY, responses to clients that delay their ACKs (such as the JDK's
+        // own HttpClient) stall for about 40 ms; the JDK reads this when the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", String.valueOf(AppConfig.getBoolean("server.tcpNoDelay", true)));
+        }
         server = HttpServer.create(new InetSocketAddress(port), 0);
+
+        // Health checks bypass admission so they keep answering while starting and draining
+        server.createContext("/live", new LivenessHandler());
+        server.createContext("/ready", new ReadinessHandler());
+
+        // Register endpoint handlers
+        AdmissionFilter admission = new AdmissionFilter();
+        server.createContext("/analyze-image", new ImageAnalysisHandler()).getFilters().add(admission);
+        server.createContext("/metrics", new MetricsHandler()).getFilters().add(admission);
+        server.createContext("/meals/compose", new MealCompositionHandler(false)).getFilters().add(admission);
+        server.createContext("/meals/compose/bulk", new MealCompositionHandler(true)).getFilters().add(admission);
+        server.createContext("/meals/substitutions", new SubstitutionHandler()).getFilters().add(admission);
+        server.createContext("/meals/what-if", new WhatIfHandler()).getFilters().add(admission);
+        server.createContext("/meals/plan", new MealPlanHandler()).getFilters().add(admission);
+        server.createContext("/history", new HistoryHandler()).getFilters().add(admission);
+        server.createContext("/aggregates", new AggregatesHandler()).getFilters().add(admission);
+        server.createContext("/aggregates/foods", new FoodAggregatesHandler()).getFilters().add(admission);
+        server.createContext(PeerRecognitionCache.PATH, new PeerCacheHandler()).getFilters().add(admission);
+        server.createContext("/", new StaticFileHandler("../web")).getFilters().add(admission);
         
-        // Load the food database
+        // Handle requests on a pool so slow API calls do not block each other
+        requestExecutor = Executors.newFixedThreadPool(AppConfig.getInt("server.threads", 16));
+        server.setExecutor(requestExecutor);
+        startupTimings.mark("bind");
+    }
+
+    /**
+     * Loads the food database and everything built from it, and opens the meal history.
+     * A training run records its warm-up meals in a temporary history without compaction,
+     * so it never opens (and never recovers or truncates) the live history.
+     * 
+     * @param training Whether this is a training run
+     * @throws IOException If the database, a profile or the history cannot be loaded
+     */
+    private void load(boolean training) throws IOException {
         calculator = new EnvironmentalImpactCalculator();
         calculator.loadFromFile("Environmental impacts of food (Clark et al. 2022) copy.csv");
-        
-        // Register endpoint handlers
-        server.createContext("/analyze-image", new ImageAnalysisHandler());
-        server.createContext("/", new StaticFileHandler("../web"));
-        
-        server.setExecutor(null);
+        pipeline = new ImageAnalysisPipeline(calculator,
+            AppConfig.getInt("pipeline.cpuThreads", Runtime.getRuntime().availableProcessors()),
+            AppConfig.getInt("pipeline.ioThreads", 32),
+            AppConfig.getInt("pipeline.queueCapacity", 1000));
+        profiles = new EmissionProfiles(calculator.getFoodItems());
+        profiles.loadDirectory(new File(AppConfig.getString("profiles.dir", "profiles")));
+
+        // Substitutions and plans compare foods by value, so each region gets its own indexes
+        ForkJoinPool planningPool = new ForkJoinPool(
+            AppConfig.getInt("planner.parallelism", Runtime.getRuntime().availableProcessors()));
+        for (String region : profiles.getProfileNames()) {
+            List<FoodItem> items = profiles.resolveAll(region);
+            recommenders.put(region, new SubstitutionRecommender(items));
+            planners.put(region, new MealPlanner(items, planningPool));
+        }
+        uncertaintySimulator = new UncertaintySimulator(calculator.getFoodItems(), profiles,
+            AppConfig.getInt("uncertainty.samples", 10000), AppConfig.getDouble("uncertainty.portionSigma", 0.3));
+
+        // Open the meal history and compact it periodically in the background
+        File historyDir = new File(AppConfig.getString("history.dir", "meal-history"));
+        if (training) {
+            trainingHistoryDir = Files.createTempDirectory("meal-history-training").toFile();
+            historyDir = trainingHistoryDir;
+        }
+        historyStore = new MealHistoryStore(
+            historyDir,
+            AppConfig.getLong("history.segmentBytes", 64L * 1024 * 1024),
+            AppConfig.getBoolean("history.fsync", true),
+            TimeUnit.DAYS.toMillis(AppConfig.getLong("history.retentionDays", 0)));
+        aggregates = new ImpactAggregates(ZoneId.of(AppConfig.getString("aggregates.zone", "UTC")));
+        historyStore.addListener(aggregates::record);
+        historyStore.addRemovalListener(aggregates::remove);
+        if (training) return;
+
+        long compactionMinutes = AppConfig.getLong("history.compactionIntervalMinutes", 60);
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "meal-history-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                historyStore.compact();
+            } catch (IOException e) {
+                System.out.println("Meal history compaction failed: " + e.getMessage());
+            }
+        }, compactionMinutes, compactionMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs one meal through recognition parsing and serialization, so that a broken
+     * dataset fails startup instead of the first request, and the first request does
+     * not pay for class loading. With warmup.enabled the hot paths are then exercised
+     * with synthetic meals (see StartupWarmup) so the JIT has compiled them.
+     * 
+     * @param full Whether to run the synthetic warm-up regardless of warmup.enabled
+     * @throws IOException If the sample meal cannot be built
+     */
+    private void warmUp(boolean full) throws IOException {
+        String food = calculator.getFoodItems().iterator().next().getName();
+        Meal meal = calculator.createMealFromRecognition("{\"mealName\": \"Warm-up\", \"detectedItems\": ["
+            + "{\"originalLabel\": " + SimpleJson.quote(food) + ", \"canonicalName\": " + SimpleJson.quote(food)
+            + ", \"portionKg\": 0.1, \"confidence\": 1}]}");
+        if (meal.getFoodPortions().length == 0) {
+            throw new IOException("Warm-up meal did not match any food in the database");
+        }
+        meal.toJson();
+        if (!full && !AppConfig.getBoolean("warmup.enabled", false)) return;
+
+        warmUpToken = UUID.randomUUID().toString();
+        try {
+            int answered = new StartupWarmup(calculator, server.getAddress().getPort(), warmUpToken).run(
+                AppConfig.getInt("warmup.rounds", 2000),
+                AppConfig.getInt("warmup.concurrency", 4),
+                AppConfig.getLong("warmup.timeoutMs", 20_000));
+            System.out.println("Warm-up answered " + answered + " requests");
+        } finally {
+            warmUpToken = null;
+        }
     }
     
     /**
-     * Starts the server and begins listening for requests.
+     * Starts listening, loads the food database, warms up and then reports ready.
+     * 
+     * @param training Whether this is a training run, which always runs the synthetic
+     *                 warm-up and keeps the meals it records out of the live history
+     * @throws IOException If the database cannot be loaded
      */
-    public void start() {
+    public void start(boolean training) throws IOException {
         server.start();
+        System.out.println("Server listening on http://localhost:" + server.getAddress().getPort() + ", loading food database");
+        try {
+            load(training);
+            startupTimings.mark("load");
+            warmUp(training);
+            startupTimings.mark("warmUp");
+        } catch (IOException | RuntimeException e) {
+            server.stop(0);
+            requestExecutor.shutdown();
+            throw e;
+        }
+        if (draining) return;
+        accepting = true;
+        ready = true;
         System.out.println("Server running on http://localhost:" + server.getAddress().getPort());
+        System.out.println("Startup: " + startupTimings);
     }
-    
+
+    /**
+     * Shuts the server down without dropping requests. Readiness is withdrawn first and
+     * requests are still served for server.drainDelayMs, so the load balancer can stop
+     * routing here; after that new requests get 503, and the server waits up to the
+     * grace period for admitted requests (including /analyze-image calls still waiting
+     * on the recognition service) to be answered before closing connections.
+     * 
+     * @param graceMillis Longest time to wait for in-flight requests
+     */
+    public synchronized void stop(long graceMillis) {
+        if (draining) return;
+        long deadline = System.currentTimeMillis() + graceMillis;
+        ready = false;
+        draining = true;
+        System.out.println("Shutting down, " + inFlight.get() + " requests in flight");
+        try {
+            Thread.sleep(Math.min(graceMillis, AppConfig.getLong("server.drainDelayMs", 0)));
+            accepting = false;
+            planningCancelled.set(true);
+            while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (inFlight.get() > 0) {
+            System.out.println("Grace period over, abandoning " + inFlight.get() + " requests");
+        }
+
+        server.stop(0);
+        requestExecutor.shutdown();
+        // Anything still null was never loaded because shutdown came during startup
+        if (pipeline != null) {
+            try {
+                pipeline.shutdown(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        if (historyStore != null) {
+            try {
+                historyStore.close();
+            } catch (IOException e) {
+                System.out.println("Could not close meal history: " + e.getMessage());
+            }
+        }
+        if (trainingHistoryDir != null) {
+            File[] files = trainingHistoryDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            trainingHistoryDir.delete();
+        }
+        System.out.println("Server stopped");
+    }
+
+    /**
+     * Counts a request as in flight until {@link #finishRequest()} is called.
+     */
+    private void beginRequest() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks a request counted by {@link #beginRequest()} as answered.
+     */
+    private void finishRequest() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Admits requests only while the server is running: before the database has loaded
+     * and while draining they get 503. Admitted requests count as in flight until their
+     * handler returns; handlers that answer asynchronously take their own count.
+     */
+    class AdmissionFilter extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String token = warmUpToken;
+            if (!accepting && (token == null || !token.equals(exchange.getRequestHeaders().getFirst(StartupWarmup.TOKEN_HEADER)))) {
+                exchange.getRequestBody().readAllBytes();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                if (draining) {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                }
+                sendJson(exchange, 503, draining ? "{\"error\": \"Server is shutting down\"}"
+                    : "{\"error\": \"Server is starting up\"}");
+                return;
+            }
+            beginRequest();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                finishRequest();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Rejects requests while starting up or shutting down and counts requests in flight";
+        }
+    }
+
     /**
      * Handles HTTP requests to the /analyze-image endpoint.
      * Accepts POST requests with direct image uploads and returns meal analysis as JSON.
      */
     class ImageAnalysisHandler implements HttpHandler {
+
+        /** Largest image accepted, in bytes */
+        private final long maxUploadBytes = AppConfig.getLong("server.maxUploadBytes", 16L * 1024 * 1024);
         
         /**
          * Processes an incoming HTTP request.
@@ -71,38 +391,897 @@ public class WebServer {
                 return;
             }
             
+            // Reject an unknown region before spending an API call on the image
+            String region = regionOf(exchange);
+            if (!profiles.hasProfile(region)) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote("Unknown region: " + region) + "}");
+                return;
+            }
+
             // Get content type from headers (default to jpeg if missing)
             String mimeType = "image/jpeg";
             if (exchange.getRequestHeaders().containsKey("Content-Type")) {
                 mimeType = exchange.getRequestHeaders().getFirst("Content-Type");
             }
             
-            // Read the binary request body
-            InputStream is = exchange.getRequestBody();
-            byte[] imageBytes = is.readAllBytes();
-            
+            // Read the binary request body into a pooled off-heap buffer
+            BufferPool.PooledBuffer upload;
             try {
-                Meal meal = calculator.createMealFromImage(imageBytes, mimeType);
-                String jsonResponse = meal.toJson();
-                
-                exchange.getResponseHeaders().set("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, jsonResponse.length());
-                
-                OutputStream os = exchange.getResponseBody();
-                os.write(jsonResponse.getBytes());
-                os.close();
-                
-            } catch (Exception e) {
-                e.printStackTrace(); 
-                String error = "{\"error\": \"" + e.getMessage() + "\"}";
-                exchange.sendResponseHeaders(500, error.length());
-                exchange.getResponseBody().write(error.getBytes());
+                upload = BufferPool.getDefault().readFully(exchange.getRequestBody(), contentLengthOf(exchange), maxUploadBytes);
+            } catch (PayloadTooLargeException e) {
+                sendJson(exchange, 413, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+                return;
+            } catch (BufferPool.OutOfBufferMemoryException e) {
+                System.out.println("Upload rejected: " + e.getMessage());
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendJson(exchange, 503, "{\"error\": \"Server is busy, try again shortly\"}");
+                return;
             }
-            
+
+            // The rest runs on the pipeline's executors; this thread is free once the body is read
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMsOf(exchange));
+            // The admission filter stops counting this request when handle() returns, so count it until it is answered
+            beginRequest();
+            CompletableFuture<Meal> analysis = pipeline.analyze(upload.contents(), mimeType, deadlineNanos);
+            // Only release the upload once every stage that reads it has finished, even if the deadline fires first
+            analysis.whenComplete((meal, error) -> upload.release());
+            analysis
+                .thenCompose(recognized -> pipeline.serialize(() -> {
+                    Meal meal = profiles.applyProfile(recognized, region);
+                    historyStore.append(userIdOf(exchange), System.currentTimeMillis(), meal)
+                        .exceptionally(error -> {
+                            System.out.println("Could not save meal to history: " + error.getMessage());
+                            return null;
+                        });
+                    return mealJson(meal, exchange);
+                }, deadlineNanos))
+                .orTimeout(Math.max(1, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)
+                .whenComplete((json, error) -> pipeline.respond(() -> {
+                    sendAnalysisResponse(exchange, json, error);
+                    return null;
+                }).whenComplete((sent, sendError) -> {
+                    if (sendError instanceof RecognitionUnavailableException) {
+                        // The pipeline has shut down; answer from this thread rather than not at all
+                        sendUnavailable(exchange);
+                    }
+                    finishRequest();
+                }));
+        }
+
+        /**
+         * Answers 503 on the calling thread, for when no response could be scheduled.
+         * 
+         * @param exchange The HTTP request/response exchange
+         */
+        private void sendUnavailable(HttpExchange exchange) {
+            try {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendJson(exchange, 503, "{\"error\": \"Server is shutting down\"}");
+            } catch (IOException e) {
+                System.out.println("Could not send response: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Writes the analysis result, or maps the error that stopped it to a status code.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @param json The response body, if the analysis succeeded
+         * @param error The error, if it failed
+         * @throws IOException If the response cannot be written
+         */
+        private void sendAnalysisResponse(HttpExchange exchange, String json, Throwable error) throws IOException {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause == null) {
+                sendJson(exchange, 200, json);
+            } else if (cause instanceof RecognitionUnavailableException) {
+                System.out.println("Recognition unavailable: " + cause.getMessage());
+                exchange.getResponseHeaders().set("Retry-After",
+                    String.valueOf(((RecognitionUnavailableException) cause).getRetryAfterSeconds()));
+                sendJson(exchange, 503, "{\"error\": " + SimpleJson.quote(cause.getMessage()) + "}");
+            } else if (cause instanceof DeadlineExceededException || cause instanceof TimeoutException) {
+                System.out.println("Image analysis missed its deadline");
+                sendJson(exchange, 504, "{\"error\": \"Analysis did not finish before the request deadline\"}");
+            } else {
+                cause.printStackTrace();
+                sendJson(exchange, 500, "{\"error\": " + SimpleJson.quote(String.valueOf(cause.getMessage())) + "}");
+            }
+        }
+
+        /**
+         * Gets the request's Content-Length, used to size the first upload buffer and to
+         * refuse oversized uploads before reading them.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @return The length, or -1 if the header is absent or invalid
+         */
+        private long contentLengthOf(HttpExchange exchange) {
+            try {
+                return Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Gets how long the client is willing to wait, from the X-Deadline-Ms header.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @return The time budget in milliseconds (pipeline.deadlineMs if the header is absent or invalid)
+         */
+        private long deadlineMsOf(HttpExchange exchange) {
+            long defaultMs = AppConfig.getLong("pipeline.deadlineMs", 60_000);
+            String header = exchange.getRequestHeaders().getFirst("X-Deadline-Ms");
+            if (header == null) return defaultMs;
+            try {
+                long requested = Long.parseLong(header.trim());
+                return requested > 0 ? Math.min(requested, defaultMs) : defaultMs;
+            } catch (NumberFormatException e) {
+                return defaultMs;
+            }
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /meals/compose and /meals/compose/bulk endpoints.
+     * Builds meals from known food names and portion weights, without image recognition.
+     * 
+     * A single meal is posted as:
+     *   {"mealName": "Lunch", "items": [{"name": "Rice", "portionKg": 0.25}, ...]}
+     * and the bulk endpoint accepts {"meals": [ ...meals as above... ]} and returns an array.
+     */
+    class MealCompositionHandler implements HttpHandler {
+
+        /** Whether this handler accepts many meals per request */
+        private boolean bulk;
+
+        /**
+         * Creates a handler for single or bulk meal composition.
+         * 
+         * @param bulk true to accept a list of meals, false for a single meal
+         */
+        public MealCompositionHandler(boolean bulk) {
+            this.bulk = bulk;
+        }
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem processing the request
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, "{\"error\": \"Method not allowed\"}");
+                return;
+            }
+
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Map<String, Object> request;
+            try {
+                request = SimpleJson.parseObject(body);
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+                return;
+            }
+
+            // An unknown region fails the whole request, not each meal of a bulk request
+            String region = regionOf(exchange);
+            if (!profiles.hasProfile(region)) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote("Unknown region: " + region) + "}");
+                return;
+            }
+
+            if (!bulk) {
+                try {
+                    Meal meal = profiles.applyProfile(mealFromJson(request), region);
+                    sendJson(exchange, 200, mealJson(meal, exchange));
+                } catch (IllegalArgumentException e) {
+                    sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+                }
+                return;
+            }
+
+            if (!(request.get("meals") instanceof List)) {
+                sendJson(exchange, 400, "{\"error\": \"Expected a \\\"meals\\\" array\"}");
+                return;
+            }
+
+            // One bad meal should not fail the whole batch, so errors are reported per meal
+            StringBuilder json = new StringBuilder("[\n");
+            List<?> meals = (List<?>) request.get("meals");
+            for (int i = 0; i < meals.size(); i++) {
+                try {
+                    json.append(profiles.applyProfile(mealFromJson(meals.get(i)), region).toJson());
+                } catch (IllegalArgumentException e) {
+                    json.append("{\"error\": ").append(SimpleJson.quote(e.getMessage())).append("}");
+                }
+                if (i < meals.size() - 1) json.append(",");
+                json.append("\n");
+            }
+            json.append("]");
+            sendJson(exchange, 200, json.toString());
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /meals/substitutions endpoint.
+     * Takes a meal (as for /meals/compose) and returns, for each metric, the single-food
+     * substitutions that reduce it the most. An optional "limit" sets how many per metric
+     * (default 5) and an optional "metric" restricts the answer to one metric. The meal and
+     * the alternatives use the emission profile selected by X-Region or ?region=.
+     */
+    class SubstitutionHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem processing the request
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, "{\"error\": \"Method not allowed\"}");
+                return;
+            }
+
+            try {
+                Map<String, Object> request = SimpleJson.parseObject(
+                    new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                String region = profiles.nameOf(regionOf(exchange));
+                Meal meal = profiles.applyProfile(mealFromJson(request), region);
+                SubstitutionRecommender recommender = recommenders.get(region);
+                int limit = request.get("limit") instanceof Double ? ((Double) request.get("limit")).intValue() : 5;
+                ImpactMetric[] metrics = request.get("metric") instanceof String
+                    ? new ImpactMetric[] {ImpactMetric.fromName((String) request.get("metric"))}
+                    : ImpactMetric.values();
+
+                StringBuilder json = new StringBuilder("{\n");
+                json.append("  \"meal\": ").append(meal.toJson().replace("\n", "\n  ")).append(",\n");
+                json.append("  \"suggestions\": {\n");
+                for (int m = 0; m < metrics.length; m++) {
+                    json.append("    \"").append(metrics[m].getJsonName()).append("\": [");
+                    List<SubstitutionRecommender.Suggestion> suggestions = recommender.suggest(meal, metrics[m], limit);
+                    for (int i = 0; i < suggestions.size(); i++) {
+                        json.append(i == 0 ? "\n      " : ",\n      ").append(suggestions.get(i).toJson());
+                    }
+                    json.append(suggestions.isEmpty() ? "]" : "\n    ]");
+                    if (m < metrics.length - 1) json.append(",");
+                    json.append("\n");
+                }
+                json.append("  }\n}");
+                sendJson(exchange, 200, json.toString());
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+            }
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /meals/what-if endpoint.
+     * Evaluates many variants of one meal in a single call:
+     *   {"meal": {...as for /meals/compose...},
+     *    "variants": [{"name": "Chicken instead of beef",
+     *                  "changes": [{"replace": "Beef steak", "with": "Chicken breast", "portionKg": 0.2}]}]}
+     * "with" may be omitted to only change the portion, and "remove": true drops the food.
+     * All totals use the emission profile selected by X-Region or ?region=.
+     */
+    class WhatIfHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem processing the request
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, "{\"error\": \"Method not allowed\"}");
+                return;
+            }
+
+            try {
+                Map<String, Object> request = SimpleJson.parseObject(
+                    new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                String region = profiles.nameOf(regionOf(exchange));
+                Meal meal = profiles.applyProfile(mealFromJson(request.get("meal")), region);
+                if (!(request.get("variants") instanceof List)) {
+                    throw new IllegalArgumentException("Expected a \"variants\" array");
+                }
+
+                List<String> names = new ArrayList<>();
+                List<List<SubstitutionRecommender.Change>> variants = new ArrayList<>();
+                for (Object value : (List<?>) request.get("variants")) {
+                    if (!(value instanceof Map) || !(((Map<?, ?>) value).get("changes") instanceof List)) {
+                        throw new IllegalArgumentException("Each variant needs a \"changes\" array");
+                    }
+                    Map<?, ?> variant = (Map<?, ?>) value;
+                    names.add(variant.get("name") instanceof String ? (String) variant.get("name") : "Variant " + (names.size() + 1));
+                    List<SubstitutionRecommender.Change> changes = new ArrayList<>();
+                    for (Object changeValue : (List<?>) variant.get("changes")) {
+                        if (!(changeValue instanceof Map) || !(((Map<?, ?>) changeValue).get("replace") instanceof String)) {
+                            throw new IllegalArgumentException("Each change needs a \"replace\" food name");
+                        }
+                        Map<?, ?> change = (Map<?, ?>) changeValue;
+                        String replace = (String) change.get("replace");
+                        String with = Boolean.TRUE.equals(change.get("remove")) ? null
+                            : change.get("with") instanceof String ? (String) change.get("with") : replace;
+                        double portionKg = change.get("portionKg") instanceof Double ? (Double) change.get("portionKg") : Double.NaN;
+                        changes.add(new SubstitutionRecommender.Change(replace, with, portionKg));
+                    }
+                    variants.add(changes);
+                }
+
+                double[][] results = recommenders.get(region).evaluateVariants(meal, variants);
+                StringBuilder json = new StringBuilder("{\n");
+                json.append("  \"base\": {").append(totalsJson(new double[] {
+                    meal.calculateTotalFootprints(), meal.calculateTotalWaterUsage(),
+                    meal.calculateLandUsage(), meal.calculateNitrogenWaste()})).append("},\n");
+                json.append("  \"variants\": [");
+                for (int v = 0; v < results.length; v++) {
+                    json.append(v == 0 ? "\n" : ",\n");
+                    json.append("    {\"name\": ").append(SimpleJson.quote(names.get(v)))
+                        .append(", \"totals\": {").append(totalsJson(results[v])).append("}}");
+                }
+                json.append("\n  ]\n}");
+                sendJson(exchange, 200, json.toString());
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+            }
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /meals/plan endpoint.
+     * Searches for meals within calorie and weight budgets and returns the Pareto front:
+     * the plans for which no other plan is lower on all four metrics. Every field is optional:
+     *   {"minKcal": 500, "maxKcal": 800, "maxWeightKg": 0.6, "maxItems": 3,
+     *    "minPortionKg": 0.05, "maxPortionKg": 0.25, "portionStepKg": 0.05,
+     *    "timeLimitMs": 2000, "foods": ["Rice", ...], "limit": 20, "sortBy": "carbon"}
+     * Plans are scored with the emission profile selected by X-Region or ?region=.
+     */
+    class MealPlanHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem processing the request
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, "{\"error\": \"Method not allowed\"}");
+                return;
+            }
+
+            try {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                Map<String, Object> request = body.isBlank() ? new HashMap<>() : SimpleJson.parseObject(body);
+                MealPlanner planner = planners.get(profiles.nameOf(regionOf(exchange)));
+                MealPlanner.Constraints constraints = new MealPlanner.Constraints();
+                constraints.setMinKcal(numberOr(request, "minKcal", constraints.getMinKcal()));
+                constraints.setMaxKcal(numberOr(request, "maxKcal", constraints.getMaxKcal()));
+                constraints.setMaxWeightKg(numberOr(request, "maxWeightKg", constraints.getMaxWeightKg()));
+                constraints.setMaxItems((int) numberOr(request, "maxItems", constraints.getMaxItems()));
+                constraints.setMinPortionKg(numberOr(request, "minPortionKg", constraints.getMinPortionKg()));
+                constraints.setMaxPortionKg(numberOr(request, "maxPortionKg", constraints.getMaxPortionKg()));
+                constraints.setPortionStepKg(numberOr(request, "portionStepKg", constraints.getPortionStepKg()));
+                constraints.setTimeLimitMs((long) numberOr(request, "timeLimitMs", constraints.getTimeLimitMs()));
+                if (request.get("foods") instanceof List) {
+                    List<String> foods = new ArrayList<>();
+                    for (Object food : (List<?>) request.get("foods")) {
+                        foods.add(String.valueOf(food));
+                    }
+                    constraints.setFoods(foods);
+                }
+                constraints.validate();
+                int limit = (int) numberOr(request, "limit", 20);
+                ImpactMetric sortBy = request.get("sortBy") instanceof String
+                    ? ImpactMetric.fromName((String) request.get("sortBy")) : ImpactMetric.CARBON;
+
+                MealPlanner.Result result = planner.plan(constraints, planningCancelled);
+                List<MealPlanner.Plan> plans = new ArrayList<>(result.getPlans());
+                plans.sort((a, b) -> Double.compare(a.getTotal(sortBy), b.getTotal(sortBy)));
+
+                StringBuilder json = new StringBuilder("{\n");
+                json.append("  \"complete\": ").append(result.isComplete()).append(",\n");
+                json.append("  \"frontSize\": ").append(plans.size()).append(",\n");
+                json.append("  \"nodesVisited\": ").append(result.getNodesVisited()).append(",\n");
+                json.append("  \"elapsedMs\": ").append(result.getElapsedMs()).append(",\n");
+                json.append("  \"plans\": [");
+                for (int i = 0; i < Math.min(limit, plans.size()); i++) {
+                    json.append(i == 0 ? "\n    " : ",\n    ").append(plans.get(i).toJson());
+                }
+                json.append(plans.isEmpty() ? "]\n}" : "\n  ]\n}");
+                sendJson(exchange, 200, json.toString());
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+            }
+        }
+    }
+
+    /**
+     * Reads a number from a parsed JSON object.
+     * 
+     * @param request The parsed object
+     * @param key The field name
+     * @param defaultValue Value used when the field is absent
+     * @return The number
+     * @throws IllegalArgumentException If the field is present but not a number
+     */
+    private static double numberOr(Map<String, Object> request, String key, double defaultValue) {
+        Object value = request.get(key);
+        if (value == null) return defaultValue;
+        if (!(value instanceof Double)) throw new IllegalArgumentException("\"" + key + "\" must be a number");
+        return (Double) value;
+    }
+
+    /**
+     * Formats totals indexed by ImpactMetric ordinal as JSON fields.
+     * 
+     * @param totals The totals, one per metric
+     * @return JSON fields such as "carbonFootprint": 1.23, ...
+     */
+    private static String totalsJson(double[] totals) {
+        StringBuilder json = new StringBuilder();
+        for (ImpactMetric metric : ImpactMetric.values()) {
+            if (json.length() > 0) json.append(", ");
+            json.append("\"").append(metric.getJsonName()).append("\": ")
+                .append(String.format("%.2f", totals[metric.ordinal()]));
+        }
+        return json.toString();
+    }
+
+    /**
+     * Handles HTTP requests to the /history endpoint.
+     * Returns a user's recorded meals in a time range, e.g.
+     * /history?user=ama&from=2026-01-01&to=2026-02-01 (dates, ISO instants or epoch milliseconds).
+     */
+    class HistoryHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem writing the response
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = queryParams(exchange);
+            String user = params.getOrDefault("user", userIdOf(exchange));
+
+            long from;
+            long to;
+            try {
+                from = parseTime(params.get("from"), 0);
+                to = parseTime(params.get("to"), Long.MAX_VALUE);
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+                return;
+            }
+
+            List<MealRecord> meals;
+            try {
+                meals = historyStore.query(user, from, to);
+            } catch (IOException e) {
+                sendJson(exchange, 500, "{\"error\": " + SimpleJson.quote("Could not read meal history: " + e.getMessage()) + "}");
+                return;
+            }
+            StringBuilder json = new StringBuilder("[\n");
+            for (int i = 0; i < meals.size(); i++) {
+                json.append(meals.get(i).toJson());
+                if (i < meals.size() - 1) json.append(",");
+                json.append("\n");
+            }
+            json.append("]");
+            sendJson(exchange, 200, json.toString());
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /aggregates endpoint.
+     * Returns a user's precomputed totals per day, week or month, plus all-time and per-food totals, e.g.
+     * /aggregates?user=ama&period=week&from=2026-09-01&to=2026-10-01
+     */
+    class AggregatesHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem writing the response
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = queryParams(exchange);
+            String user = params.getOrDefault("user", userIdOf(exchange));
+
+            ImpactAggregates.Period period;
+            LocalDate from;
+            LocalDate to;
+            try {
+                period = ImpactAggregates.Period.valueOf(params.getOrDefault("period", "day").toUpperCase());
+                to = params.containsKey("to") ? LocalDate.parse(params.get("to")) : LocalDate.now(aggregates.getZone());
+                if (params.containsKey("from")) {
+                    from = LocalDate.parse(params.get("from"));
+                } else if (period == ImpactAggregates.Period.DAY) {
+                    from = to.minusDays(30);
+                } else if (period == ImpactAggregates.Period.WEEK) {
+                    from = to.minusWeeks(12);
+                } else {
+                    from = to.minusMonths(12);
+                }
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                sendJson(exchange, 400, "{\"error\": \"Expected period=day|week|month and ISO dates for from/to\"}");
+                return;
+            }
+            if (from.isAfter(to)) {
+                sendJson(exchange, 400, "{\"error\": \"from must not be after to\"}");
+                return;
+            }
+
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"user\": ").append(SimpleJson.quote(user)).append(",\n");
+            json.append("  \"period\": \"").append(period.name().toLowerCase()).append("\",\n");
+
+            ImpactTotals allTime = aggregates.getAllTime(user);
+            json.append("  \"allTime\": {").append(allTime == null ? new ImpactTotals().toJsonFields() : allTime.toJsonFields()).append("},\n");
+
+            json.append("  \"periods\": [");
+            boolean first = true;
+            for (Map.Entry<LocalDate, ImpactTotals> bucket : aggregates.getRollups(user, period, from, to).entrySet()) {
+                json.append(first ? "\n" : ",\n");
+                json.append("    {\"start\": \"").append(bucket.getKey()).append("\", ")
+                    .append(bucket.getValue().toJsonFields()).append("}");
+                first = false;
+            }
+            json.append("\n  ],\n");
+
+            json.append("  \"foods\": [");
+            first = true;
+            for (Map.Entry<String, ImpactTotals> food : aggregates.getFoodTotals(user).entrySet()) {
+                json.append(first ? "\n" : ",\n");
+                json.append("    {\"name\": ").append(SimpleJson.quote(food.getKey())).append(", ")
+                    .append(food.getValue().toJsonFields()).append("}");
+                first = false;
+            }
+            json.append("\n  ]\n");
+            json.append("}");
+            sendJson(exchange, 200, json.toString());
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /aggregates/foods endpoint.
+     * Returns the all-time totals of every food across all users, highest carbon footprint first.
+     */
+    class FoodAggregatesHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem writing the response
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            List<Map.Entry<String, ImpactTotals>> foods = new ArrayList<>(aggregates.getFoodTotalsOverall().entrySet());
+            foods.sort((a, b) -> Double.compare(b.getValue().getCarbonFootprint(), a.getValue().getCarbonFootprint()));
+
+            StringBuilder json = new StringBuilder("{\n  \"foods\": [");
+            for (int i = 0; i < foods.size(); i++) {
+                json.append(i == 0 ? "\n" : ",\n");
+                json.append("    {\"name\": ").append(SimpleJson.quote(foods.get(i).getKey())).append(", ")
+                    .append(foods.get(i).getValue().toJsonFields()).append("}");
+            }
+            json.append("\n  ]\n}");
+            sendJson(exchange, 200, json.toString());
+        }
+    }
+
+    /**
+     * Gets the user a request belongs to, from the X-User-Id header.
+     * 
+     * @param exchange The HTTP request/response exchange
+     * @return The user id, or "anonymous" if none was sent
+     */
+    private static String userIdOf(HttpExchange exchange) {
+        String user = exchange.getRequestHeaders().getFirst("X-User-Id");
+        return (user == null || user.isBlank()) ? "anonymous" : user.trim();
+    }
+
+    /**
+     * Parses the query string of a request.
+     * 
+     * @param exchange The HTTP request/response exchange
+     * @return The query parameters by name
+     */
+    private static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Parses a time given as epoch milliseconds, an ISO date (UTC midnight) or an ISO instant.
+     * 
+     * @param value The text to parse, or null
+     * @param defaultValue The value to use when the text is null
+     * @return Milliseconds since the epoch
+     * @throws IllegalArgumentException If the text is not a recognized time format
+     */
+    private static long parseTime(String value, long defaultValue) {
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // not epoch milliseconds, try the ISO formats
+        }
+        try {
+            return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // not a date, try an instant
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    /**
+     * Builds a Meal from a parsed JSON object of the form
+     * {"mealName": "...", "items": [{"name": "...", "portionKg": 0.1}, ...]}.
+     * 
+     * @param value The parsed JSON object
+     * @return The meal
+     * @throws IllegalArgumentException If the object is malformed or names an unknown food
+     */
+    private Meal mealFromJson(Object value) {
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Expected a meal object");
+        }
+        Map<?, ?> meal = (Map<?, ?>) value;
+        Object mealName = meal.get("mealName");
+        Object items = meal.get("items");
+        if (!(items instanceof List)) {
+            throw new IllegalArgumentException("Meal needs an \"items\" array");
+        }
+
+        List<?> itemList = (List<?>) items;
+        String[] names = new String[itemList.size()];
+        double[] portions = new double[itemList.size()];
+        for (int i = 0; i < itemList.size(); i++) {
+            if (!(itemList.get(i) instanceof Map)) {
+                throw new IllegalArgumentException("Each item must be an object");
+            }
+            Map<?, ?> item = (Map<?, ?>) itemList.get(i);
+            if (!(item.get("name") instanceof String) || !(item.get("portionKg") instanceof Double)) {
+                throw new IllegalArgumentException("Each item needs a \"name\" and a numeric \"portionKg\"");
+            }
+            names[i] = (String) item.get("name");
+            portions[i] = (Double) item.get("portionKg");
+            if (portions[i] < 0) {
+                throw new IllegalArgumentException("portionKg must not be negative");
+            }
+        }
+        Meal result = calculator.createMealFromPortions(
+            mealName instanceof String ? (String) mealName : "Custom meal", names, portions);
+
+        // An optional confidence per item lets callers pass on what a recognizer reported
+        for (int i = 0; i < itemList.size(); i++) {
+            Object confidence = ((Map<?, ?>) itemList.get(i)).get("confidence");
+            if (confidence instanceof Double) {
+                result.getFoodPortions()[i].setConfidence(Math.max(0, Math.min(1, (Double) confidence)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the emission profile a request selected, from the X-Region header or the
+     * "region" query parameter.
+     * 
+     * @param exchange The HTTP request/response exchange
+     * @return The profile name (profiles.default, or "global", if the request names none)
+     */
+    private static String regionOf(HttpExchange exchange) {
+        String region = exchange.getRequestHeaders().getFirst("X-Region");
+        if (region == null || region.isBlank()) {
+            region = queryParams(exchange).get("region");
+        }
+        if (region == null || region.isBlank()) {
+            region = AppConfig.getString("profiles.default", EmissionProfiles.GLOBAL);
+        }
+        return region;
+    }
+
+    /**
+     * Converts a meal to JSON, adding confidence intervals for its totals when the
+     * request has the query parameter uncertainty=true.
+     * 
+     * @param meal The meal
+     * @param exchange The HTTP request/response exchange
+     * @return The meal JSON
+     */
+    private String mealJson(Meal meal, HttpExchange exchange) {
+        String json = meal.toJson();
+        if (!"true".equalsIgnoreCase(queryParams(exchange).get("uncertainty"))) {
+            return json;
+        }
+        UncertaintySimulator.Result result = uncertaintySimulator.simulate(meal, regionOf(exchange), System.nanoTime());
+        // Insert before the closing brace of the meal object
+        return json.substring(0, json.lastIndexOf('}')).stripTrailing()
+            + ",\n  \"uncertainty\": " + result.toJson() + "\n}";
+    }
+
+    /**
+     * Sends a JSON response and closes the exchange.
+     * 
+     * @param exchange The HTTP request/response exchange
+     * @param status The HTTP status code
+     * @param json The JSON body
+     * @throws IOException If the response cannot be written
+     */
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        // Encode into a pooled off-heap buffer rather than a new byte array per response
+        try (BufferPool.PooledBuffer body = BufferPool.getDefault().encodeUtf8(json)) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.size());
+            BufferPool.writeTo(body.contents(), exchange.getResponseBody());
+        } finally {
             exchange.close();
         }
     }
 
+    /**
+     * Handles HTTP requests to /cache/recognition/{hash} from other instances when
+     * recognition results are shared between peers (cache.shared.type=peers).
+     * GET returns the result stored here for an image hash (404 if none) and PUT stores one.
+     * Both need the shared secret in the X-Cache-Secret header, and a PUT is only accepted
+     * for a hash this instance owns.
+     */
+    class PeerCacheHandler implements HttpHandler {
+
+        /** Largest result a peer may store */
+        private static final int MAX_RESULT_BYTES = 1024 * 1024;
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem processing the request
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!(calculator.getSharedCache() instanceof PeerRecognitionCache)) {
+                sendJson(exchange, 404, "{\"error\": \"Peer cache sharing is not enabled\"}");
+                return;
+            }
+            PeerRecognitionCache cache = (PeerRecognitionCache) calculator.getSharedCache();
+            if (!cache.isPeer(exchange.getRequestHeaders().getFirst(PeerRecognitionCache.SECRET_HEADER))) {
+                sendJson(exchange, 403, "{\"error\": \"Missing or wrong cache secret\"}");
+                return;
+            }
+
+            long hash;
+            try {
+                hash = Long.parseUnsignedLong(exchange.getRequestURI().getPath().substring(PeerRecognitionCache.PATH.length()), 16);
+            } catch (NumberFormatException e) {
+                sendJson(exchange, 400, "{\"error\": \"Expected a 16-digit hex image hash\"}");
+                return;
+            }
+
+            if ("GET".equals(exchange.getRequestMethod())) {
+                String json = cache.getOwned(hash);
+                cache.recordServedToPeer();
+                if (json == null) {
+                    sendJson(exchange, 404, "{\"error\": \"Not cached\"}");
+                } else {
+                    sendJson(exchange, 200, json);
+                }
+            } else if ("PUT".equals(exchange.getRequestMethod())) {
+                if (!cache.owns(hash)) {
+                    // The sender's peer list differs from ours, or it is not a peer at all
+                    sendJson(exchange, 421, "{\"error\": \"This instance does not own that hash\"}");
+                    return;
+                }
+                byte[] body = exchange.getRequestBody().readNBytes(MAX_RESULT_BYTES + 1);
+                String json = new String(body, StandardCharsets.UTF_8);
+                try {
+                    if (body.length > MAX_RESULT_BYTES) {
+                        throw new IllegalArgumentException("Result too large");
+                    }
+                    PeerRecognitionCache.validateResult(json);
+                } catch (IllegalArgumentException e) {
+                    sendJson(exchange, 400, "{\"error\": " + SimpleJson.quote(e.getMessage()) + "}");
+                    return;
+                }
+                cache.putOwned(hash, json);
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            } else {
+                sendJson(exchange, 405, "{\"error\": \"Method not allowed\"}");
+            }
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /metrics endpoint.
+     * Returns the recognition service and cache metrics as JSON.
+     */
+    class MetricsHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem writing the response
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String json = "{\n\"recognizer\": " + calculator.getRecognizer().getMetricsJson()
+                + ",\n\"nearDuplicateCache\": " + calculator.getNearDuplicateCache().getMetricsJson()
+                + ",\n\"sharedCache\": " + (calculator.getSharedCache() == null ? "null" : calculator.getSharedCache().getMetricsJson())
+                + ",\n\"pipeline\": " + pipeline.getMetricsJson()
+                + ",\n\"buffers\": " + BufferPool.getDefault().getMetricsJson()
+                + ",\n\"startup\": " + startupTimings.toJson() + "\n}";
+            sendJson(exchange, 200, json);
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /live endpoint.
+     * Answers 200 whenever the process can serve HTTP at all, including while starting up
+     * and draining, so the orchestrator only restarts an instance that has hung.
+     */
+    class LivenessHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem writing the response
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            sendJson(exchange, 200, "{\"live\": true, \"uptimeMs\": " + (System.currentTimeMillis() - createdMillis) + "}");
+        }
+    }
+
+    /**
+     * Handles HTTP requests to the /ready endpoint.
+     * Answers 200 once the food database is loaded and warmed up, and 503 while starting
+     * up or shutting down, so the load balancer only routes traffic to warm instances.
+     */
+    class ReadinessHandler implements HttpHandler {
+
+        /**
+         * Processes an incoming HTTP request.
+         * 
+         * @param exchange The HTTP request/response exchange
+         * @throws IOException If there's a problem writing the response
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String state = ready ? "ready" : draining ? "draining" : "starting";
+            sendJson(exchange, ready ? 200 : 503, "{\"ready\": " + ready + ", \"state\": \"" + state
+                + "\", \"inFlight\": " + inFlight.get() + "}");
+        }
+    }
+
     /**
      * Serves static files (HTML, CSS, JavaScript) from a directory.
      */
@@ -153,11 +1332,18 @@ public class WebServer {
     /**
      * Entry point for the web server application.
      * 
-     * @param args Command line arguments (not used)
+     * @param args "--train" to start, run the full warm-up and exit (for recording a CDS archive)
      * @throws IOException If the server cannot start
      */
     public static void main(String[] args) throws IOException {
-        WebServer webServer = new WebServer(8080);
-        webServer.start();
+        // --train starts, warms up and exits, e.g. to record the classes for a CDS archive
+        boolean train = args.length > 0 && args[0].equals("--train");
+        WebServer webServer = new WebServer(AppConfig.getInt("server.port", 8080));
+        long graceMillis = AppConfig.getLong("server.shutdownGraceMs", 30_000);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> webServer.stop(graceMillis), "server-shutdown"));
+        webServer.start(train);
+        if (train) {
+            webServer.stop(0);
+        }
     }
 }
\ No newline at end of file